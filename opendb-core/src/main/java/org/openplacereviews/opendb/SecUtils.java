@@ -10,6 +10,7 @@ import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
@@ -371,6 +372,15 @@ public class SecUtils {
 		throw new UnsupportedOperationException();
 	}
 
+	public static MessageDigest getMessageDigest(String algo) {
+		if (algo.equals(HASH_SHA256)) {
+			return DigestUtils.getSha256Digest();
+		} else if (algo.equals(HASH_SHA1)) {
+			return DigestUtils.getSha1Digest();
+		}
+		throw new UnsupportedOperationException();
+	}
+
 	public static byte[] mergeTwoArrays(byte[] b1, byte[] b2) {
 		byte[] m = b1 == null ? b2 : b1;
 		if(b2 != null && b1 != null) {
@@ -4,7 +4,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.*;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
+import org.openplacereviews.opendb.ops.OpBlockChain.SearchType;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.scheduled.OpenDBScheduledServices;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.service.BlocksManager.BlocksListResult;
@@ -21,8 +23,16 @@ import org.springframework.core.io.InputStreamResource;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Consumer;
 
 @Controller
 @RequestMapping("/api")
@@ -31,6 +41,7 @@ public class ApiController {
 	protected static final Log LOGGER = LogFactory.getLog(ApiController.class);
 
 	public static final int LIMIT_RESULTS = 10000;
+	public static final String HISTORY_CONTINUATION_HEADER = "X-History-Continuation";
 
 	@Autowired
 	private BlocksManager manager;
@@ -54,7 +65,8 @@ public class ApiController {
 	@ResponseBody
 	public String status(HttpSession session) {
 		BlockchainStatus res = new BlockchainStatus();
-		OpBlockChain o = manager.getBlockchain();
+		OpBlockChain blc = manager.getBlockchain();
+		OpBlockChain o = blc;
 		while (!o.isNullBlock()) {
 			if (o.getSuperBlockHash().equals("")) {
 				res.sblocks.add("Q-" + o.getQueueOperations().size());
@@ -72,7 +84,7 @@ public class ApiController {
 			}
 			o = o.getParent();
 		}
-		res.amountBlocks = manager.getBlockchain().getDepth();
+		res.amountBlocks = blc.getDepth();
 		res.orphanedBlocks = manager.getOrphanedBlocks();
 		res.serverUser = manager.getServerUser();
 		res.status = manager.getCurrentState();
@@ -158,6 +170,53 @@ public class ApiController {
 		public int count;
 	}
 
+	/**
+	 * Writes objects result ({"objects":[...],"count":0}) straight to response as objects are fetched,
+	 * objects loaded from db are copied from stored json
+	 */
+	protected class ObjectsResultWriter implements Consumer<OpObject> {
+		private final Writer out;
+		private boolean empty = true;
+
+		public ObjectsResultWriter(HttpServletResponse response) throws IOException {
+			out = openJsonResponse(response);
+			out.write("{\"objects\":[");
+		}
+
+		@Override
+		public void accept(OpObject obj) {
+			try {
+				if (!empty) {
+					out.write(',');
+				}
+				empty = false;
+				formatter.writeFullObject(obj, out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public void close() throws IOException {
+			out.write("],\"count\":0}");
+			out.flush();
+		}
+	}
+
+	private Writer openJsonResponse(HttpServletResponse response) throws IOException {
+		response.setContentType("text/json;charset=UTF-8");
+		return new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	private void writeJsonResponse(HttpServletResponse response, Object o) throws IOException {
+		Writer out = openJsonResponse(response);
+		if (o == null) {
+			out.write("{}");
+		} else {
+			formatter.fullObjectToJson(o, out);
+		}
+		out.flush();
+	}
+
 	protected static class MetricResult {
 		public String id;
 		public int[] count;
@@ -218,12 +277,20 @@ public class ApiController {
 
 	@GetMapping(path = "/block-by-hash", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String getBlockByHash(@RequestParam(required = true) String hash) {
+	public void getBlockByHash(HttpServletResponse response, @RequestParam(required = true) String hash) throws IOException {
 		OpBlock blockHeader = manager.getBlockchain().getFullBlockByRawHash(OpBlockchainRules.getRawHash(hash));
-		if (blockHeader == null) {
-			return "{}";
+		writeJsonResponse(response, blockHeader);
+	}
+
+	// used by replication, explicit parameter keeps browsers (Accept */*) on json version
+	@GetMapping(path = "/block-by-hash", params = "format=binary", produces = OpBinaryCodec.MEDIA_TYPE)
+	@ResponseBody
+	public byte[] getBinaryBlockByHash(@RequestParam(required = true) String hash) {
+		OpBlock block = manager.getBlockchain().getFullBlockByRawHash(OpBlockchainRules.getRawHash(hash));
+		if (block == null) {
+			return OpBinaryCodec.encode(new OpBlock());
 		}
-		return formatter.fullObjectToJson(blockHeader);
+		return OpBinaryCodec.encode(block);
 	}
 
 	@GetMapping(path = "/block-header-by-id", produces = "text/json;charset=UTF-8")
@@ -255,32 +322,30 @@ public class ApiController {
 
 	@GetMapping(path = "/ops-by-block-id", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String getOperationsByBlockId(@RequestParam(required = true) int blockId) {
+	public void getOperationsByBlockId(HttpServletResponse response, @RequestParam(required = true) int blockId) throws IOException {
 		OpBlock opBlock = manager.getBlockchain().getFullBlockByBlockId(blockId);
+		OpBlock bl = null;
 		if (opBlock != null) {
-			OpBlock bl = new OpBlock();
+			bl = new OpBlock();
 			for (OpOperation ob : opBlock.getOperations()) {
 				bl.addOperation(ob);
 			}
-			return formatter.fullObjectToJson(bl);
-		} else {
-			return "{}";
 		}
+		writeJsonResponse(response, bl);
 	}
 
 	@GetMapping(path = "/ops-by-block-hash", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String getOperationsByBlockHash(@RequestParam(required = true) String hash) {
+	public void getOperationsByBlockHash(HttpServletResponse response, @RequestParam(required = true) String hash) throws IOException {
 		OpBlock opBlock = manager.getBlockchain().getFullBlockByRawHash(hash);
+		OpBlock bl = null;
 		if (opBlock != null) {
-			OpBlock bl = new OpBlock();
+			bl = new OpBlock();
 			for (OpOperation ob : opBlock.getOperations()) {
 				bl.addOperation(ob);
 			}
-			return formatter.fullObjectToJson(bl);
 		}
-
-		return "{}";
+		writeJsonResponse(response, bl);
 	}
 
 	@PostMapping(path = "/metrics-reset", produces = "text/json;charset=UTF-8")
@@ -317,18 +382,18 @@ public class ApiController {
 
 	@GetMapping(path = "/objects", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String objects(@RequestParam(required = true) String type,
-			@RequestParam(required = false, defaultValue = "100") int limit) throws FailedVerificationException {
+	public void objects(HttpServletResponse response, @RequestParam(required = true) String type,
+			@RequestParam(required = false, defaultValue = "100") int limit) throws FailedVerificationException, IOException {
 		OpBlockChain blc = manager.getBlockchain();
-		ObjectsResult res = new ObjectsResult();
 		ObjectsSearchRequest r = new ObjectsSearchRequest();
 		if (limit < 0 || limit > LIMIT_RESULTS) {
 			limit = LIMIT_RESULTS;
 		}
 		r.limit = limit;
+		ObjectsResultWriter res = new ObjectsResultWriter(response);
+		r.resultConsumer = res;
 		blc.fetchAllObjects(type, r);
-		res.objects = r.result;
-		return formatter.fullObjectToJson(res);
+		res.close();
 	}
 
 	@GetMapping(path = "/objects-count", produces = "text/json;charset=UTF-8")
@@ -342,19 +407,28 @@ public class ApiController {
 
 	@GetMapping(path = "/objects-by-id", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String objects(@RequestParam(required = true) String type, @RequestParam(required = true) String key)
-			throws FailedVerificationException {
+	public void objects(HttpServletResponse response, @RequestParam(required = true) String type,
+			@RequestParam(required = true) String key) throws FailedVerificationException, IOException {
 		OpBlockChain blc = manager.getBlockchain();
-		OpObject obj;
-		if (!key.contains(",")) {
-			obj = blc.getObjectByName(type, key);
-		} else {
-			String[] keys = key.split(",");
-			obj = blc.getObjectByName(type, keys[0].trim(), keys[1].trim());
+		// several keys could be requested separated by ';'
+		List<CompoundKey> keys = new ArrayList<CompoundKey>();
+		for (String k : key.split(";")) {
+			if (!k.contains(",")) {
+				keys.add(new CompoundKey(k.trim(), null));
+			} else {
+				String[] ks = k.split(",");
+				keys.add(new CompoundKey(ks[0].trim(), ks[1].trim()));
+			}
 		}
-		ObjectsResult res = new ObjectsResult();
-		res.objects = obj == null ? Collections.emptyList() : Collections.singletonList(obj);
-		return formatter.fullObjectToJson(res);
+		Map<CompoundKey, OpObject> objs = blc.getObjectsByIds(type, keys);
+		ObjectsResultWriter res = new ObjectsResultWriter(response);
+		for (CompoundKey k : keys) {
+			OpObject obj = objs.get(k);
+			if (obj != null) {
+				res.accept(obj);
+			}
+		}
+		res.close();
 	}
 
 	@GetMapping(path = "/indices-by-type", produces = "text/json;charset=UTF-8")
@@ -366,39 +440,87 @@ public class ApiController {
 
 	@GetMapping(path = "/objects-by-index", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String objectsByIndex(@RequestParam(required = true) String type,
+	public void objectsByIndex(HttpServletResponse response, @RequestParam(required = true) String type,
 			@RequestParam(required = true) String index, @RequestParam(required = true) String key,
-			@RequestParam(required = false, defaultValue = "100") int limit) {
+			@RequestParam(required = false, defaultValue = "EQUALS") SearchType search,
+			@RequestParam(required = false, defaultValue = "100") int limit) throws IOException {
 		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
 		if (limit < 0 || limit > LIMIT_RESULTS) {
 			limit = LIMIT_RESULTS;
 		}
 		req.limit = limit;
-		ObjectsResult r = new ObjectsResult();
+		req.searchType = search;
+		// IN values and RANGE bounds (from;to) are separated by ';' as in objects-by-id
+		Object[] args = search == SearchType.IN || search == SearchType.RANGE ? key.split(";", -1) : new Object[] { key };
 		OpIndexColumn indexCol = manager.getIndex(type, index);
-		if (indexCol != null) {
-			manager.getBlockchain().fetchObjectsByIndex(type, indexCol, req, key);
-			r.objects = req.result;
+		if (indexCol == null) {
+			throw new UnsupportedOperationException();
+		}
+		ObjectsResultWriter r = new ObjectsResultWriter(response);
+		req.resultConsumer = r;
+		manager.getBlockchain().fetchObjectsByIndex(type, indexCol, req, args);
+		r.close();
+	}
+
+	@GetMapping(path = "/objects-by-bbox", produces = "text/json;charset=UTF-8")
+	@ResponseBody
+	public void objectsByBBox(HttpServletResponse response, @RequestParam(required = true) String type,
+			@RequestParam(required = false) String index, @RequestParam(required = true) String bbox,
+			@RequestParam(required = false, defaultValue = "100") int limit) throws IOException {
+		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
+		if (limit < 0 || limit > LIMIT_RESULTS) {
+			limit = LIMIT_RESULTS;
+		}
+		req.limit = limit;
+		req.searchType = SearchType.BBOX;
+		// min lon, min lat, max lon, max lat
+		String[] args = bbox.split(",");
+		if (args.length != 4) {
+			throw new IllegalArgumentException("bbox should be min lon,min lat,max lon,max lat");
+		}
+		OpIndexColumn indexCol = null;
+		if (index != null) {
+			indexCol = manager.getIndex(type, index);
 		} else {
+			for (OpIndexColumn c : manager.getIndicesForType(type)) {
+				if (c.isSpatial()) {
+					indexCol = c;
+					break;
+				}
+			}
+		}
+		if (indexCol == null || !indexCol.isSpatial()) {
 			throw new UnsupportedOperationException();
 		}
-		return formatter.fullObjectToJson(r);
+		ObjectsResultWriter r = new ObjectsResultWriter(response);
+		req.resultConsumer = r;
+		manager.getBlockchain().fetchObjectsByIndex(type, indexCol, req, (Object[]) args);
+		r.close();
 	}
 
 	@GetMapping(path = "/history", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String history(@RequestParam(required = true) String type, @RequestParam(required = false) List<String> key,
 			@RequestParam(required = false, defaultValue = "100") int limit,
-			@RequestParam(required = true) String sort) {
+			@RequestParam(required = true) String sort,
+			@RequestParam(required = false) String continuation, HttpServletResponse response) {
 		if (!historyManager.isRunning()) {
 			return "{}";
 		}
+		if (limit == 0) {
+			// empty page has no continuation
+			throw new IllegalArgumentException("History limit should be positive: " + limit);
+		}
 		if (limit < 0 || limit > LIMIT_RESULTS) {
 			limit = LIMIT_RESULTS;
 		}
 		HistoryObjectRequest historyObjectRequest = new HistoryObjectRequest(type, key, limit, sort);
+		historyObjectRequest.continuation = continuation;
 		historyManager.retrieveHistory(historyObjectRequest);
-
+		if (historyObjectRequest.nextContinuation != null) {
+			// token for the next page, passed back as continuation parameter
+			response.setHeader(HISTORY_CONTINUATION_HEADER, historyObjectRequest.nextContinuation);
+		}
 		return formatter.fullObjectToJson(historyObjectRequest.historySearchResult);
 	}
 
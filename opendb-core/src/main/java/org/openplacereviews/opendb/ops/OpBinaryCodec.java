@@ -0,0 +1,301 @@
+package org.openplacereviews.opendb.ops;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.openplacereviews.opendb.util.OUtils;
+
+/**
+ * Compact binary encoding of objects, operations and blocks used for db storage and replication.
+ * Decoded objects have exactly same fields (same java types as after json parsing) as encoded ones,
+ * so json used for hashing is the same.
+ *
+ * Format: version byte, then tagged values. Integers are zigzag varints, strings are utf-8
+ * and short strings (field names, types, ids) are written once per message and later referenced by index.
+ * Operation is encoded as type, fields, created objects, edited objects. Block is fields and operations.
+ */
+public class OpBinaryCodec {
+
+	public static final String MEDIA_TYPE = "application/x-opendb-binary";
+
+	private static final int VERSION = 1;
+
+	private static final int T_NULL = 0;
+	private static final int T_FALSE = 1;
+	private static final int T_TRUE = 2;
+	private static final int T_LONG = 3;
+	private static final int T_DOUBLE = 4;
+	private static final int T_STRING = 5;
+	private static final int T_STRING_REF = 6;
+	private static final int T_LIST = 7;
+	private static final int T_MAP = 8;
+
+	private static final int MAX_INTERNED_STRING = 64;
+
+	public static byte[] encode(OpObject obj) {
+		Writer w = new Writer();
+		w.writeFields(obj.fields);
+		return w.toByteArray();
+	}
+
+	public static byte[] encode(OpOperation op) {
+		Writer w = new Writer();
+		w.writeOperation(op);
+		return w.toByteArray();
+	}
+
+	public static byte[] encode(OpBlock block) {
+		Writer w = new Writer();
+		w.writeFields(block.fields);
+		w.writeVarint(block.operations.size());
+		for (OpOperation op : block.operations) {
+			w.writeOperation(op);
+		}
+		return w.toByteArray();
+	}
+
+	public static OpObject decodeObject(byte[] bytes) {
+		Reader r = new Reader(bytes);
+		OpObject obj = new OpObject();
+		obj.fields = r.readFields();
+		return obj;
+	}
+
+	public static OpOperation decodeOperation(byte[] bytes) {
+		Reader r = new Reader(bytes);
+		return r.readOperation();
+	}
+
+	public static OpBlock decodeBlock(byte[] bytes) {
+		Reader r = new Reader(bytes);
+		OpBlock block = new OpBlock();
+		block.fields = r.readFields();
+		int sz = r.readVarint();
+		for (int i = 0; i < sz; i++) {
+			block.operations.add(r.readOperation());
+		}
+		return block;
+	}
+
+	private static class Writer {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		Writer() {
+			out.write(VERSION);
+		}
+
+		void writeOperation(OpOperation op) {
+			writeString(op.type == null ? "" : op.type);
+			writeFields(op.fields);
+			writeVarint(op.getCreated().size());
+			for (OpObject o : op.getCreated()) {
+				writeFields(o.fields);
+			}
+			writeVarint(op.getEdited().size());
+			for (OpObject o : op.getEdited()) {
+				writeFields(o.fields);
+			}
+		}
+
+		void writeFields(Map<String, Object> fields) {
+			writeVarint(fields.size());
+			for (Entry<String, Object> e : fields.entrySet()) {
+				writeString(e.getKey());
+				writeValue(e.getValue());
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		void writeValue(Object o) {
+			if (o == null) {
+				out.write(T_NULL);
+			} else if (o instanceof Boolean) {
+				out.write(((Boolean) o) ? T_TRUE : T_FALSE);
+			} else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+				out.write(T_LONG);
+				long v = ((Number) o).longValue();
+				writeVarlong((v << 1) ^ (v >> 63));
+			} else if (o instanceof Number) {
+				out.write(T_DOUBLE);
+				long v = Double.doubleToLongBits(((Number) o).doubleValue());
+				for (int i = 56; i >= 0; i -= 8) {
+					out.write((int) (v >>> i));
+				}
+			} else if (o instanceof String) {
+				writeString((String) o);
+			} else if (o instanceof List) {
+				List<Object> l = (List<Object>) o;
+				out.write(T_LIST);
+				writeVarint(l.size());
+				for (Object v : l) {
+					writeValue(v);
+				}
+			} else if (o instanceof Map) {
+				out.write(T_MAP);
+				writeFields((Map<String, Object>) o);
+			} else {
+				throw new IllegalArgumentException("Unsupported value type: " + o.getClass());
+			}
+		}
+
+		void writeString(String s) {
+			Integer ref = strings.get(s);
+			if (ref != null) {
+				out.write(T_STRING_REF);
+				writeVarint(ref);
+				return;
+			}
+			if (s.length() <= MAX_INTERNED_STRING) {
+				strings.put(s, strings.size());
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			out.write(T_STRING);
+			writeVarint(b.length);
+			out.write(b, 0, b.length);
+		}
+
+		void writeVarint(int v) {
+			writeVarlong(v & 0xffffffffL);
+		}
+
+		void writeVarlong(long v) {
+			while ((v & ~0x7fL) != 0) {
+				out.write((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			out.write((int) v);
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+
+	private static class Reader {
+		private final byte[] b;
+		private int pos;
+		private final List<String> strings = new ArrayList<String>();
+
+		Reader(byte[] b) {
+			this.b = b;
+			int v = readByte();
+			if (v != VERSION) {
+				throw new IllegalArgumentException("Unsupported binary format version: " + v);
+			}
+		}
+
+		OpOperation readOperation() {
+			OpOperation op = new OpOperation();
+			op.type = readString(readByte());
+			op.fields = readFields();
+			int created = readVarint();
+			for (int i = 0; i < created; i++) {
+				OpObject o = new OpObject();
+				o.fields = readFields();
+				op.addCreated(o);
+			}
+			int edited = readVarint();
+			for (int i = 0; i < edited; i++) {
+				OpObject o = new OpObject();
+				o.fields = readFields();
+				op.addEdited(o);
+			}
+			return op;
+		}
+
+		TreeMap<String, Object> readFields() {
+			TreeMap<String, Object> fields = new TreeMap<String, Object>();
+			int sz = readVarint();
+			for (int i = 0; i < sz; i++) {
+				String key = readString(readByte());
+				fields.put(key, readValue());
+			}
+			return fields;
+		}
+
+		Object readValue() {
+			int tag = readByte();
+			switch (tag) {
+			case T_NULL:
+				return null;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_LONG:
+				long v = readVarlong();
+				return (v >>> 1) ^ -(v & 1);
+			case T_DOUBLE:
+				long d = 0;
+				for (int i = 0; i < 8; i++) {
+					d = (d << 8) | readByte();
+				}
+				return Double.longBitsToDouble(d);
+			case T_STRING:
+			case T_STRING_REF:
+				return readString(tag);
+			case T_LIST:
+				int sz = readVarint();
+				List<Object> l = new ArrayList<Object>(sz);
+				for (int i = 0; i < sz; i++) {
+					l.add(readValue());
+				}
+				return l;
+			case T_MAP:
+				return readFields();
+			default:
+				throw new IllegalArgumentException("Unknown tag " + tag + " at " + (pos - 1));
+			}
+		}
+
+		String readString(int tag) {
+			if (tag == T_STRING_REF) {
+				return strings.get(readVarint());
+			}
+			if (tag != T_STRING) {
+				throw new IllegalArgumentException("Expected string at " + (pos - 1));
+			}
+			int len = readVarint();
+			if (len < 0 || pos + len > b.length) {
+				throw new IllegalArgumentException("Wrong string length " + len + " at " + pos);
+			}
+			String s = new String(b, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			if (s.length() <= MAX_INTERNED_STRING) {
+				s = OUtils.intern(s);
+				strings.add(s);
+			}
+			return s;
+		}
+
+		int readVarint() {
+			return (int) readVarlong();
+		}
+
+		long readVarlong() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int bt = readByte();
+				v |= (long) (bt & 0x7f) << shift;
+				if ((bt & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint at " + pos);
+		}
+
+		int readByte() {
+			if (pos >= b.length) {
+				throw new IllegalArgumentException("Unexpected end of data");
+			}
+			return b[pos++] & 0xff;
+		}
+	}
+}
@@ -14,6 +14,7 @@ import static org.openplacereviews.opendb.ops.OpOperation.F_REF;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,6 +27,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
@@ -54,7 +56,9 @@ import org.openplacereviews.opendb.util.exception.FailedVerificationException;
  *      - atomicCreateBlockFromAllOps / createBlock - combines queue operations into a block
  *      - atomicRebaseOperations / atomicRemoveOperation / rebaseOperations -
  *      		rebase operations to new parent, used to change parent for blockchain queue and delete ops from queue already present in new parent
- *      - atomicSetParent / changeToEqualParent - simple set new parent object which represents exactly same chain as previous parent, used to compact chain
+ *      - atomicSetParent / changeToEqualParent - simple set new parent object which represents exactly same chain as previous parent
+ *      - createCopyWithEqualParent - same as changeToEqualParent but creates new chain object, used to compact published chain
+ *      		(objects index of descendants is not rebuilt by changeToEqualParent, so it's used only for chains without children)
  *
  */
 public class OpBlockChain {
@@ -65,6 +69,8 @@ public class OpBlockChain {
 	public static final String OP_CHANGE_APPENDMANY = "appendmany";
 	public static final String OP_CHANGE_SET = "set";
 
+	// pseudo type of operation itself in read / write sets of operation
+	private static final String OP_OPERATION_KEY = "#op";
 	private static final String OP_CHANGE_TEMPDELETE_OBJ = "45de018e-46b0-4889-9745-71aa807ce8ff-x1openplacereviews";
 
 	public static final int LOCKED_ERROR = -1; // means it is locked and there was unrecoverable error during atomic operation
@@ -91,12 +97,16 @@ public class OpBlockChain {
 	private final OpPrivateBlocksList blocks;
 
 	// 3. stores information about last object by name in this blockchain
-	private final Map<String, OpPrivateObjectInstancesById> objByName = new ConcurrentHashMap<>();
+	private final Map<String, OpPrivateObjectInstancesById> objByName;
 
 	// 4. operations to be stored like a queue
-	private final Deque<OpOperation> queueOperations = new ConcurrentLinkedDeque<OpOperation>();
+	private final Deque<OpOperation> queueOperations;
+	private final OpPrivateQueueTotals queueTotals;
 
-	private final Map<String, OpOperation> blockOperations = new ConcurrentHashMap<>();
+	private final Map<String, OpOperation> blockOperations;
+
+	// 5. flattened index of latest object versions for runtime superblocks (null for db superblocks)
+	private volatile OpPrivateObjectsIndex objIndex;
 	
 
 	private OpBlockChain(boolean nullParent) {
@@ -105,6 +115,10 @@ public class OpBlockChain {
 		locked = LOCKED_STATE;
 		this.dbAccess = null;
 		this.blocks = new OpPrivateBlocksList();
+		this.objByName = new ConcurrentHashMap<>();
+		this.queueOperations = new ConcurrentLinkedDeque<OpOperation>();
+		this.queueTotals = new OpPrivateQueueTotals();
+		this.blockOperations = new ConcurrentHashMap<>();
 	}
 
 	public OpBlockChain(OpBlockChain parent, OpBlockchainRules rules) {
@@ -115,6 +129,10 @@ public class OpBlockChain {
 		this.nullObject = false;
 		this.dbAccess = null;
 		this.blocks = new OpPrivateBlocksList();
+		this.objByName = new ConcurrentHashMap<>();
+		this.queueOperations = new ConcurrentLinkedDeque<OpOperation>();
+		this.queueTotals = new OpPrivateQueueTotals();
+		this.blockOperations = new ConcurrentHashMap<>();
 		atomicSetParent(parent);
 	}
 
@@ -129,6 +147,10 @@ public class OpBlockChain {
 		this.nullObject = false;
 		this.dbAccess = dbAccess;
 		this.blocks = new OpPrivateBlocksList(headers, parent.getSuperblocksDepth() + 1, this.dbAccess);
+		this.objByName = new ConcurrentHashMap<>();
+		this.queueOperations = new ConcurrentLinkedDeque<OpOperation>();
+		this.queueTotals = new OpPrivateQueueTotals();
+		this.blockOperations = new ConcurrentHashMap<>();
 		atomicSetParent(parent);
 	}
 
@@ -137,6 +159,10 @@ public class OpBlockChain {
 		this.nullObject = false;
 		this.blocks = new OpPrivateBlocksList();
 		this.dbAccess = null;
+		this.objByName = new ConcurrentHashMap<>();
+		this.queueOperations = new ConcurrentLinkedDeque<OpOperation>();
+		this.queueTotals = new OpPrivateQueueTotals();
+		this.blockOperations = new ConcurrentHashMap<>();
 		if(parentToMerge == null || parentToMerge.isNullBlock() || copy.parent != parentToMerge) {
 			throw new IllegalStateException("Wrong parameters to create object with merged parents");
 		}
@@ -147,6 +173,40 @@ public class OpBlockChain {
 		copyAndMergeWithParent(copy, parentToMerge);
 	}
 
+	private OpBlockChain(OpBlockChain copy, OpBlockChain newParent) {
+		this.rules = copy.rules;
+		this.nullObject = false;
+		this.dbAccess = copy.dbAccess;
+		if (copy.locked == LOCKED_STATE) {
+			// content of locked chain is immutable and could be shared
+			this.blocks = copy.blocks;
+			this.objByName = copy.objByName;
+			this.queueOperations = copy.queueOperations;
+			this.queueTotals = copy.queueTotals;
+			this.blockOperations = copy.blockOperations;
+		} else {
+			if (copy.isDbAccessed()) {
+				throw new IllegalStateException("Db superblock should be locked");
+			}
+			this.blocks = new OpPrivateBlocksList();
+			this.objByName = new ConcurrentHashMap<>();
+			this.queueOperations = new ConcurrentLinkedDeque<OpOperation>();
+			this.queueTotals = new OpPrivateQueueTotals();
+			this.blockOperations = new ConcurrentHashMap<>();
+			blocks.copyAndMerge(copy.blocks, new OpPrivateBlocksList(), newParent.getSuperblocksDepth() + 1);
+			for (String type : copy.objByName.keySet()) {
+				getOrCreateObjectsByIdMap(type).putObjects(copy.objByName.get(type), true);
+			}
+			blockOperations.putAll(copy.blockOperations);
+			queueOperations.addAll(copy.queueOperations);
+			for (OpOperation o : queueOperations) {
+				queueTotals.add(o, rules.getFormatter());
+			}
+		}
+		atomicSetParent(newParent);
+		this.locked = copy.locked;
+	}
+
 	public synchronized void validateLocked() {
 		if(nullObject) {
 			return;
@@ -203,7 +263,13 @@ public class OpBlockChain {
 	}
 
 	public synchronized OpBlock createBlock(String user, KeyPair keyPair) throws FailedVerificationException {
-		OpBlock block = rules.createAndSignBlock(getQueueOperations(), getLastBlockHeader(), user, keyPair);
+		OpBlock block;
+		if (queueTotals.isAccounted(queueOperations)) {
+			block = rules.createAndSignBlock(queueOperations, getLastBlockHeader(), queueTotals.getMerkleTreeHash(),
+					queueTotals.getSigMerkleTreeHash(), user, keyPair);
+		} else {
+			block = rules.createAndSignBlock(queueOperations, getLastBlockHeader(), user, keyPair);
+		}
 		validateIsUnlocked();
 		boolean valid = rules.validateBlock(this, block, getLastBlockHeader(), true);
 		if(!valid) {
@@ -233,6 +299,8 @@ public class OpBlockChain {
 		try {
 			objByName.clear();
 			queueOperations.clear();
+			queueTotals.clear();
+			atomicRebuildObjectsIndex();
 			locked = UNLOCKED;
 		} finally {
 			if (locked == LOCKED_OP_IN_PROGRESS) {
@@ -309,6 +377,56 @@ public class OpBlockChain {
 		return true;
 	}
 
+	/**
+	 * Copy-on-write version of rebaseOperations: current object is not changed,
+	 * so it stays consistent for readers till new object is published.
+	 * Returns null if rebase is not possible.
+	 */
+	public synchronized OpBlockChain createRebasedCopy(OpBlockChain newParent) {
+		validateIsUnlocked();
+		newParent.validateLocked();
+		if (!newParent.isQueueEmpty()) {
+			return null;
+		}
+		for (OpBlock bl : blocks.getAllBlockHeaders()) {
+			if (newParent.getBlockDepth(bl) < 0) {
+				return null;
+			}
+		}
+		OpBlock lb = parent.getLastBlockHeader();
+		if (lb != null && newParent.getBlockDepth(lb) == -1) {
+			return null;
+		}
+		OpBlockChain blc = new OpBlockChain(newParent, rules);
+		for (OpOperation o : queueOperations) {
+			if (newParent.getOperationByHash(o.getRawHash()) == null) {
+				LocalValidationCtx validationCtx = new LocalValidationCtx("<queue>", 0);
+				blc.validateAndPrepareOperation(o, validationCtx, null);
+				blc.atomicAddOperationAfterPrepare(o, validationCtx, true);
+			}
+		}
+		return blc;
+	}
+
+	/**
+	 * Copy-on-write version of changeToEqualParent: returns new chain object with same content on top of
+	 * new parent which represents exactly same chain (saved or compacted parent), this object is not modified,
+	 * so readers which pinned it are not affected. Returns null if parents are not equal or chain is in wrong state.
+	 */
+	public synchronized OpBlockChain createCopyWithEqualParent(OpBlockChain newParent) {
+		if (nullObject) {
+			return null;
+		}
+		newParent.validateLocked();
+		if (!OUtils.equals(newParent.getLastBlockFullHash(), parent.getLastBlockFullHash())) {
+			return null;
+		}
+		if (locked != LOCKED_STATE && locked != UNLOCKED) {
+			return null;
+		}
+		return new OpBlockChain(this, newParent);
+	}
+
 	public synchronized boolean changeToEqualParent(OpBlockChain newParent) {
 		if(nullObject) {
 			return false;
@@ -369,32 +487,163 @@ public class OpBlockChain {
 		return valid;
 	}
 
+	/**
+	 * Adds list of operations in order (same result as addOperation one by one).
+	 * Operations which don't depend on previous operations of the list are validated in parallel
+	 * against current state: operation depends on previous one if it reads object (edit, delete, ref, create)
+	 * modified by previous one or if any previous operation is system operation (could change rules, roles, logins).
+	 * Dependent operations are validated serially after all previous operations are added.
+	 * Chain must not be modified by other threads while operations are added.
+	 */
+	public boolean addOperations(List<OpOperation> ops, DeletedObjectCtx historyObjectCtx) {
+		validateIsUnlocked();
+		Metric m = mAddOpsSpeculative.start();
+		List<SpeculativeOperation> sops = new ArrayList<SpeculativeOperation>(ops.size());
+		Set<String> modified = new HashSet<String>();
+		boolean sysOpAdded = false;
+		for (OpOperation o : ops) {
+			o.checkImmutable();
+			SpeculativeOperation so = new SpeculativeOperation(o);
+			so.dependent = sysOpAdded || !Collections.disjoint(getOperationReadSet(o), modified);
+			modified.addAll(getOperationWriteSet(o));
+			sysOpAdded |= o.getType().startsWith(OpBlockchainRules.OP_TYPE_SYS);
+			sops.add(so);
+		}
+		sops.parallelStream().filter(so -> !so.dependent).forEach(so -> {
+			LocalValidationCtx validationCtx = new LocalValidationCtx("", 0);
+			try {
+				so.valid = validateAndPrepareOperation(so.op, validationCtx, null);
+			} catch (RuntimeException e) {
+				so.error = e;
+			}
+			validationCtx.prefetchedObjs.clear();
+			so.validationCtx = validationCtx;
+		});
+		m.capture();
+		for (SpeculativeOperation so : sops) {
+			if (so.dependent) {
+				mAddOpsConflict.start().capture();
+				if (!addOperation(so.op, historyObjectCtx)) {
+					return false;
+				}
+			} else if (!addPreparedOperation(so, historyObjectCtx)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized boolean addPreparedOperation(SpeculativeOperation so, DeletedObjectCtx historyObjectCtx) {
+		validateIsUnlocked();
+		if (so.error != null) {
+			throw so.error;
+		}
+		if (!so.valid) {
+			return false;
+		}
+		if (historyObjectCtx != null) {
+			for (OpObject deleted : so.validationCtx.deletedObjsCache) {
+				historyObjectCtx.putObjectToDeleteCache(so.op.getHash(), deleted);
+			}
+		}
+		locked = LOCKED_OP_IN_PROGRESS;
+		try {
+			atomicAddOperationAfterPrepare(so.op, so.validationCtx, true);
+			locked = UNLOCKED;
+		} finally {
+			if(locked == LOCKED_OP_IN_PROGRESS) {
+				locked = LOCKED_ERROR;
+			}
+		}
+		return true;
+	}
+
+	// objects which validation of operation depends on
+	private Set<String> getOperationReadSet(OpOperation u) {
+		Set<String> keys = getOperationWriteSet(u);
+		Map<String, List<String>> refs = u.getRef();
+		if (refs != null) {
+			for (List<String> refObjName : refs.values()) {
+				if (refObjName.size() > 1) {
+					keys.add(getOperationObjKey(refObjName.get(0), refObjName.subList(1, refObjName.size())));
+				}
+			}
+		}
+		return keys;
+	}
+
+	// objects which are changed by operation
+	private Set<String> getOperationWriteSet(OpOperation u) {
+		Set<String> keys = new HashSet<String>();
+		// same operation twice in a list is dependent even if it changes only objects without id
+		keys.add(getOperationObjKey(OP_OPERATION_KEY, Collections.singletonList(u.getRawHash())));
+		for (List<String> id : u.getDeleted()) {
+			keys.add(getOperationObjKey(u.getType(), id));
+		}
+		for (OpObject o : u.getEdited()) {
+			keys.add(getOperationObjKey(u.getType(), o.getId()));
+		}
+		for (OpObject o : u.getCreated()) {
+			// objects without id get unique id from operation hash
+			if (!o.getId().isEmpty()) {
+				keys.add(getOperationObjKey(u.getType(), o.getId()));
+			}
+		}
+		List<String> vote = u.getRef() == null ? null : u.getRef().get(F_VOTE);
+		if (vote != null && vote.size() > 1) {
+			keys.add(getOperationObjKey(vote.get(0), vote.subList(1, vote.size())));
+		}
+		return keys;
+	}
+
+	private String getOperationObjKey(String type, List<String> id) {
+		return type + ":" + id;
+	}
+
 	public void atomicAddOperationAfterPrepare(OpOperation u, LocalValidationCtx validationCtx, boolean add) {
 		List<List<String>> deletedRefs = u.getDeleted();
 		String objType = u.getType();
 		for (List<String> deletedRef : deletedRefs) {
-			OpPrivateObjectInstancesById oinf = getOrCreateObjectsByIdMap(objType);
 			OpObject dl = new OpObject(true);
 			dl.setParentOp(u.getType(), u.getRawHash());
-			oinf.add(deletedRef, dl);
+			atomicPutObject(objType, deletedRef, dl);
 		}
 		if (add) {
 			queueOperations.add(u);
+			queueTotals.add(u, rules.getFormatter());
 		}
 		for (OpObject editedOpOpbject : validationCtx.newObjsCache.keySet()) {
-			OpPrivateObjectInstancesById oinf = getOrCreateObjectsByIdMap(objType);
-			oinf.add(editedOpOpbject.getId(), editedOpOpbject);
+			atomicPutObject(objType, editedOpOpbject.getId(), editedOpOpbject);
 		}
 		if (u.getRef() != null && u.getRef().get(F_VOTE) != null) {
 			OpObject voteObj = validationCtx.refObjsCache.get(F_VOTE);
 			if (voteObj != null && voteObj.getStringValue(F_SUBMITTED_OP_HASH).equals(u.getRawHash())) {
-				OpPrivateObjectInstancesById oinf = getOrCreateObjectsByIdMap(OP_VOTE);
-				oinf.add(voteObj.getId(), voteObj);
+				atomicPutObject(OP_VOTE, voteObj.getId(), voteObj);
 			}
 		}
 		
 	}
 
+	private void atomicPutObject(String type, List<String> id, OpObject obj) {
+		CompoundKey k = new CompoundKey(0, id);
+		getOrCreateObjectsByIdMap(type).add(k, obj);
+		OpPrivateObjectsIndex ind = objIndex;
+		if (ind != null) {
+			ind.putOwner(type, k, this);
+		}
+	}
+
+	private void atomicRebuildObjectsIndex() {
+		if (nullObject || dbAccess != null) {
+			objIndex = null;
+			return;
+		}
+		// parent is locked, so maps of its index could be safely shared
+		OpPrivateObjectsIndex ind = OpPrivateObjectsIndex.create(parent, parent.objIndex);
+		ind.putOwners(this);
+		objIndex = ind;
+	}
+
 	private void atomicSetParent(OpBlockChain parent) {
 		if (!parent.isNullBlock()) {
 			if (this.rules != parent.rules) {
@@ -406,6 +655,7 @@ public class OpBlockChain {
 			throw new IllegalStateException("Parent chain doesn't allow to have operations");
 		}
 		this.parent = parent;
+		atomicRebuildObjectsIndex();
 	}
 
 	private void atomicCreateBlockFromAllOps(OpBlock block) {
@@ -416,6 +666,7 @@ public class OpBlockChain {
 			blockOperations.put(o.getRawHash(), o);
 		}
 		queueOperations.clear();
+		queueTotals.clear();
 		OpBlock blockHeader = OpBlock.createHeader(block, rules);
 		blocks.addBlock(block, blockHeader, getSuperblocksDepth());
 
@@ -427,7 +678,9 @@ public class OpBlockChain {
 		blocks.clear();
 		blockOperations.clear();
 		queueOperations.clear();
+		queueTotals.clear();
 		objByName.clear();
+		atomicRebuildObjectsIndex();
 		Iterator<OpOperation> it = ops.iterator();
 		while(it.hasNext()) {
 			OpOperation o = it.next();
@@ -468,12 +721,32 @@ public class OpBlockChain {
 
 		queueOperations.addAll(copy.queueOperations);
 		queueOperations.addAll(parent.queueOperations);
+		for (OpOperation o : queueOperations) {
+			queueTotals.add(o, rules.getFormatter());
+		}
+
+		// 4. all merged objects are owned by this superblock now
+		atomicRebuildObjectsIndex();
 	}
 
 	public Deque<OpOperation> getQueueOperations() {
 		return queueOperations;
 	}
 
+	/**
+	 * Amount of operations in queue, O(1) unlike getQueueOperations().size()
+	 */
+	public int getQueueSize() {
+		return queueTotals.getOpsCount();
+	}
+
+	/**
+	 * Sum of json sizes of operations in queue
+	 */
+	public long getQueueJsonSize() {
+		return queueTotals.getJsonSize();
+	}
+
 
 	public OpBlockChain getParent() {
 		return parent;
@@ -540,6 +813,14 @@ public class OpBlockChain {
 		return objByName.keySet();
 	}
 
+	Collection<OpPrivateObjectInstancesById> getRuntimeObjectsById() {
+		return objByName.values();
+	}
+
+	/**
+	 * Stream of db superblock holds db connection with open cursor till it is read to the end,
+	 * so stream must be closed (try-with-resources) if it could be left unread.
+	 */
 	public Stream<Entry<CompoundKey, OpObject>> getRawSuperblockObjects(String type) {
 		OpPrivateObjectInstancesById bid = getOrCreateObjectsByIdMap(type);
 		return bid.getRawObjects();
@@ -660,13 +941,33 @@ public class OpBlockChain {
 	}
 
 	public OpObject getObjectByName(String type, String key, String secondary) throws DBStaleException {
+		return getObjectByKey(type, new CompoundKey(key, secondary));
+	}
+
+	public OpObject getObjectByName(String type, List<String> o) throws DBStaleException {
+		return getObjectByKey(type, new CompoundKey(0, o));
+	}
+
+	private OpObject getObjectByKey(String type, CompoundKey k) throws DBStaleException {
 		if (isNullBlock()) {
 			return null;
 		}
+		OpPrivateObjectsIndex ind = objIndex;
+		if (ind != null) {
+			// runtime superblocks are resolved with 1 lookup in flattened index
+			Metric m = mFetchById.start();
+			OpBlockChain owner = ind.getOwner(type, k);
+			OpObject obj = owner == null ? null : owner.getOrCreateObjectsByIdMap(type).getByKey(k, true);
+			m.capture();
+			if (obj != null) {
+				return obj.isDeleted() ? null : obj;
+			}
+			return ind.getDbParent().getObjectByKey(type, k);
+		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
 			Metric m = mFetchById.start();
-			OpObject obj = ot.getObjectById(key, secondary);
+			OpObject obj = ot.getByKey(k, true);
 			m.capture();
 			if (obj != null) {
 				if (obj.isDeleted()) {
@@ -675,26 +976,56 @@ public class OpBlockChain {
 				return obj;
 			}
 		}
-		return parent.getObjectByName(type, key, secondary);
+		return parent.getObjectByKey(type, k);
 	}
 
-	public OpObject getObjectByName(String type, List<String> o) throws DBStaleException {
-		if (isNullBlock()) {
-			return null;
+	/**
+	 * Resolves objects by keys with 1 batch lookup per superblock.
+	 * Keys which are not found or deleted are not present in result.
+	 */
+	public Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys) throws DBStaleException {
+		Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+		fetchObjectsByIds(type, new HashSet<CompoundKey>(keys), res);
+		return res;
+	}
+
+	// keys are removed from set as soon as they are resolved
+	private void fetchObjectsByIds(String type, Set<CompoundKey> keys, Map<CompoundKey, OpObject> res) throws DBStaleException {
+		if (isNullBlock() || keys.isEmpty()) {
+			return;
+		}
+		OpPrivateObjectsIndex ind = objIndex;
+		if (ind != null) {
+			Metric m = mFetchById.start();
+			Iterator<CompoundKey> it = keys.iterator();
+			while (it.hasNext()) {
+				CompoundKey k = it.next();
+				OpBlockChain owner = ind.getOwner(type, k);
+				OpObject obj = owner == null ? null : owner.getOrCreateObjectsByIdMap(type).getByKey(k, true);
+				if (obj != null) {
+					it.remove();
+					if (!obj.isDeleted()) {
+						res.put(k, obj);
+					}
+				}
+			}
+			m.capture();
+			ind.getDbParent().fetchObjectsByIds(type, keys, res);
+			return;
 		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
 			Metric m = mFetchById.start();
-			OpObject obj = ot.getObjectById(o);
+			Map<CompoundKey, OpObject> found = ot.getByKeys(keys);
 			m.capture();
-			if (obj != null) {
-				if (obj.isDeleted()) {
-					return null;
+			for (Entry<CompoundKey, OpObject> e : found.entrySet()) {
+				keys.remove(e.getKey());
+				if (!e.getValue().isDeleted()) {
+					res.put(e.getKey(), e.getValue());
 				}
-				return obj;
 			}
 		}
-		return parent.getObjectByName(type, o);
+		parent.fetchObjectsByIds(type, keys, res);
 	}
 
 	public void setCacheAfterSearch(ObjectsSearchRequest request, Object cacheObject) {
@@ -731,8 +1062,7 @@ public class OpBlockChain {
 					return request;
 				}
 			}
-			Map<CompoundKey, OpObject> res = fetchObjectsInternal(type, request, null);
-			request.setResult(res);
+			fetchObjectsInternal(type, request, null);
 		}
 		m.capture();
 		return request;
@@ -741,56 +1071,58 @@ public class OpBlockChain {
 	
 	public void fetchObjectsByIndex(String type, OpIndexColumn index, ObjectsSearchRequest request, Object... argsToSearch) throws DBStaleException {
 		Metric m = PerformanceMetrics.i().getMetric("blc.fetch." + index.getIndexId() + ".total").start();
-		Map<CompoundKey, OpObject> res = fetchObjectsInternal(type, request, index, argsToSearch);
-		request.setResult(res);
+		fetchObjectsInternal(type, request, index, argsToSearch);
 		m.capture();
 	}
 	
 
-	private Map<CompoundKey, OpObject> fetchObjectsInternal(String type, ObjectsSearchRequest request, OpIndexColumn col, Object... args) throws DBStaleException {
-		Map<CompoundKey, OpObject> res = new LinkedHashMap<>();
-		if(isNullBlock()) {
-			return res;
-		}
-		String mid = "blc.fetch." + (col == null ? "all" : col.getIndexId());
-		mid += isDbAccessed()?  ".db" : ".ram";
-		Metric m = PerformanceMetrics.i().getMetric(mid).start();
-		OpPrivateObjectInstancesById o = getOrCreateObjectsByIdMap(type);
-		// don't check for all queries
-		if (o != null) {
-			Stream<Entry<CompoundKey, OpObject>> stream = o.fetchObjects(request, getSuperblockSize(), col, args);
-			Iterator<Entry<CompoundKey, OpObject>> it = stream.iterator();
-			while (it.hasNext()) {
-				Entry<CompoundKey, OpObject> e = it.next();
-				res.put(e.getKey(), e.getValue());
-				request.internalProgress++;
-				if (request.limit >= 0 && request.internalProgress >= request.limit) {
-					m.capture();
-					return res;
-				}
+	/**
+	 * Merges objects of superblocks top-down and adds them to request as soon as they are read.
+	 * Result order is newest superblock first: objects of this superblock go first, then objects of parent
+	 * which are not overridden by newer superblocks and so on (inside superblock latest version goes first).
+	 * Every superblock stream returns single (latest) version of the key, versions shadowed by upper superblocks
+	 * are detected by probing upper superblocks by key, so no keys are kept in memory.
+	 */
+	private void fetchObjectsInternal(String type, ObjectsSearchRequest request, OpIndexColumn col, Object... args) throws DBStaleException {
+		List<OpPrivateObjectInstancesById> upperLevels = new ArrayList<OpPrivateObjectInstancesById>();
+		OpBlockChain blc = this;
+		while (!blc.isNullBlock()) {
+			if (request.limit >= 0 && request.internalProgress >= request.limit) {
+				return;
 			}
-		}
-		m.capture();
-		// capture parent results
-		Map<CompoundKey, OpObject> prres = parent.fetchObjectsInternal(type, request, col, args);
-		// HERE we need to check that newer version doesn't exist in current blockchain
-		prres.putAll(res);
-		if (col != null) {
-			Iterator<Entry<CompoundKey, OpObject>> it = prres.entrySet().iterator();
-			while(it.hasNext()) {
-				Entry<CompoundKey, OpObject> entry = it.next();
-				CompoundKey c = entry.getKey();
-				if(!res.containsKey(c)) {
-					OpObject i = o.getByKey(c, false);
-					if (i != null) {
-						// object was overridden
-						it.remove();
+			String mid = "blc.fetch." + (col == null ? "all" : col.getIndexId());
+			mid += blc.isDbAccessed() ? ".db" : ".ram";
+			Metric m = PerformanceMetrics.i().getMetric(mid).start();
+			OpPrivateObjectInstancesById o = blc.getOrCreateObjectsByIdMap(type);
+			// db streams hold cursor till they are closed
+			try (Stream<Entry<CompoundKey, OpObject>> stream = o.fetchObjects(request, blc.getSuperblockSize(), col, args)) {
+				Iterator<Entry<CompoundKey, OpObject>> it = stream.iterator();
+				while (it.hasNext()) {
+					Entry<CompoundKey, OpObject> e = it.next();
+					CompoundKey c = e.getKey();
+					// newer version (even if it doesn't match index search anymore) is in upper superblock
+					if (isOverridden(upperLevels, c)) {
+						continue;
+					}
+					if (request.addResult(c, e.getValue()) && request.limit >= 0 && request.internalProgress >= request.limit) {
+						m.capture();
+						return;
 					}
 				}
 			}
+			m.capture();
+			upperLevels.add(o);
+			blc = blc.parent;
 		}
-		res = prres;
-		return res;
+	}
+
+	private static boolean isOverridden(List<OpPrivateObjectInstancesById> upperLevels, CompoundKey c) throws DBStaleException {
+		for (OpPrivateObjectInstancesById u : upperLevels) {
+			if (u.getByKey(c, false) != null) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	private OpPrivateObjectInstancesById getOrCreateObjectsByIdMap(String type) {
@@ -852,7 +1184,10 @@ public class OpBlockChain {
 		u.updateObjectsRef();
 		boolean valid = true;
 		ctx.ids.clear();
-		Metric m = mPrepareDelete.start();
+		Metric m = mPrepareFetch.start();
+		prefetchObjects(u, ctx);
+		m.capture();
+		m = mPrepareDelete.start();
 		valid = prepareDeletedObjects(u, ctx, hctx);
 		m.capture();
 		if (!valid) {
@@ -888,6 +1223,57 @@ public class OpBlockChain {
 		return true;
 	}
 
+	// resolves all objects needed by operation with 1 batch per type
+	private void prefetchObjects(OpOperation u, LocalValidationCtx ctx) {
+		ctx.prefetchedObjs.clear();
+		Map<String, Set<CompoundKey>> keys = new HashMap<String, Set<CompoundKey>>();
+		for (List<String> id : u.getDeleted()) {
+			addPrefetchKey(keys, u.getType(), id);
+		}
+		for (OpObject editObject : u.getEdited()) {
+			addPrefetchKey(keys, u.getType(), editObject.getId());
+		}
+		Map<String, List<String>> refs = u.getRef();
+		if (refs != null) {
+			for (List<String> refObjName : refs.values()) {
+				if (refObjName.size() > 1) {
+					addPrefetchKey(keys, refObjName.get(0), refObjName.subList(1, refObjName.size()));
+				}
+			}
+		}
+		addPrefetchKey(keys, OpBlockchainRules.OP_OPERATION, Collections.singletonList(u.getType()));
+		for (Entry<String, Set<CompoundKey>> e : keys.entrySet()) {
+			Map<CompoundKey, OpObject> found = getObjectsByIds(e.getKey(), e.getValue());
+			Map<CompoundKey, OpObject> objs = new HashMap<CompoundKey, OpObject>();
+			for (CompoundKey k : e.getValue()) {
+				// null values are stored for not found objects
+				objs.put(k, found.get(k));
+			}
+			ctx.prefetchedObjs.put(e.getKey(), objs);
+		}
+	}
+
+	private void addPrefetchKey(Map<String, Set<CompoundKey>> keys, String type, List<String> id) {
+		if (id == null || id.isEmpty()) {
+			return;
+		}
+		Set<CompoundKey> ks = keys.get(type);
+		if (ks == null) {
+			ks = new HashSet<CompoundKey>();
+			keys.put(type, ks);
+		}
+		ks.add(new CompoundKey(0, id));
+	}
+
+	private OpObject getPrefetchedObject(LocalValidationCtx ctx, String type, List<String> id) {
+		Map<CompoundKey, OpObject> objs = ctx.prefetchedObjs.get(type);
+		CompoundKey k = new CompoundKey(0, id);
+		if (objs != null && objs.containsKey(k)) {
+			return objs.get(k);
+		}
+		return getObjectByName(type, id);
+	}
+
 	private boolean prepareReferencedObjects(OpOperation u, LocalValidationCtx ctx) {
 		Map<String, List<String>> refs = u.getRef();
 		if (refs != null) {
@@ -902,6 +1288,8 @@ public class OpBlockChain {
 					OpBlockChain blc = this;
 					String objType = refObjName.get(0);
 					List<String> refKey = refObjName.subList(1, refObjName.size());
+					oi = getPrefetchedObject(ctx, objType, refKey);
+					// deleted objects could be still referenced by older versions
 					while (blc != null && oi == null) {
 						oi = blc.getObjectByName(objType, refKey);
 						blc = blc.parent;
@@ -933,8 +1321,9 @@ public class OpBlockChain {
 			}
 		}
 
-		if (getObjectByName(OpBlockchainRules.OP_OPERATION, u.getType()) != null) {
-			ctx.refObjsCache.put("op", getObjectByName(OpBlockchainRules.OP_OPERATION, u.getType()));
+		OpObject opObj = getPrefetchedObject(ctx, OpBlockchainRules.OP_OPERATION, Collections.singletonList(u.getType()));
+		if (opObj != null) {
+			ctx.refObjsCache.put("op", opObj);
 		}
 		return true;
 	}
@@ -962,7 +1351,7 @@ public class OpBlockChain {
 		ctx.deletedObjsCache.clear();
 
 		for(int i = 0; i < deletedRefs.size(); i++) {
-			OpObject opObject = getObjectByName(u.getType(), deletedRefs.get(i));
+			OpObject opObject = getPrefetchedObject(ctx, u.getType(), deletedRefs.get(i));
 			if(opObject == null) {
 				return rules.error(u, ErrorType.DEL_OBJ_NOT_FOUND, u.getHash(), deletedRefs.get(i));
 			}
@@ -1007,7 +1396,7 @@ public class OpBlockChain {
 			if (!ctx.ids.add(id)) {
 				return rules.error(u, ErrorType.OBJ_MODIFIED_TWICE_IN_SAME_OPERATION, u.getHash(), id);
 			}
-			OpObject currentObject = getObjectByName(u.getType(), id);
+			OpObject currentObject = getPrefetchedObject(ctx, u.getType(), id);
 			if (currentObject == null) {
 				return rules.error(u, ErrorType.EDIT_OBJ_NOT_FOUND, u.getHash(), id);
 			}
@@ -1138,6 +1527,7 @@ public class OpBlockChain {
 		Map<String, OpObject> refObjsCache = new HashMap<String, OpObject>();
 		List<OpObject> deletedObjsCache = new ArrayList<OpObject>();
 		Map<OpObject, OpObject> newObjsCache = new HashMap<OpObject, OpObject>();
+		Map<String, Map<CompoundKey, OpObject>> prefetchedObjs = new HashMap<String, Map<CompoundKey, OpObject>>();
 
 		public LocalValidationCtx(String bhash, long blockDate) {
 			this(bhash, blockDate, false);
@@ -1151,13 +1541,32 @@ public class OpBlockChain {
 		}
 	}
 
+	private static class SpeculativeOperation {
+		final OpOperation op;
+		boolean dependent;
+		boolean valid;
+		RuntimeException error;
+		LocalValidationCtx validationCtx;
+
+		SpeculativeOperation(OpOperation op) {
+			this.op = op;
+		}
+	}
+
 	public interface BlockDbAccessInterface {
 
 		OpObject getObjectById(String type, CompoundKey k, boolean queryContent) throws DBStaleException ;
 
+		/**
+		 * Returns latest versions (including deleted) of found objects
+		 */
+		Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys) throws DBStaleException ;
+
 		/**
 		 * extraParamsWithCondition[0] - extra and "sql condition"
 		 * extraParamsWithCondition[1+...] - parameters to bind
+		 * Stream holds db connection with open cursor till it is read to the end,
+		 * so it must be closed (try-with-resources) if it could be left unread.
 		 */
 		Stream<Map.Entry<CompoundKey, OpObject>> streamObjects(String type, int limit, boolean onlyKeys, Object... extraParamsWithCondition) throws DBStaleException;
 		
@@ -1196,35 +1605,63 @@ public class OpBlockChain {
 
 		public List<CompoundKey> keys = new ArrayList<CompoundKey>();
 		public List<OpObject> result = new ArrayList<OpObject>();
+		// receives objects as soon as they are found instead of result list (streaming of large results)
+		public Consumer<OpObject> resultConsumer;
 		public int cacheVersion = -1;
 		public Object cacheObject;
 
 		OpPrivateObjectInstancesById objToSetCache;
 		int internalProgress;
 		
+		/**
+		 * Returns true if object is visible (not deleted) and was added to result
+		 */
+		public boolean addResult(CompoundKey key, OpObject obj) {
+			if (obj == null || obj.isDeleted()) {
+				return false;
+			}
+			if (!requestOnlyKeys) {
+				if (resultConsumer != null) {
+					resultConsumer.accept(obj);
+				} else {
+					result.add(obj);
+				}
+			}
+			keys.add(key);
+			internalProgress++;
+			return true;
+		}
+
 		public void setResult(Map<CompoundKey, OpObject> res) {
 			Iterator<Entry<CompoundKey, OpObject>> it = res.entrySet().iterator();
 			while(it.hasNext()) {
 				Entry<CompoundKey, OpObject> e = it.next();
-				if (e.getValue() != null && !e.getValue().isDeleted()) {
-					if (!requestOnlyKeys) {
-						result.add(e.getValue());
-					}
-					keys.add(e.getKey());
-				}
+				addResult(e.getKey(), e.getValue());
 			}
 		}
 	}
 	
 	public enum SearchType {
-		EQUALS
+		// value equals first argument
+		EQUALS,
+		// value equals any of arguments
+		IN,
+		// value is between first and second argument inclusive (null or empty bound is open)
+		RANGE,
+		// string value starts with first argument
+		PREFIX,
+		// point of spatial index is inside bbox: min lon, min lat, max lon, max lat
+		BBOX
 	}
 	
+	private static final PerformanceMetric mAddOpsSpeculative = PerformanceMetrics.i().getMetric("blc.addops.speculative");
+	private static final PerformanceMetric mAddOpsConflict = PerformanceMetrics.i().getMetric("blc.addops.conflict");
 	private static final PerformanceMetric mPrepareCreate = PerformanceMetrics.i().getMetric("blc.prepare.create");
 	private static final PerformanceMetric mPrepareEdit = PerformanceMetrics.i().getMetric("blc.prepare.edit");
 	private static final PerformanceMetric mPrepareDelete = PerformanceMetrics.i().getMetric("blc.prepare.edit");
 	private static final PerformanceMetric mPrepareRef = PerformanceMetrics.i().getMetric("blc.prepare.ref");
 	private static final PerformanceMetric mPrepareTotal = PerformanceMetrics.i().getMetric("blc.prepare.total");
+	private static final PerformanceMetric mPrepareFetch = PerformanceMetrics.i().getMetric("blc.prepare.fetch");
 	
 	private static final PerformanceMetric mFetchById = PerformanceMetrics.i().getMetric("blc.fetch.byid");
 
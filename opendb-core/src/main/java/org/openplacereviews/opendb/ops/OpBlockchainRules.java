@@ -1,17 +1,23 @@
 package org.openplacereviews.opendb.ops;
 
 import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonElement;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlockChain.LocalValidationCtx;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.util.DigestWriter;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.openplacereviews.opendb.util.OpExprEvaluator;
+import org.openplacereviews.opendb.util.OpExprEvaluator.ConstNode;
 import org.openplacereviews.opendb.util.OpExprEvaluator.EvaluationContext;
+import org.openplacereviews.opendb.util.OpExprEvaluator.ExprNode;
+import org.openplacereviews.opendb.util.OpExprEvaluator.FieldNode;
+import org.openplacereviews.opendb.util.OpExprEvaluator.FunctionNode;
+import org.openplacereviews.opendb.util.OpExprEvaluator.ThisNode;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 
 import java.io.ByteArrayOutputStream;
@@ -19,6 +25,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * State less blockchain rules to validate roles and calculate hashes
@@ -82,6 +89,7 @@ public class OpBlockchainRules {
 	public static final String F_UID = "uid"; // user identifier
 	public static final String F_VALIDATE = "validate"; // sys.validate
 	public static final String F_IF = "if"; // sys.validate
+	private static final String F_VERIFIED = "verified"; // op - memoized hash & signatures verification
 
 	public static final String METHOD_OAUTH = "oauth";
 	public static final String METHOD_PWD = "pwd";
@@ -93,6 +101,7 @@ public class OpBlockchainRules {
 	public static final char USER_LOGIN_CHAR = ':';
 
 	private static final String WILDCARD_RULE = "*";
+	private static final int MAX_SHAPE_OBJECTS = 16;
 	
 	private JsonFormatter formatter;
 	
@@ -152,8 +161,7 @@ public class OpBlockchainRules {
 	public String calculateMerkleTreeHash(OpBlock op) {
 		List<byte[]> hashes = new ArrayList<byte[]>();
 		for (OpOperation o : op.getOperations()) {
-			byte[] hashBytes = SecUtils.getHashBytes(o.getHash());
-			hashes.add(hashBytes);
+			hashes.add(getMerkleTreeLeaf(o));
 		}
 		return calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
 	}
@@ -161,16 +169,24 @@ public class OpBlockchainRules {
 	public String calculateSigMerkleTreeHash(OpBlock op) {
 		List<byte[]> hashes = new ArrayList<byte[]>();
 		for (OpOperation o : op.getOperations()) {
-			List<String> sigs = o.getSignatureList();
-			byte[] bts = null;
-			for (String s : sigs) {
-				bts = SecUtils.mergeTwoArrays(bts, SecUtils.decodeSignature(s));
-			}
-			hashes.add(bts);
+			hashes.add(getSigMerkleTreeLeaf(o));
 		}
 		return calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
 	}
 
+	static byte[] getMerkleTreeLeaf(OpOperation o) {
+		return SecUtils.getHashBytes(o.getHash());
+	}
+
+	static byte[] getSigMerkleTreeLeaf(OpOperation o) {
+		List<String> sigs = o.getSignatureList();
+		byte[] bts = null;
+		for (String s : sigs) {
+			bts = SecUtils.mergeTwoArrays(bts, SecUtils.decodeSignature(s));
+		}
+		return bts;
+	}
+
 	private String calculateMerkleTreeInPlaceHash(String algo, List<byte[]> hashes) {
 		if (hashes.size() == 0) {
 			return "";
@@ -189,9 +205,12 @@ public class OpBlockchainRules {
 
 	// hash and signature operations
 	public String calculateOperationHash(OpOperation ob, boolean set) {
-		String hash = JSON_MSG_TYPE + ":"
-				+ SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, null, 
-						formatter.opToJsonNoHash(ob));
+		Metric m = mOpHash.start();
+		// json is encoded directly into digest (same bytes as opToJsonNoHash(ob).getBytes("UTF-8"))
+		DigestWriter w = new DigestWriter(SecUtils.getMessageDigest(SecUtils.HASH_SHA256));
+		formatter.opToJsonNoHash(ob, w);
+		String hash = JSON_MSG_TYPE + ":" + SecUtils.formatHashWithAlgo(SecUtils.HASH_SHA256, w.digest());
+		m.capture();
 		if (set) {
 			ob.putStringValue(OpOperation.F_HASH, hash);
 		}
@@ -199,12 +218,11 @@ public class OpBlockchainRules {
 	}
 	
 	public int calculateBlockSize(OpBlock cp) {
-		String json = formatter.toJson(cp);
-		int l = json.length();
+		int l = formatter.getBlockJsonSize(cp);
 		if(l > MAX_BLOCK_SIZE_MB) {
 			error(cp, ErrorType.BLOCK_SIZE_IS_EXCEEDED, cp.getRawHash(), l, MAX_BLOCK_SIZE_MB);
 		}
-		return json.length();
+		return l;
 	}
 	
 
@@ -263,7 +281,7 @@ public class OpBlockchainRules {
 				}
 			}
 		}
-		Map<String, List<OpObject>> validationRules = getValidationRules(blockchain);
+		ValidationRules validationRules = getValidationRules(blockchain);
 		ArrayList<OpObject> dls = new ArrayList<>();
 		dls.addAll(ctx.deletedObjsCache);
 		for(OpObject oldObj : ctx.newObjsCache.values()) {
@@ -272,40 +290,171 @@ public class OpBlockchainRules {
 			}
 		}
 
-		List<OpObject> toValidate = validationRules.get(o.getType());
-		if(toValidate != null) {
-			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache)) {
-					return false;
-				}
+		// context is converted once and shared by all rules of the operation (expressions don't modify it)
+		RulesEvaluationContext evalCtx = new RulesEvaluationContext(blockchain, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache);
+		List<OpObject> toValidate = getValidationRules(validationRules, o, ctx.newObjsCache.size(), dls.size());
+		for(OpObject rule : toValidate) {
+			if(!validateRule(rule, o, evalCtx)) {
+				return false;
 			}
 		}
-		toValidate = validationRules.get(WILDCARD_RULE);
-		if(toValidate != null) {
-			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache)) {
-					return false;
+		return true;
+	}
+
+	/**
+	 * Rules of operation type and wildcard rules which 'if' preconditions could be satisfied by operation shape
+	 */
+	private List<OpObject> getValidationRules(ValidationRules validationRules, OpOperation o, int newObjs, int oldObjs) {
+		String opType = getShapeOpType(o);
+		String shape = o.getType() + ":" + opType + ":" + newObjs + ":" + oldObjs;
+		List<OpObject> rules = validationRules.byShape.get(shape);
+		if (rules == null) {
+			rules = new ArrayList<OpObject>();
+			for (String type : new String[] { o.getType(), WILDCARD_RULE }) {
+				List<OpObject> typeRules = validationRules.byType.get(type);
+				if (typeRules != null) {
+					for (OpObject rule : typeRules) {
+						if (ruleCouldFire(rule, o.getType(), opType, newObjs, oldObjs)) {
+							rules.add(rule);
+						}
+					}
 				}
 			}
+			if (newObjs <= MAX_SHAPE_OBJECTS && oldObjs <= MAX_SHAPE_OBJECTS) {
+				validationRules.byShape.put(shape, rules);
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Same value as op:op_type or empty string if function fails for operation
+	 */
+	static String getShapeOpType(OpOperation o) {
+		return o.hasEdited() ? OpOperation.F_EDIT : (o.hasCreated() ? OpOperation.F_CREATE
+				: (o.getObjectValue(OpOperation.F_DELETE) != null ? OpOperation.F_DELETE : ""));
+	}
+
+	boolean ruleCouldFire(OpObject rule, String type, String opType, int newObjs, int oldObjs) {
+		List<OpExprEvaluator> ifs;
+		try {
+			ifs = getValidateExpresions(F_IF, rule);
+		} catch (RuntimeException e) {
+			// error is reported during validation
+			return true;
+		}
+		// preconditions are evaluated in order, so only guards before 1st unknown expression are checked
+		for (OpExprEvaluator s : ifs) {
+			Boolean guard = evaluateGuard(s.getCompiled(), type, opType, newObjs, oldObjs);
+			if (guard == null) {
+				return true;
+			}
+			if (!guard) {
+				return false;
+			}
 		}
 		return true;
 	}
 
-	private boolean validateRule(OpBlockChain blockchain, OpObject rule, OpOperation o, Set<OpObject> newObjsArray, List<OpObject> deletedObjsCache,
-			Map<String, OpObject> refObjsCache) {
-		Metric m = PerformanceMetrics.i().getMetric("blc.validop", rule.getId().get(0)).start();
-		JsonArray deletedArray = (JsonArray) formatter.toJsonElement(deletedObjsCache);
-		for(int i = 0; i < deletedArray.size(); i++) {
-			((JsonObject)deletedArray.get(i)).addProperty(OpOperation.F_TYPE, deletedObjsCache.get(i).getParentType());
+	/**
+	 * Evaluates well-known precondition on operation shape using compiled expression:
+	 * std:eq(std:size(.new|.old), N), std:eq(op:op_type(this), 'x'), std:eq(.type, 'x'), set:in(.type, set:all('x', ...)).
+	 * @return null if precondition couldn't be evaluated without evaluation context
+	 */
+	private Boolean evaluateGuard(ExprNode expr, String type, String opType, int newObjs, int oldObjs) {
+		if (!(expr instanceof FunctionNode) || ((FunctionNode) expr).getArgs().size() != 2) {
+			return null;
 		}
-		JsonObject refsMap = formatter.toJsonElement(refObjsCache).getAsJsonObject();
-		for(String key : refsMap.keySet()) {
-			((JsonObject)refsMap.get(key)).addProperty(OpOperation.F_TYPE, refObjsCache.get(key).getParentType());
+		FunctionNode fn = (FunctionNode) expr;
+		ExprNode arg = fn.getArgs().get(0);
+		if (!(fn.getArgs().get(1) instanceof ConstNode)) {
+			return null;
 		}
-		
-		JsonArray newArray = (JsonArray) formatter.toJsonElement(newObjsArray);
-		JsonObject opJsonObj = formatter.toJsonElement(o).getAsJsonObject();
-		EvaluationContext ctx = new EvaluationContext(blockchain, opJsonObj, newArray, deletedArray, refsMap);
+		Object value = ((ConstNode) fn.getArgs().get(1)).getValue();
+		if (OpExprEvaluator.FUNCTION_STD_EQ.equals(fn.getFunctionName())) {
+			if (isFunction(arg, OpExprEvaluator.FUNCTION_STD_SIZE, 1)) {
+				String field = getContextField(((FunctionNode) arg).getArgs().get(0));
+				if (!(value instanceof Long)) {
+					return null;
+				}
+				if (OpExprEvaluator.F_NEW.equals(field)) {
+					return newObjs == (Long) value;
+				} else if (OpExprEvaluator.F_OLD.equals(field)) {
+					return oldObjs == (Long) value;
+				}
+			} else if (isFunction(arg, OpExprEvaluator.FUNCTION_OP_OPERATION_TYPE, 1)
+					&& ((FunctionNode) arg).getArgs().get(0) instanceof ThisNode) {
+				if (opType.isEmpty() || !(value instanceof String)) {
+					// op:op_type fails for such operation
+					return null;
+				}
+				return opType.equals(value);
+			} else if (OpOperation.F_TYPE.equals(getContextField(arg)) && value instanceof String) {
+				return OUtils.equals(type, value);
+			}
+		} else if (OpExprEvaluator.FUNCTION_SET_IN.equals(fn.getFunctionName())
+				&& OpOperation.F_TYPE.equals(getContextField(arg)) && value instanceof JsonArray) {
+			// set:all with literals is evaluated during compilation
+			boolean in = false;
+			for (JsonElement e : (JsonArray) value) {
+				if (!e.isJsonPrimitive() || !e.getAsJsonPrimitive().isString()) {
+					return null;
+				}
+				in |= OUtils.equals(type, e.getAsString());
+			}
+			return in;
+		}
+		return null;
+	}
+
+	private static boolean isFunction(ExprNode expr, String name, int args) {
+		return expr instanceof FunctionNode && ((FunctionNode) expr).getFunctionName().equals(name)
+				&& ((FunctionNode) expr).getArgs().size() == args;
+	}
+
+	// field name of '.field' (this.field) expression
+	private static String getContextField(ExprNode expr) {
+		if (expr instanceof FieldNode && ((FieldNode) expr).getObject() instanceof ThisNode) {
+			return ((FieldNode) expr).getField();
+		}
+		return null;
+	}
+
+	/**
+	 * Evaluation context of operation shared by all rules, it is a read-only view of fields (not converted to json)
+	 */
+	static class RulesEvaluationContext {
+		final OpBlockChain blockchain;
+		final OpOperation o;
+		final Set<OpObject> newObjsArray;
+		final List<OpObject> deletedObjsCache;
+		final Map<String, OpObject> refObjsCache;
+		private EvaluationContext ctx;
+
+		public RulesEvaluationContext(OpBlockChain blockchain, OpOperation o, Set<OpObject> newObjsArray,
+				List<OpObject> deletedObjsCache, Map<String, OpObject> refObjsCache) {
+			this.blockchain = blockchain;
+			this.o = o;
+			this.newObjsArray = newObjsArray;
+			this.deletedObjsCache = deletedObjsCache;
+			this.refObjsCache = refObjsCache;
+		}
+
+		public EvaluationContext get() {
+			if (ctx != null) {
+				return ctx;
+			}
+			Metric m = mValidCtx.start();
+			ctx = new EvaluationContext(blockchain,
+					OpPrivateEvaluationFields.operation(o, newObjsArray, deletedObjsCache, refObjsCache));
+			m.capture();
+			return ctx;
+		}
+	}
+
+	boolean validateRule(OpObject rule, OpOperation o, RulesEvaluationContext evalCtx) {
+		Metric m = PerformanceMetrics.i().getMetric("blc.validop", rule.getId().get(0)).start();
+		EvaluationContext ctx = evalCtx.get();
 		List<OpExprEvaluator> vld = getValidateExpresions(F_VALIDATE, rule);
 		List<OpExprEvaluator> ifs = getValidateExpresions(F_IF, rule);
 		for(OpExprEvaluator s : ifs) {
@@ -326,7 +475,7 @@ public class OpBlockchainRules {
 	}
 
 	@SuppressWarnings("unchecked")
-	private List<OpExprEvaluator> getValidateExpresions(String field, OpObject rule) {
+	List<OpExprEvaluator> getValidateExpresions(String field, OpObject rule) {
 		List<OpExprEvaluator> validate = (List<OpExprEvaluator>) rule.getCacheObject(field);
 		if(validate == null) {
 			validate = new ArrayList<OpExprEvaluator>();
@@ -409,26 +558,31 @@ public class OpBlockchainRules {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private Map<String, List<OpObject>> getValidationRules(OpBlockChain blockchain) {
+	private ValidationRules getValidationRules(OpBlockChain blockchain) {
 		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
 		req.requestCache = true;
 		blockchain.fetchAllObjects(OP_VALIDATE, req);
-		Map<String, List<OpObject>> validationRules = (Map<String,  List<OpObject>>) req.cacheObject;
+		ValidationRules validationRules = (ValidationRules) req.cacheObject;
 		if(validationRules == null) {
-			validationRules = new TreeMap<String, List<OpObject>>();
+			validationRules = new ValidationRules();
 			for(OpObject vld : req.result) {
 				for(String type : vld.getStringList(F_TYPE)) {
-					if(!validationRules.containsKey(type)) {
-						validationRules.put(type, new ArrayList<OpObject>());
+					if(!validationRules.byType.containsKey(type)) {
+						validationRules.byType.put(type, new ArrayList<OpObject>());
 					}
-					validationRules.get(type).add(vld);
+					validationRules.byType.get(type).add(vld);
 				}
 			}
 			blockchain.setCacheAfterSearch(req, validationRules);
 		}
 		return validationRules;
 	}
+
+	private static class ValidationRules {
+		private final Map<String, List<OpObject>> byType = new TreeMap<String, List<OpObject>>();
+		// operation shape (type, op type, new & old objects size) -> rules which could fire
+		private final Map<String, List<OpObject>> byShape = new ConcurrentHashMap<String, List<OpObject>>();
+	}
 	
 	public boolean validateBlock(OpBlockChain blockChain, OpBlock block, OpBlock prevBlockHeader, boolean validateSignature) {
 		String blockHash = block.getFullHash();
@@ -451,16 +605,19 @@ public class OpBlockchainRules {
 		if (block.getOperations().size() == 0) {
 			return error(block, ErrorType.BLOCK_EMPTY, blockHash);
 		}
-		if (!OUtils.equals(calculateMerkleTreeHash(block), block.getStringValue(OpBlock.F_MERKLE_TREE_HASH))) {
-			return error(block, ErrorType.BLOCK_MERKLE_TREE_FAILED, blockHash, calculateMerkleTreeHash(block),
+		String merkleTreeHash = calculateMerkleTreeHash(block);
+		if (!OUtils.equals(merkleTreeHash, block.getStringValue(OpBlock.F_MERKLE_TREE_HASH))) {
+			return error(block, ErrorType.BLOCK_MERKLE_TREE_FAILED, blockHash, merkleTreeHash,
 					block.getStringValue(OpBlock.F_MERKLE_TREE_HASH));
 		}
-		if (!OUtils.equals(calculateSigMerkleTreeHash(block), block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH))) {
-			return error(block, ErrorType.BLOCK_SIG_MERKLE_TREE_FAILED, blockHash, calculateSigMerkleTreeHash(block),
+		String sigMerkleTreeHash = calculateSigMerkleTreeHash(block);
+		if (!OUtils.equals(sigMerkleTreeHash, block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH))) {
+			return error(block, ErrorType.BLOCK_SIG_MERKLE_TREE_FAILED, blockHash, sigMerkleTreeHash,
 					block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH));
 		}
-		if (!OUtils.equals(calculateHash(block), block.getFullHash())) {
-			return error(block, ErrorType.BLOCK_HASH_FAILED, block.getFullHash(), calculateHash(block));
+		String hash = calculateHash(block);
+		if (!OUtils.equals(hash, block.getFullHash())) {
+			return error(block, ErrorType.BLOCK_HASH_FAILED, block.getFullHash(), hash);
 		}
 		
 		if(!validateSignature) {
@@ -500,6 +657,7 @@ public class OpBlockchainRules {
 			return error(ob, ErrorType.OP_SIGNATURE_FAILED, ob.getHash(), signedBy);
 		}
 		byte[] txHash = SecUtils.getHashBytes(ob.getHash());
+		VerifiedOperation vo = getVerifiedOperation(ob);
 		boolean signByItself = false;
 		String signupName = "";
 		if(OpBlockchainRules.OP_SIGNUP.equals(ob.getType()) && ob.getCreated().size() == 1) {
@@ -522,8 +680,16 @@ public class OpBlockchainRules {
 				} else {
 					keyObj = getLoginKeyObj(ctx, signedByName);
 				}
-				KeyPair kp = getKeyPairFromObj(keyObj, null);
-				validate = SecUtils.validateSignature(kp, txHash, sig);
+				if (vo != null && keyObj != null && vo.isVerified(keyObj, sig)) {
+					validate = true;
+					mValidSigCached.start().capture();
+				} else {
+					KeyPair kp = getKeyPairFromObj(keyObj, null);
+					validate = SecUtils.validateSignature(kp, txHash, sig);
+					if (validate && vo != null) {
+						vo.addVerified(keyObj, sig);
+					}
+				}
 			} catch (Exception e) {
 				cause = e;
 			}
@@ -535,13 +701,78 @@ public class OpBlockchainRules {
 	}
 	
 	
+	/**
+	 * Verifies hashes and signatures of operations in parallel without holding any blockchain lock.
+	 * Results are memoized in operation, so validateOp only checks that signer keys are still the same.
+	 * Signatures which couldn't be verified here (i.e. key is created in the same block) 
+	 * are fully verified by validateOp.
+	 */
+	public void prevalidateOperations(OpBlockChain ctx, Collection<OpOperation> ops) {
+		Metric m = mPrevalidate.start();
+		ops.parallelStream().forEach(o -> prevalidateOperation(ctx, o));
+		m.capture();
+	}
+
+	private void prevalidateOperation(OpBlockChain ctx, OpOperation ob) {
+		if (!ob.isImmutable()) {
+			return;
+		}
+		try {
+			VerifiedOperation vo = verifyOperationHash(ob);
+			List<String> sigs = ob.getSignatureList();
+			List<String> signedBy = ob.getSignedBy();
+			if (vo == null || signedBy.size() != sigs.size()) {
+				// errors are reported by validateOp
+				return;
+			}
+			byte[] txHash = SecUtils.getHashBytes(ob.getHash());
+			for (int i = 0; i < sigs.size(); i++) {
+				OpObject keyObj = getLoginKeyObj(ctx, signedBy.get(i));
+				KeyPair kp = getKeyPairFromObj(keyObj, null);
+				if (kp != null && SecUtils.validateSignature(kp, txHash, sigs.get(i))) {
+					vo.addVerified(keyObj, sigs.get(i));
+				}
+			}
+		} catch (Exception e) {
+			// errors are reported by validateOp
+		}
+	}
+
+	private VerifiedOperation getVerifiedOperation(OpOperation ob) {
+		Object o = ob.getCacheObject(F_VERIFIED);
+		if (o instanceof VerifiedOperation && ((VerifiedOperation) o).isValid(ob)) {
+			return (VerifiedOperation) o;
+		}
+		return null;
+	}
+
+	/**
+	 * @return null if operation hash is not correct
+	 */
+	private VerifiedOperation verifyOperationHash(OpOperation ob) {
+		VerifiedOperation vo = getVerifiedOperation(ob);
+		if (vo != null) {
+			return vo;
+		}
+		if (!OUtils.equals(calculateOperationHash(ob, false), ob.getHash())) {
+			return null;
+		}
+		vo = new VerifiedOperation(ob);
+		if (ob.isImmutable()) {
+			ob.putCacheObject(F_VERIFIED, vo);
+		}
+		return vo;
+	}
+
 	public boolean validateOp(OpBlockChain opBlockChain, OpOperation u, LocalValidationCtx ctx) {
 		Metric mt = mValidTotal.start();
-		if(!OUtils.equals(calculateOperationHash(u, false), u.getHash())) {
+		VerifiedOperation vo = verifyOperationHash(u);
+		if (vo == null) {
 			return error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, calculateOperationHash(u, false), u.getHash());
 		}
 		
-		int sz = formatter.opToJson(u).length();
+		// json size is measured without building json string and cached in operation
+		int sz = formatter.getOpJsonSize(u);
 		if (sz > OpBlockchainRules.MAX_OP_SIZE_MB) {
 			return error(u, ErrorType.OP_SIZE_IS_EXCEEDED, u.getHash(), sz, OpBlockchainRules.MAX_OP_SIZE_MB);
 		}
@@ -608,13 +839,23 @@ public class OpBlockchainRules {
 	
 	public OpBlock createAndSignBlock(Collection<OpOperation> ops, OpBlock prevOpBlockHeader, String serverUser, KeyPair serverKeyPair)
 			throws FailedVerificationException {
+		return createAndSignBlock(ops, prevOpBlockHeader, null, null, serverUser, serverKeyPair);
+	}
+
+	/**
+	 * Merkle tree hashes could be passed if they're already calculated for operations (otherwise null)
+	 */
+	public OpBlock createAndSignBlock(Collection<OpOperation> ops, OpBlock prevOpBlockHeader, String merkleTreeHash,
+			String sigMerkleTreeHash, String serverUser, KeyPair serverKeyPair) throws FailedVerificationException {
 		OpBlock block = new OpBlock();
 		block.operations.addAll(ops);
 		block.setDate(OpBlock.F_DATE, System.currentTimeMillis());
 		block.putObjectValue(OpBlock.F_BLOCKID, prevOpBlockHeader == null ? 0 : (prevOpBlockHeader.getBlockId() + 1));
 		block.putStringValue(OpBlock.F_PREV_BLOCK_HASH, prevOpBlockHeader == null ? "" : prevOpBlockHeader.getFullHash());
-		block.putStringValue(OpBlock.F_MERKLE_TREE_HASH, calculateMerkleTreeHash(block));
-		block.putStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH, calculateSigMerkleTreeHash(block));
+		block.putStringValue(OpBlock.F_MERKLE_TREE_HASH,
+				merkleTreeHash != null ? merkleTreeHash : calculateMerkleTreeHash(block));
+		block.putStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH,
+				sigMerkleTreeHash != null ? sigMerkleTreeHash : calculateSigMerkleTreeHash(block));
 		if (serverUser != null) {
 			block.putStringValue(OpBlock.F_SIGNED_BY, serverUser);
 		}
@@ -754,7 +995,41 @@ public class OpBlockchainRules {
 		
 	}
 	
+	/**
+	 * Memoized hash and signature verification of immutable operation
+	 */
+	private static class VerifiedOperation {
+		private final OpOperation op;
+		private final String hash;
+		private final Set<String> signatures = ConcurrentHashMap.newKeySet();
+
+		public VerifiedOperation(OpOperation op) {
+			this.op = op;
+			this.hash = op.getHash();
+		}
+
+		public boolean isValid(OpOperation ob) {
+			return op == ob && OUtils.equals(hash, ob.getHash());
+		}
+
+		private String key(OpObject keyObj, String sig) {
+			return keyObj.getStringValue(F_ALGO) + ":" + keyObj.getStringValue(F_PUBKEY) + ":" + sig;
+		}
+
+		public boolean isVerified(OpObject keyObj, String sig) {
+			return signatures.contains(key(keyObj, sig));
+		}
+
+		public void addVerified(OpObject keyObj, String sig) {
+			signatures.add(key(keyObj, sig));
+		}
+	}
+	
+	private static final PerformanceMetric mOpHash = PerformanceMetrics.i().getMetric("blc.op.hash");
+	private static final PerformanceMetric mValidCtx = PerformanceMetrics.i().getMetric("blc.validop.ctx");
 	private static final PerformanceMetric mValidSig = PerformanceMetrics.i().getMetric("blc.validop.sig");
+	private static final PerformanceMetric mValidSigCached = PerformanceMetrics.i().getMetric("blc.validop.sig.cached");
+	private static final PerformanceMetric mPrevalidate = PerformanceMetrics.i().getMetric("blc.prevalidate");
 	private static final PerformanceMetric mValidTotal = PerformanceMetrics.i().getMetric("blc.validop.total");
 
 
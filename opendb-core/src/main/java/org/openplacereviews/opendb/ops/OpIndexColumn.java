@@ -16,7 +16,10 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class OpIndexColumn {
@@ -30,6 +33,10 @@ public class OpIndexColumn {
 	private List<IndexExpression> fieldsExpression = Collections.emptyList();
 	private int cacheRuntimeBlocks = 64;
 	private int cacheDBBlocks = 64;
+	// quadtree zoom of spatial tile code (2 bits per level fit into positive bigint)
+	public static final int SPATIAL_ZOOM = 31;
+	// bbox is covered by at most that amount of tiles (code ranges)
+	private static final int MAX_BBOX_TILES = 64;
 
 	
 	public OpIndexColumn(String opType, String indexId, int idIndex, ColumnDef columnDef) {
@@ -77,6 +84,13 @@ public class OpIndexColumn {
 	public ColumnDef getColumnDef() {
 		return columnDef;
 	}
+
+	/**
+	 * Spatial index stores tile code of point given by 2 field expressions (lat, lon)
+	 */
+	public boolean isSpatial() {
+		return columnDef.getIndex() == IndexType.SPATIAL;
+	}
 	
 	public Object evalDBValue(OpObject opObject, Connection conn) {
 		List<Object> array = eval(opObject, null);
@@ -109,28 +123,41 @@ public class OpIndexColumn {
 
 	public Stream<Entry<CompoundKey, OpObject>> streamObjects(OpPrivateObjectInstancesById oi, 
 			int superBlockSize, String type, int limit, ObjectsSearchRequest request, Object[] args) {
+		if (request.searchType == SearchType.BBOX && !isSpatial()) {
+			throw new UnsupportedOperationException("Bbox search is supported only by spatial index");
+		}
+		if (oi.getDbAccess() == null && cacheRuntimeBlocks >= superBlockSize) {
+			// runtime superblock is searched by inverted index (O(matches)), values are rechecked
+			// as index could keep keys of replaced versions
+			Set<CompoundKey> keys = oi.getRuntimeIndex(this).getKeys(request.searchType, args);
+			return oi.getRawObjects(keys).filter(new Predicate<Entry<CompoundKey, OpObject>>() {
+				@Override
+				public boolean test(Entry<CompoundKey, OpObject> t) {
+					return accept(t.getValue(), request, args);
+				}
+			});
+		}
 		Set<Object> keys = getKeysFromCache(oi);
-		if (keys == null) {
-			if((oi.getDbAccess() != null && cacheDBBlocks >= superBlockSize) || 
-					 (oi.getDbAccess() == null && cacheRuntimeBlocks >= superBlockSize)) {
-				keys = buildCacheKeys(oi, type);
-			}
+		if (keys == null && oi.getDbAccess() != null && cacheDBBlocks >= superBlockSize) {
+			keys = buildCacheKeys(oi, type);
 		}
-		if (keys != null && !keys.contains(toNativeType(args[0]))) {
+		if (keys != null && request.searchType == SearchType.EQUALS && !keys.contains(toNativeType(args[0]))) {
 			return Stream.empty();
 		}
 		Stream<Entry<CompoundKey, OpObject>> stream;
 		if(oi.getDbAccess() != null){
 			stream = oi.getDbAccess().streamObjects(type, limit, request.requestOnlyKeys, getDbCondition(request, args));
+			boolean recheck = isDbConditionApproximate(request.searchType);
 			stream = stream.filter(new Predicate<Entry<CompoundKey, OpObject>>() {
 
 				@Override
 				public boolean test(Entry<CompoundKey, OpObject> t) {
-					OpObject obj = oi.getDbAccess().getObjectById(type, t.getKey(), false);
+					// content is needed only to recheck object (stream could contain only keys)
+					OpObject obj = oi.getDbAccess().getObjectById(type, t.getKey(), recheck);
 					if(obj == null || t.getValue() == null || !OUtils.equals(obj.getParentHash(), t.getValue().getParentHash())) {
 						return false;
 					}
-					return true;
+					return !recheck || accept(obj, request, args);
 				}
 			});
 		} else {
@@ -146,6 +173,18 @@ public class OpIndexColumn {
 		return stream;
 	}
 
+	/**
+	 * Db condition selects superset of matching objects (bbox tiles cover larger area) or compares values
+	 * not the way runtime superblocks do (range / prefix of columns which are neither integer nor text),
+	 * so rows are rechecked the same way as runtime superblocks check them
+	 */
+	private boolean isDbConditionApproximate(SearchType searchType) {
+		if (searchType == SearchType.RANGE || searchType == SearchType.PREFIX) {
+			return !columnDef.isInteger() && !columnDef.isText();
+		}
+		return searchType == SearchType.BBOX;
+	}
+
 	@SuppressWarnings("unchecked")
 	private Set<Object> getKeysFromCache(OpPrivateObjectInstancesById oi) {
 		int ev = oi.getEditVersion();
@@ -164,8 +203,13 @@ public class OpIndexColumn {
 		}
 		int ev = oi.getEditVersion();
 		if (oi.getDbAccess() != null) {
-			Iterator<Entry<CompoundKey, OpObject>> it = oi.getDbAccess().streamObjects(type, -1, false).iterator();
-			keys = buildCacheKeys(it);
+			// db superblock is read by ranges of keys in parallel
+			try (Stream<Entry<CompoundKey, OpObject>> stream = oi.getDbAccess().streamObjects(type, -1, false)) {
+				keys = stream.parallel().flatMap(e -> {
+					List<Object> array = eval(e.getValue(), new ArrayList<Object>());
+					return array == null ? Stream.empty() : array.stream();
+				}).collect(Collectors.toSet());
+			}
 			oi.setCacheObjectByKey(this, keys, ev);
 		} else if (oi.getDbAccess() == null) {
 			keys = buildCacheKeys(oi.getRawObjects().iterator());
@@ -197,35 +241,183 @@ public class OpIndexColumn {
 		return o.toString();
 	}
 
+	/**
+	 * Native value of indexed value (null if it can't be stored in column), used as key of sorted runtime index
+	 */
+	private Object toNativeValue(Object o) {
+		if (o == null) {
+			return null;
+		}
+		if (columnDef.isInteger()) {
+			if (o instanceof Number) {
+				return ((Number) o).longValue();
+			}
+			try {
+				return Long.parseLong(o.toString());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return o.toString();
+	}
+
+	/**
+	 * Range bound, empty value means open range
+	 */
+	private Object getRangeBound(Object[] args, int ind) {
+		if (args.length <= ind || args[ind] == null || args[ind].toString().isEmpty()) {
+			return null;
+		}
+		return toNativeType(args[ind]);
+	}
+
+	/**
+	 * Strings are compared by code points, which is the order of db condition (COLLATE "C" compares utf-8 bytes)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compareNative(Object o1, Object o2) {
+		if (o1 instanceof String && o2 instanceof String) {
+			String s1 = (String) o1;
+			String s2 = (String) o2;
+			int i1 = 0;
+			int i2 = 0;
+			while (i1 < s1.length() && i2 < s2.length()) {
+				int c1 = s1.codePointAt(i1);
+				int c2 = s2.codePointAt(i2);
+				if (c1 != c2) {
+					return Integer.compare(c1, c2);
+				}
+				i1 += Character.charCount(c1);
+				i2 += Character.charCount(c2);
+			}
+			return Integer.compare(s1.length() - i1, s2.length() - i2);
+		}
+		return ((Comparable) o1).compareTo(o2);
+	}
+
+	private boolean isArrayCondition() {
+		return columnDef.getIndex() == IndexType.GIN || columnDef.getIndex() == IndexType.GIST;
+	}
+
+	/**
+	 * Condition for db superblock: sql (with ? placeholders) followed by parameters. 
+	 * Array columns use GIN operators for equality and IN, range and prefix are checked for every array element.
+	 */
 	private Object[] getDbCondition(ObjectsSearchRequest request, Object... args) {
-		Object[] o = new Object[2];
-		if (request.searchType != SearchType.EQUALS) {
+		String col = columnDef.getColName();
+		List<Object> params = new ArrayList<Object>();
+		String cond;
+		switch (request.searchType) {
+		case EQUALS:
+			cond = isArrayCondition() ? col + " @> ARRAY[?]" : col + " = ?";
+			params.add(toNativeType(args[0]));
+			break;
+		case IN:
+			StringBuilder placeholders = new StringBuilder();
+			for (Object a : args) {
+				placeholders.append(placeholders.length() == 0 ? "?" : ", ?");
+				params.add(toNativeType(a));
+			}
+			cond = isArrayCondition() ? col + " && ARRAY[" + placeholders + "]" : col + " IN (" + placeholders + ")";
+			break;
+		case RANGE:
+			Object from = getRangeBound(args, 0);
+			Object to = getRangeBound(args, 1);
+			// text is compared the same way as runtime index does (by code points, not by db locale)
+			String v = (isArrayCondition() ? "v" : col) + (columnDef.isText() ? " COLLATE \"C\"" : "");
+			cond = "true";
+			if (from != null) {
+				cond += " and " + v + " >= ?";
+				params.add(from);
+			}
+			if (to != null) {
+				cond += " and " + v + " <= ?";
+				params.add(to);
+			}
+			if (isArrayCondition()) {
+				cond = "exists (select 1 from unnest(" + col + ") v where " + cond + ")";
+			}
+			break;
+		case PREFIX:
+			if (columnDef.isInteger()) {
+				throw new UnsupportedOperationException("Prefix search is not supported for integer column " + col);
+			}
+			String collate = columnDef.isText() ? " COLLATE \"C\"" : "";
+			cond = (isArrayCondition() ? "exists (select 1 from unnest(" + col + ") v where v" + collate + " like ?)" : col + collate + " like ?");
+			params.add(args[0].toString().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+			break;
+		case BBOX:
+			StringBuilder ranges = new StringBuilder();
+			for (long[] r : getBBoxTileRanges(args)) {
+				ranges.append(ranges.length() == 0 ? "" : " or ").append("(" + col + " >= ? and " + col + " <= ?)");
+				params.add(r[0]);
+				params.add(r[1]);
+			}
+			cond = ranges.length() == 0 ? "false" : ranges.toString();
+			break;
+		default:
 			throw new UnsupportedOperationException();
 		}
-		o[0] = columnDef.getColName() + " = ?";
-		if(columnDef.getIndex() == IndexType.GIN || columnDef.getIndex() == IndexType.GIST) {
-			o[0] = columnDef.getColName() + " @> ARRAY[?]";
+		Object[] o = new Object[params.size() + 1];
+		o[0] = "(" + cond + ")";
+		for (int i = 0; i < params.size(); i++) {
+			o[i + 1] = params.get(i);
 		}
-		o[1] = toNativeType(args[0]);
 		return o;
 	}
 	
 	
 	private boolean accept(OpObject opObject, ObjectsSearchRequest request, Object[] argsToSearch) {
+		if (request.searchType == SearchType.BBOX) {
+			// tiles of bbox cover larger area, so point is checked precisely
+			double[] latLon = getLatLon(opObject);
+			return latLon != null && isInsideBBox(latLon[0], latLon[1], parseBBox(argsToSearch));
+		}
 		List<Object> array = eval(opObject, null);
 		if (array != null && argsToSearch.length > 0) {
 			for (Object s : array) {
-				if(request.searchType == SearchType.EQUALS) {
-					if(OUtils.equalsStringValue(s, argsToSearch[0])) {
-						return true;
-					}
+				if (s != null && accept(s, request.searchType, argsToSearch)) {
+					return true;
 				}
 			}
 		}
 		return false;
 	}
 
+	private boolean accept(Object s, SearchType searchType, Object[] argsToSearch) {
+		switch (searchType) {
+		case EQUALS:
+			return OUtils.equalsStringValue(s, argsToSearch[0]);
+		case IN:
+			for (Object a : argsToSearch) {
+				if (OUtils.equalsStringValue(s, a)) {
+					return true;
+				}
+			}
+			return false;
+		case PREFIX:
+			return s.toString().startsWith(argsToSearch[0].toString());
+		case RANGE:
+			Object v = toNativeValue(s);
+			Object from = getRangeBound(argsToSearch, 0);
+			Object to = getRangeBound(argsToSearch, 1);
+			return v != null && (from == null || compareNative(v, from) >= 0) && (to == null || compareNative(v, to) <= 0);
+		default:
+			return false;
+		}
+	}
+
 	private List<Object> eval(OpObject opObject, List<Object> array) {
+		if (isSpatial()) {
+			double[] latLon = getLatLon(opObject);
+			if (latLon != null) {
+				if (array == null) {
+					array = new ArrayList<Object>();
+				}
+				array.add(getTileCode(latLon[0], latLon[1]));
+			}
+			return array;
+		}
 		if (idIndex >= 0) {
 			if (array == null) {
 				array = new ArrayList<Object>();
@@ -245,6 +437,224 @@ public class OpIndexColumn {
 	private static class IndexExpression {
 		List<String> expression = new ArrayList<String>();
 	}
+
+	private double[] getLatLon(OpObject opObject) {
+		if (fieldsExpression.size() < 2) {
+			return null;
+		}
+		List<Object> lat = JsonObjectUtils.getIndexObjectByField(opObject.getRawOtherFields(), fieldsExpression.get(0).expression, null);
+		List<Object> lon = JsonObjectUtils.getIndexObjectByField(opObject.getRawOtherFields(), fieldsExpression.get(1).expression, null);
+		if (lat == null || lon == null || lat.isEmpty() || lon.isEmpty() || lat.get(0) == null || lon.get(0) == null) {
+			return null;
+		}
+		try {
+			return new double[] { Double.parseDouble(lat.get(0).toString()), Double.parseDouble(lon.get(0).toString()) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static long getTileX(double lon, int zoom) {
+		double x = (lon + 180) / 360;
+		return Math.max(0, Math.min((1L << zoom) - 1, (long) Math.floor(x * (1L << zoom))));
+	}
+
+	private static long getTileY(double lat, int zoom) {
+		double y = (lat + 90) / 180;
+		return Math.max(0, Math.min((1L << zoom) - 1, (long) Math.floor(y * (1L << zoom))));
+	}
+
+	// z-order (morton) code: bits of x and y are interleaved, so every quadtree tile is continuous range of codes
+	private static long interleave(long x, long y, int zoom) {
+		long code = 0;
+		for (int i = zoom - 1; i >= 0; i--) {
+			code = (code << 2) | (((y >> i) & 1) << 1) | ((x >> i) & 1);
+		}
+		return code;
+	}
+
+	public static long getTileCode(double lat, double lon) {
+		return interleave(getTileX(lon, SPATIAL_ZOOM), getTileY(lat, SPATIAL_ZOOM), SPATIAL_ZOOM);
+	}
+
+	/**
+	 * bbox arguments: min lon, min lat, max lon, max lat
+	 */
+	private static double[] parseBBox(Object[] args) {
+		if (args.length < 4) {
+			throw new IllegalArgumentException("Bbox should be min lon, min lat, max lon, max lat");
+		}
+		double[] bbox = new double[4];
+		for (int i = 0; i < 4; i++) {
+			bbox[i] = Double.parseDouble(args[i].toString());
+		}
+		return bbox;
+	}
+
+	private static boolean isInsideBBox(double lat, double lon, double[] bbox) {
+		if (lat < bbox[1] || lat > bbox[3]) {
+			return false;
+		}
+		if (bbox[0] <= bbox[2]) {
+			return lon >= bbox[0] && lon <= bbox[2];
+		}
+		// bbox crosses antimeridian
+		return lon >= bbox[0] || lon <= bbox[2];
+	}
+
+	/**
+	 * Merged ranges of tile codes which cover bbox, tiles are chosen on the deepest zoom
+	 * where bbox is covered by no more than MAX_BBOX_TILES tiles
+	 */
+	static List<long[]> getBBoxTileRanges(Object[] args) {
+		double[] bbox = parseBBox(args);
+		List<long[]> lonRanges = new ArrayList<long[]>();
+		if (bbox[0] <= bbox[2]) {
+			lonRanges.add(new long[] { getTileX(bbox[0], SPATIAL_ZOOM), getTileX(bbox[2], SPATIAL_ZOOM) });
+		} else {
+			lonRanges.add(new long[] { getTileX(bbox[0], SPATIAL_ZOOM), getTileX(180, SPATIAL_ZOOM) });
+			lonRanges.add(new long[] { getTileX(-180, SPATIAL_ZOOM), getTileX(bbox[2], SPATIAL_ZOOM) });
+		}
+		long y1 = getTileY(bbox[1], SPATIAL_ZOOM);
+		long y2 = getTileY(bbox[3], SPATIAL_ZOOM);
+		List<long[]> codes = new ArrayList<long[]>();
+		if (y1 > y2) {
+			return codes;
+		}
+		int zoom = SPATIAL_ZOOM;
+		while (zoom > 0) {
+			int shift = SPATIAL_ZOOM - zoom;
+			long tiles = 0;
+			for (long[] x : lonRanges) {
+				tiles += ((x[1] >> shift) - (x[0] >> shift) + 1) * ((y2 >> shift) - (y1 >> shift) + 1);
+			}
+			if (tiles <= MAX_BBOX_TILES) {
+				break;
+			}
+			zoom--;
+		}
+		int shift = SPATIAL_ZOOM - zoom;
+		for (long[] x : lonRanges) {
+			for (long tx = x[0] >> shift; tx <= x[1] >> shift; tx++) {
+				for (long ty = y1 >> shift; ty <= y2 >> shift; ty++) {
+					long start = interleave(tx, ty, zoom) << (2 * shift);
+					codes.add(new long[] { start, start + (1L << (2 * shift)) - 1 });
+				}
+			}
+		}
+		codes.sort((a, b) -> Long.compare(a[0], b[0]));
+		List<long[]> merged = new ArrayList<long[]>();
+		for (long[] c : codes) {
+			long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (last != null && last[1] + 1 >= c[0]) {
+				last[1] = Math.max(last[1], c[1]);
+			} else {
+				merged.add(c);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Creates empty inverted index, it is filled and maintained by OpPrivateObjectInstancesById
+	 */
+	RuntimeIndex createRuntimeIndex() {
+		return new RuntimeIndex();
+	}
+
+	/**
+	 * Sorted inverted index of runtime superblock: native index value -> object keys, so equality, IN, 
+	 * range and prefix searches are O(matches). It is updated on every object change, so it is never rebuilt after edit.
+	 */
+	class RuntimeIndex {
+		private final ConcurrentSkipListMap<Object, Set<CompoundKey>> keysByValue = new ConcurrentSkipListMap<>(OpIndexColumn::compareNative);
+
+		OpIndexColumn getColumn() {
+			return OpIndexColumn.this;
+		}
+
+		void update(CompoundKey k, OpObject prev, OpObject obj) {
+			if (prev != null && !prev.isDeleted()) {
+				List<Object> array = eval(prev, null);
+				if (array != null) {
+					for (Object v : array) {
+						Object nv = toNativeValue(v);
+						Set<CompoundKey> keys = nv == null ? null : keysByValue.get(nv);
+						if (keys != null) {
+							keys.remove(k);
+						}
+					}
+				}
+			}
+			if (obj != null && !obj.isDeleted()) {
+				List<Object> array = eval(obj, null);
+				if (array != null) {
+					for (Object v : array) {
+						Object nv = toNativeValue(v);
+						if (nv != null) {
+							keysByValue.computeIfAbsent(nv, s -> ConcurrentHashMap.newKeySet()).add(k);
+						}
+					}
+				}
+			}
+		}
+
+		Set<CompoundKey> getKeys(SearchType searchType, Object[] args) {
+			if (searchType == SearchType.EQUALS) {
+				Object nv = toNativeValue(args[0]);
+				Set<CompoundKey> keys = nv == null ? null : keysByValue.get(nv);
+				return keys == null ? Collections.emptySet() : keys;
+			}
+			Set<CompoundKey> res = new LinkedHashSet<CompoundKey>();
+			switch (searchType) {
+			case IN:
+				for (Object a : args) {
+					Object nv = toNativeValue(a);
+					Set<CompoundKey> keys = nv == null ? null : keysByValue.get(nv);
+					if (keys != null) {
+						res.addAll(keys);
+					}
+				}
+				break;
+			case RANGE:
+				Object from = getRangeBound(args, 0);
+				Object to = getRangeBound(args, 1);
+				NavigableMap<Object, Set<CompoundKey>> mp = keysByValue;
+				if (from != null) {
+					mp = mp.tailMap(from, true);
+				}
+				if (to != null) {
+					mp = mp.headMap(to, true);
+				}
+				for (Set<CompoundKey> keys : mp.values()) {
+					res.addAll(keys);
+				}
+				break;
+			case BBOX:
+				for (long[] r : getBBoxTileRanges(args)) {
+					for (Set<CompoundKey> keys : keysByValue.subMap(r[0], true, r[1], true).values()) {
+						res.addAll(keys);
+					}
+				}
+				break;
+			case PREFIX:
+				if (columnDef.isInteger()) {
+					throw new UnsupportedOperationException("Prefix search is not supported for integer column " + columnDef.getColName());
+				}
+				String prefix = args[0].toString();
+				for (Entry<Object, Set<CompoundKey>> e : keysByValue.tailMap(prefix, true).entrySet()) {
+					if (!e.getKey().toString().startsWith(prefix)) {
+						break;
+					}
+					res.addAll(e.getValue());
+				}
+				break;
+			default:
+				throw new UnsupportedOperationException();
+			}
+			return res;
+		}
+	}
 	
 	
 }
\ No newline at end of file
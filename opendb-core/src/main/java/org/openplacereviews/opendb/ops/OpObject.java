@@ -68,6 +68,16 @@ public class OpObject {
 		createOpObjectCopy(cp, copyCacheFields);
 	}
 
+	/**
+	 * Creates object from stored json which fields are parsed on first access
+	 * (object is fully parsed on iteration, modification or copy)
+	 */
+	public static OpObject parseLazy(String json) {
+		OpObject obj = new OpObject();
+		obj.fields = new OpPrivateLazyFields(json);
+		return obj;
+	}
+
 	@SuppressWarnings("unchecked")
 	private OpObject createOpObjectCopy(OpObject opObject, boolean copyCacheFields) {
 		this.parentType = opObject.parentType;
@@ -91,7 +101,7 @@ public class OpObject {
 		if (object instanceof Number) {
 			return (Number) object;
 		} else if (object instanceof String) {
-			return (String) object;
+			return OUtils.intern((String) object);
 		} else if (object instanceof Boolean) {
 			return (Boolean) object;
 		} else if (object instanceof List) {
@@ -105,13 +115,14 @@ public class OpObject {
 			Map<Object, Object> copy = new LinkedHashMap<>();
 			Map<Object, Object> map = (Map<Object, Object>) object;
 			for (Object o : map.keySet()) {
-				copy.put(o, copyingObjects(map.get(o), copyCacheFields));
+				copy.put(o instanceof String ? OUtils.intern((String) o) : o, copyingObjects(map.get(o), copyCacheFields));
 			}
 			return copy;
 		} else if (object instanceof OpObject) {
 			return new OpObject((OpObject) object);
 		} else if (object instanceof OpExprEvaluator) {
-			return new OpExprEvaluator(((OpExprEvaluator) object).getEctx());
+			// compiled expression is immutable and could be shared
+			return object;
 		} else {
 			throw new UnsupportedOperationException("Type of object is not supported");
 		}
@@ -456,6 +467,17 @@ public class OpObject {
 	
 	public Map<String, Object> getMixedFieldsAndCacheMap() {
 		TreeMap<String, Object> mp = new TreeMap<>(fields);
+		Map<String, Object> eval = getEvalFields();
+		if (eval != null) {
+			mp.put(F_EVAL, eval);
+		}
+		return mp;
+	}
+
+	/**
+	 * Transient fields (parent operation and cache) which are output as eval field, null if there are none
+	 */
+	public Map<String, Object> getEvalFields() {
 		if(cacheFields != null || parentType != null || parentHash != null) {
 			TreeMap<String, Object> eval = new TreeMap<String, Object>();
 			
@@ -476,10 +498,18 @@ public class OpObject {
 				}
 			}
 			if(eval.size() > 0) {
-				mp.put(F_EVAL, eval);
+				return eval;
 			}
 		}
-		return mp;
+		return null;
+	}
+
+	/**
+	 * Json stored in db for objects loaded lazily which fields were not parsed completely yet, otherwise null.
+	 * Stored json has same content as objToJson but could have different formatting and order of keys.
+	 */
+	public String getStoredJson() {
+		return fields instanceof OpPrivateLazyFields ? ((OpPrivateLazyFields) fields).getJson() : null;
 	}
 
 	@Override
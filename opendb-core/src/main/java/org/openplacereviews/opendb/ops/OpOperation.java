@@ -27,6 +27,8 @@ public class OpOperation extends OpObject {
 	private List<OpObject> createdObjects = new LinkedList<OpObject>();
 	private List<OpObject> editedObjects = new LinkedList<OpObject>();
 	protected String type;
+	// length of json, calculated only once for immutable operation
+	private transient volatile int jsonSize = -1;
 
 	public OpOperation() {
 	}
@@ -76,6 +78,16 @@ public class OpOperation extends OpObject {
 		return this;
 	}
 
+	public int getCachedJsonSize() {
+		return jsonSize;
+	}
+
+	public void setCachedJsonSize(int jsonSize) {
+		if (isImmutable) {
+			this.jsonSize = jsonSize;
+		}
+	}
+
 	public void setSignedBy(String value) {
 		putStringValue(F_SIGNED_BY, value);
 	}
@@ -292,7 +304,7 @@ public class OpOperation extends OpObject {
 			JsonElement tp = jsonObj.remove(F_TYPE);
 			if(tp != null) {
 				String opType = tp.getAsString();
-				op.type = opType;
+				op.type = OUtils.intern(opType);
 			} else {
 				op.type = "";
 			}
@@ -0,0 +1,100 @@
+package org.openplacereviews.opendb.ops;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.openplacereviews.opendb.util.OpExprEvaluator;
+
+/**
+ * Read-only view of object (operation) fields which is used as context of validation expressions,
+ * so expressions access fields maps directly and operation is not converted to json for every validation.
+ * Fields calculated for evaluation (type, created / edited objects of operation, new / old / ref objects)
+ * override fields of the object in the same way as they were added to json context.
+ */
+class OpPrivateEvaluationFields extends AbstractMap<String, Object> {
+
+	private final Map<String, Object> fields;
+	private final Map<String, Object> extra = new LinkedHashMap<>();
+
+	private OpPrivateEvaluationFields(Map<String, Object> fields) {
+		this.fields = fields;
+	}
+
+	static OpPrivateEvaluationFields object(OpObject obj, String type) {
+		OpPrivateEvaluationFields f = new OpPrivateEvaluationFields(obj.getRawOtherFields());
+		if (type != null) {
+			f.extra.put(OpOperation.F_TYPE, type);
+		}
+		return f;
+	}
+
+	static OpPrivateEvaluationFields operation(OpOperation o, Collection<OpObject> newObjs, List<OpObject> oldObjs,
+			Map<String, OpObject> refObjs) {
+		OpPrivateEvaluationFields f = new OpPrivateEvaluationFields(o.getRawOtherFields());
+		if (o.getType() != null) {
+			f.extra.put(OpOperation.F_TYPE, o.getType());
+		}
+		if (o.hasEdited()) {
+			f.extra.put(OpOperation.F_EDIT, objects(o.getEdited(), false));
+		}
+		if (o.hasCreated()) {
+			f.extra.put(OpOperation.F_CREATE, objects(o.getCreated(), false));
+		}
+		Map<String, Object> refs = new TreeMap<>();
+		for (Map.Entry<String, OpObject> e : refObjs.entrySet()) {
+			refs.put(e.getKey(), object(e.getValue(), e.getValue().getParentType()));
+		}
+		f.extra.put(OpExprEvaluator.F_REF, Collections.unmodifiableMap(refs));
+		f.extra.put(OpExprEvaluator.F_OLD, objects(oldObjs, true));
+		f.extra.put(OpExprEvaluator.F_NEW, objects(newObjs, false));
+		return f;
+	}
+
+	private static List<Object> objects(Collection<OpObject> objs, boolean withType) {
+		List<Object> l = new ArrayList<>(objs.size());
+		for (OpObject o : objs) {
+			l.add(object(o, withType ? o.getParentType() : null));
+		}
+		return Collections.unmodifiableList(l);
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (extra.containsKey(key)) {
+			return extra.get(key);
+		}
+		return fields.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return extra.containsKey(key) || fields.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		int sz = fields.size();
+		for (String k : extra.keySet()) {
+			if (!fields.containsKey(k)) {
+				sz++;
+			}
+		}
+		return sz;
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		// iteration is rare (only for functions over whole object), so entries are not cached
+		Map<String, Object> all = new LinkedHashMap<>(fields);
+		all.putAll(extra);
+		return Collections.unmodifiableMap(all).entrySet();
+	}
+
+}
@@ -0,0 +1,135 @@
+package org.openplacereviews.opendb.ops;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.util.JsonFormatter.MapDeserializerDoubleAsIntFix;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Fields of object loaded from db which are kept as raw json and parsed on first access.
+ * Single field lookups (id, index columns, expressions) parse only requested top level field,
+ * any iteration, modification or lookup of many fields parses whole object once
+ * (same values as OpObjectAdapter produces). Access is synchronized as loaded objects are shared by cache.
+ */
+class OpPrivateLazyFields extends AbstractMap<String, Object> {
+
+	// after that amount of separate lookups object is parsed completely
+	private static final int MAX_LAZY_FIELDS = 3;
+	private static final Object ABSENT = new Object();
+	private static final Object NULL = new Object();
+	private static final MapDeserializerDoubleAsIntFix READER = new MapDeserializerDoubleAsIntFix();
+
+	private String json;
+	private Map<String, Object> parsed;
+	private TreeMap<String, Object> fields;
+
+	OpPrivateLazyFields(String json) {
+		this.json = json;
+	}
+
+	@Override
+	public synchronized Object get(Object key) {
+		if (fields != null) {
+			return fields.get(key);
+		}
+		Object v = find(key);
+		return v == ABSENT || v == NULL ? null : v;
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		if (fields != null) {
+			return fields.containsKey(key);
+		}
+		return find(key) != ABSENT;
+	}
+
+	@Override
+	public synchronized Object put(String key, Object value) {
+		return materialize().put(key, value);
+	}
+
+	@Override
+	public synchronized Object remove(Object key) {
+		return materialize().remove(key);
+	}
+
+	@Override
+	public synchronized Set<Entry<String, Object>> entrySet() {
+		return materialize().entrySet();
+	}
+
+	synchronized boolean isMaterialized() {
+		return fields != null;
+	}
+
+	/**
+	 * Stored json while fields are not parsed completely (null afterwards)
+	 */
+	synchronized String getJson() {
+		return json;
+	}
+
+	private Object find(Object key) {
+		if (!(key instanceof String) || OpObject.F_EVAL.equals(key)) {
+			return ABSENT;
+		}
+		Object v = parsed == null ? null : parsed.get(key);
+		if (v != null) {
+			return v;
+		}
+		if (parsed != null && parsed.size() >= MAX_LAZY_FIELDS) {
+			TreeMap<String, Object> f = materialize();
+			return !f.containsKey(key) ? ABSENT : (f.get(key) == null ? NULL : f.get(key));
+		}
+		v = readField((String) key);
+		if (parsed == null) {
+			parsed = new HashMap<String, Object>();
+		}
+		parsed.put((String) key, v);
+		return v;
+	}
+
+	private Object readField(String key) {
+		mLazyField.start().capture();
+		try (JsonReader reader = new JsonReader(new StringReader(json))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (key.equals(reader.nextName())) {
+					Object v = READER.read(new JsonParser().parse(reader));
+					return v == null ? NULL : v;
+				}
+				reader.skipValue();
+			}
+			return ABSENT;
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private TreeMap<String, Object> materialize() {
+		if (fields == null) {
+			mMaterialize.start().capture();
+			TreeMap<String, Object> f = (TreeMap<String, Object>) READER.read(new JsonParser().parse(json));
+			f.remove(OpObject.F_EVAL);
+			fields = f;
+			json = null;
+			parsed = null;
+		}
+		return fields;
+	}
+
+	private static final PerformanceMetric mLazyField = PerformanceMetrics.i().getMetric("blc.obj.lazy.field");
+	private static final PerformanceMetric mMaterialize = PerformanceMetrics.i().getMetric("blc.obj.lazy.materialize");
+}
@@ -2,6 +2,7 @@ package org.openplacereviews.opendb.ops;
 
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
+import org.openplacereviews.opendb.ops.OpIndexColumn.RuntimeIndex;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
 import org.openplacereviews.opendb.util.OUtils;
@@ -21,6 +22,8 @@ class OpPrivateObjectInstancesById {
 	private Map<Object, CacheObject> cacheMap = null;
 	private AtomicInteger editVersion = new AtomicInteger(0);
 	private final BlockDbAccessInterface dbAccess;
+	// inverted indexes of runtime objects by index id, created on first search and updated on every change
+	private final Map<String, RuntimeIndex> runtimeIndexes = new ConcurrentHashMap<>();
 
 	static class CacheObject {
 		Object cacheObject;
@@ -52,6 +55,47 @@ class OpPrivateObjectInstancesById {
 		}
 		return objects.entrySet().stream();
 	}
+
+	Stream<Entry<CompoundKey, OpObject>> getRawObjects(Collection<CompoundKey> keys) {
+		if (dbAccess != null) {
+			throw new UnsupportedOperationException();
+		}
+		return keys.stream().map(k -> {
+			OpObject o = objects.get(k);
+			return o == null ? null : new AbstractMap.SimpleImmutableEntry<CompoundKey, OpObject>(k, o);
+		}).filter(Objects::nonNull);
+	}
+
+	RuntimeIndex getRuntimeIndex(OpIndexColumn col) {
+		if (dbAccess != null) {
+			throw new UnsupportedOperationException();
+		}
+		RuntimeIndex idx = runtimeIndexes.get(col.getIndexId());
+		if (idx != null && idx.getColumn() == col) {
+			return idx;
+		}
+		synchronized (runtimeIndexes) {
+			idx = runtimeIndexes.get(col.getIndexId());
+			if (idx == null || idx.getColumn() != col) {
+				// changes wait till index is filled and published
+				idx = col.createRuntimeIndex();
+				for (Entry<CompoundKey, OpObject> e : objects.entrySet()) {
+					idx.update(e.getKey(), null, e.getValue());
+				}
+				runtimeIndexes.put(col.getIndexId(), idx);
+			}
+			return idx;
+		}
+	}
+
+	private void updateRuntimeIndexes(CompoundKey k, OpObject prev, OpObject obj) {
+		// lock guarantees that index being filled sees this change or is published before it is applied
+		synchronized (runtimeIndexes) {
+			for (RuntimeIndex idx : runtimeIndexes.values()) {
+				idx.update(k, prev, obj);
+			}
+		}
+	}
 	
 	BlockDbAccessInterface getDbAccess() {
 		return dbAccess;
@@ -69,7 +113,7 @@ class OpPrivateObjectInstancesById {
 	public Stream<Entry<CompoundKey, OpObject>> fetchObjects(ObjectsSearchRequest request, 
 			int superBlockSize, OpIndexColumn col, Object... args) throws DBStaleException {
 		// limit will be negative
-		int limit = request.limit - request.result.size();
+		int limit = request.limit - request.internalProgress;
 		Stream<Entry<CompoundKey, OpObject>> stream;
 		if(col != null) {
 			stream = col.streamObjects(this, superBlockSize, type, limit, request, args);
@@ -93,6 +137,20 @@ class OpPrivateObjectInstancesById {
 		return obj;
 	}
 
+	Map<CompoundKey, OpObject> getByKeys(Collection<CompoundKey> keys) throws DBStaleException {
+		if (dbAccess != null) {
+			return dbAccess.getObjectsByIds(type, keys);
+		}
+		Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+		for (CompoundKey k : keys) {
+			OpObject obj = objects.get(k);
+			if (obj != null) {
+				res.put(k, obj);
+			}
+		}
+		return res;
+	}
+
 	public OpObject getObjectById(String primaryKey, String secondaryKey) throws DBStaleException {
 		return getByKey(new CompoundKey(primaryKey, secondaryKey), true);
 	}
@@ -112,7 +170,8 @@ class OpPrivateObjectInstancesById {
 		while (objs.hasNext()) {
 			Entry<CompoundKey, OpObject> e = objs.next();
 			if (!objects.containsKey(e.getKey()) || overwrite) {
-				objects.put(e.getKey(), e.getValue());
+				OpObject r = objects.put(e.getKey(), e.getValue());
+				updateRuntimeIndexes(e.getKey(), r, e.getValue());
 			}
 		}
 		resetAfterEdit();
@@ -126,20 +185,35 @@ class OpPrivateObjectInstancesById {
 	}
 
 	public OpObject add(List<String> id, OpObject newObj) {
+		return add(new CompoundKey(0, id), newObj);
+	}
+
+	public OpObject add(CompoundKey k, OpObject newObj) {
 		if (dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		OpObject r = objects.put(new CompoundKey(0, id), newObj == null ? OpObject.NULL : newObj);
+		OpObject obj = newObj == null ? OpObject.NULL : newObj;
+		OpObject r = objects.put(k, obj);
+		updateRuntimeIndexes(k, r, obj);
 		resetAfterEdit();
 		return r;
 	}
+
+	Set<CompoundKey> getRuntimeKeys() {
+		if (dbAccess != null) {
+			throw new UnsupportedOperationException();
+		}
+		return objects.keySet();
+	}
 	
 	// Be attentive this method deletes 1 object version, but doesn't hide it 
 	public OpObject internalRemove(List<String> id) {
 		if (dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		OpObject r = objects.remove( new CompoundKey(0, id));
+		CompoundKey k = new CompoundKey(0, id);
+		OpObject r = objects.remove(k);
+		updateRuntimeIndexes(k, r, null);
 		resetAfterEdit();
 		return r;
 	}
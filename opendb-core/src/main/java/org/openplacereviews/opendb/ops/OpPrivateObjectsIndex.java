@@ -0,0 +1,84 @@
+package org.openplacereviews.opendb.ops;
+
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Flattened "latest version" index of runtime (non db) superblocks.
+ * Maps (type, key) to the superblock that owns latest version of the object,
+ * so lookup costs 1 probe no matter how many runtime superblocks are in the chain.
+ *
+ * Index covers parent runtime superblocks till first db accessed (or null) superblock.
+ * Index is built when parent of superblock is set (atomicSetParent), parents are not replaced in place
+ * (compact / save to db create copies of chain with equal parent), so index is not validated on lookup.
+ * Maps of types which are not changed by superblock are shared with index of parent (copy on first write).
+ */
+class OpPrivateObjectsIndex {
+
+	private final Map<String, Map<CompoundKey, OpBlockChain>> owners = new ConcurrentHashMap<>();
+	// types which maps are owned by this index (others are shared with parent index and must not be modified)
+	private final Set<String> ownTypes = ConcurrentHashMap.newKeySet();
+	private final OpBlockChain dbParent;
+
+	private OpPrivateObjectsIndex(OpBlockChain dbParent) {
+		this.dbParent = dbParent;
+	}
+
+	/**
+	 * Creates index for runtime superblock based on (locked) parent
+	 */
+	static OpPrivateObjectsIndex create(OpBlockChain parent, OpPrivateObjectsIndex parentIndex) {
+		if (parent.isNullBlock() || parent.isDbAccessed()) {
+			return new OpPrivateObjectsIndex(parent);
+		}
+		if (parentIndex != null) {
+			// parent index is immutable as parent is locked
+			OpPrivateObjectsIndex ind = new OpPrivateObjectsIndex(parentIndex.dbParent);
+			ind.owners.putAll(parentIndex.owners);
+			return ind;
+		}
+		// rebuild from the farthest superblock so newer versions override older ones
+		OpPrivateObjectsIndex ind = create(parent.getParent(), null);
+		ind.putOwners(parent);
+		return ind;
+	}
+
+	void putOwners(OpBlockChain owner) {
+		for (OpPrivateObjectInstancesById oi : owner.getRuntimeObjectsById()) {
+			for (CompoundKey k : oi.getRuntimeKeys()) {
+				putOwner(oi.getType(), k, owner);
+			}
+		}
+	}
+
+	OpBlockChain getOwner(String type, CompoundKey k) {
+		Map<CompoundKey, OpBlockChain> m = owners.get(type);
+		if (m == null) {
+			return null;
+		}
+		return m.get(k);
+	}
+
+	void putOwner(String type, CompoundKey k, OpBlockChain owner) {
+		Map<CompoundKey, OpBlockChain> m = owners.get(type);
+		if (!ownTypes.contains(type)) {
+			m = m == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(m);
+			m.put(k, owner);
+			owners.put(type, m);
+			ownTypes.add(type);
+			return;
+		}
+		m.put(k, owner);
+	}
+
+	/**
+	 * First db accessed or null superblock which is not covered by this index
+	 */
+	OpBlockChain getDbParent() {
+		return dbParent;
+	}
+
+}
@@ -0,0 +1,110 @@
+package org.openplacereviews.opendb.ops;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.openplacereviews.opendb.SecUtils;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+/**
+ * Running totals of operations queue: amount of operations, json size and merkle trees of
+ * operation hashes and signatures, so capacity checks are O(1) and block creation doesn't rehash operations.
+ * Merkle trees are kept as append-only frontier (pending left node per level) and give
+ * same result as OpBlockchainRules.calculateMerkleTreeHash / calculateSigMerkleTreeHash.
+ *
+ * Totals are modified only inside atomic operations of the chain.
+ */
+class OpPrivateQueueTotals {
+
+	private volatile int opsCount;
+	private volatile long jsonSize;
+	private OpOperation last;
+	private final MerkleFrontier hashes = new MerkleFrontier();
+	private final MerkleFrontier sigHashes = new MerkleFrontier();
+
+	void add(OpOperation o, JsonFormatter formatter) {
+		hashes.add(OpBlockchainRules.getMerkleTreeLeaf(o));
+		sigHashes.add(OpBlockchainRules.getSigMerkleTreeLeaf(o));
+		jsonSize += formatter.getOpJsonSize(o);
+		last = o;
+		opsCount++;
+	}
+
+	void clear() {
+		hashes.clear();
+		sigHashes.clear();
+		jsonSize = 0;
+		last = null;
+		opsCount = 0;
+	}
+
+	int getOpsCount() {
+		return opsCount;
+	}
+
+	long getJsonSize() {
+		return jsonSize;
+	}
+
+	/**
+	 * Checks that totals cover exactly operations of the queue (queue is exposed and could be modified directly)
+	 */
+	boolean isAccounted(Deque<OpOperation> queue) {
+		return queue.peekLast() == last && queue.size() == opsCount;
+	}
+
+	String getMerkleTreeHash() {
+		return hashes.getRoot();
+	}
+
+	String getSigMerkleTreeHash() {
+		return sigHashes.getRoot();
+	}
+
+	private static class MerkleFrontier {
+		private static final byte[] EMPTY = new byte[0];
+		// root of complete subtree of 2^level leaves waiting for right sibling (or null)
+		private final List<byte[]> levels = new ArrayList<byte[]>();
+
+		void add(byte[] leaf) {
+			// null and empty leaves are merged in the same way
+			byte[] node = leaf == null ? EMPTY : leaf;
+			int l = 0;
+			while (l < levels.size() && levels.get(l) != null) {
+				node = SecUtils.calculateHash(SecUtils.HASH_SHA256, levels.get(l), node);
+				levels.set(l, null);
+				l++;
+			}
+			if (l == levels.size()) {
+				levels.add(node);
+			} else {
+				levels.set(l, node);
+			}
+		}
+
+		void clear() {
+			levels.clear();
+		}
+
+		String getRoot() {
+			byte[] carry = null;
+			for (int l = 0; l < levels.size(); l++) {
+				byte[] left = levels.get(l);
+				// top level always has node, so below it last node of the level is duplicated if it has no pair
+				boolean top = l == levels.size() - 1;
+				if (left != null && carry != null) {
+					carry = SecUtils.calculateHash(SecUtils.HASH_SHA256, left, carry);
+				} else if (left != null) {
+					carry = top ? left : SecUtils.calculateHash(SecUtils.HASH_SHA256, left, left);
+				} else if (carry != null && !top) {
+					carry = SecUtils.calculateHash(SecUtils.HASH_SHA256, carry, carry);
+				}
+			}
+			if (carry == null) {
+				return "";
+			}
+			return SecUtils.formatHashWithAlgo(SecUtils.HASH_SHA256, carry);
+		}
+	}
+}
@@ -35,13 +35,19 @@ public class ColumnDef {
 	}
 
 	public enum IndexType {
-		NOT_INDEXED, INDEXED, GIN, GIST
+		// SPATIAL is bigint quadtree tile code of point (lat, lon field expressions) with btree index
+		NOT_INDEXED, INDEXED, GIN, GIST, SPATIAL
 	}
 
 	public boolean isInteger() {
 		return colType.startsWith("int") || colType.startsWith("bigint");
 	}
 
+	public boolean isText() {
+		String scalarType = getScalarType();
+		return scalarType.startsWith("text") || scalarType.startsWith("varchar") || scalarType.startsWith("character");
+	}
+
 	public String getScalarType() {
 		String columnType = colType;
 		int indexOf = colType.indexOf("[");
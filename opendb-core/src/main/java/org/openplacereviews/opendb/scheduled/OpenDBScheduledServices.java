@@ -71,7 +71,7 @@ public class OpenDBScheduledServices {
 	
 	@Scheduled(fixedRate = BLOCK_CREATION_PULSE_INTERVAL_SECONDS * SECOND)
 	public void createBlock() throws FailedVerificationException {
-		int sz = blocksManager.getBlockchain().getQueueOperations().size();
+		int sz = blocksManager.getBlockchain().getQueueSize();
 		if(blocksManager.getBlockchain().getStatus() == OpBlockChain.UNLOCKED && sz > 0 && 
 				blocksManager.isBlockCreationOn()) {
 //			OpBlock hd = blocksManager.getBlockchain().getLastBlockHeader();
@@ -1,9 +1,11 @@
 package org.openplacereviews.opendb.service;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
+import java.net.URLConnection;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -16,12 +18,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.OpenDBServer.MetadataDb;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.api.MgmtController;
+import org.openplacereviews.opendb.ops.OpBinaryCodec;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.ops.OpBlockChain.DeletedObjectCtx;
@@ -87,7 +96,12 @@ public class BlocksManager {
 	
 	private KeyPair serverKeyPair;
 	
-	private OpBlockChain blockchain;
+	// current version of blockchain: readers use it without locks,
+	// multi step changes build new version aside and publish it by replacing reference
+	private volatile OpBlockChain blockchain;
+
+	// only 1 block is created or replicated at a time, other writers are not blocked while block is prepared
+	private final Object blockCreationLock = new Object();
 	
 	private String statusDescription = "";
 	
@@ -181,14 +195,24 @@ public class BlocksManager {
 		return false;
 	}
 
-	public synchronized boolean addOperation(OpOperation originalOp) {
-		if (blockchain == null) {
+	public boolean addOperation(OpOperation originalOp) {
+		OpBlockChain current = blockchain;
+		if (current == null) {
 			return false;
 		}
-		Metric m = mBlockAddOpp.start();
 		// copy operation so it's not possible to insert even cache fields
 		OpOperation op = new OpOperation(originalOp, false);
 		op.makeImmutable();
+		// verify signature before lock, so concurrent requests are not serialized on it
+		current.getRules().prevalidateOperations(current, Collections.singletonList(op));
+		return addOperationInternal(op);
+	}
+
+	private synchronized boolean addOperationInternal(OpOperation op) {
+		if (blockchain == null) {
+			return false;
+		}
+		Metric m = mBlockAddOpp.start();
 		boolean existing = dataManager.validateExistingOperation(op);
 		if (!existing) {
 			dataManager.insertOperation(op);
@@ -210,33 +234,42 @@ public class BlocksManager {
 		return added;
 	}
 
-	public synchronized OpBlock createBlock() throws FailedVerificationException {
+	public OpBlock createBlock() throws FailedVerificationException {
 		return createBlock(0);
 	}
 	
-	public synchronized OpBlock createBlock(double minCapacity) throws FailedVerificationException {
-		// should be changed synchronized in future:
-		// This method doesn't need to be full synchronized cause it could block during compacting or any other operation adding ops
-		if(blockchain.getQueueOperations().isEmpty()) {
+	public OpBlock createBlock(double minCapacity) throws FailedVerificationException {
+		synchronized (blockCreationLock) {
+			return createBlockInternal(minCapacity);
+		}
+	}
+
+	private OpBlock createBlockInternal(double minCapacity) throws FailedVerificationException {
+		// block is prepared on pinned version, new operations could be added meanwhile
+		OpBlockChain current = blockchain;
+		if(current.getQueueOperations().isEmpty()) {
 			return null;
 		}
-		if (OpBlockChain.UNLOCKED != blockchain.getStatus()) {
+		if (OpBlockChain.UNLOCKED != current.getStatus()) {
 			throw new IllegalStateException("Blockchain is not ready to create block");
 		}
 		Metric mt = mBlockCreate.start();		
-		List<OpOperation> candidates = pickupOpsFromQueue(minCapacity, blockchain.getQueueOperations());
+		// capacity of whole queue is upper bound for picked up operations
+		if (capacity(current.getQueueJsonSize(), current.getQueueSize()) < minCapacity) {
+			mt.capture();
+			return null;
+		}
+		List<OpOperation> candidates = pickupOpsFromQueue(minCapacity, current.getQueueOperations());
 		if(candidates == null) {
 			mt.capture();
 			return null;
 		}
 		
 		Metric m = mBlockCreateAddOps.start();
-		OpBlockChain blc = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
+		OpBlockChain blc = new OpBlockChain(current.getParent(), current.getRules());
 		DeletedObjectCtx hctx = new DeletedObjectCtx();
-		for (OpOperation o : candidates) {
-			if(!blc.addOperation(o, hctx)) {
-				return null;
-			}
+		if(!blc.addOperations(candidates, hctx)) {
+			return null;
 		}
 		m.capture();
 
@@ -256,6 +289,11 @@ public class BlocksManager {
 
 	private OpBlock replicateValidBlock(OpBlockChain blockChain, OpBlock opBlock, DeletedObjectCtx hctx) {
 		Metric pm = mBlockReplicate.start();
+		// parent is changed only under block creation lock (revert), so it is checked before anything is persisted
+		if (!isSameParent(blockChain)) {
+			pm.capture();
+			return null;
+		}
 		// insert block could fail if hash is duplicated but it won't hurt the system
 		Metric m = mBlockSaveBlock.start();
 		dataManager.insertBlock(opBlock);
@@ -267,14 +305,28 @@ public class BlocksManager {
 		m.capture();
 		
 		// change only after block is inserted into db
-		m = mBlockRebase.start();
-		boolean changeParent = this.blockchain.rebaseOperations(blockChain);
-		if(!changeParent) {
-			return null;
+		synchronized (this) {
+			m = mBlockRebase.start();
+			OpBlockChain rebased = null;
+			try {
+				if (isSameParent(blockChain)) {
+					rebased = blockchain.createRebasedCopy(blockChain);
+				}
+			} finally {
+				m.capture();
+				if (rebased == null) {
+					// block is not published, so it shouldn't stay in db (history is deleted with it)
+					dataManager.removeFullBlock(opBlock);
+					pm.capture();
+				}
+			}
+			if (rebased == null) {
+				return null;
+			}
+			blockchain = rebased;
+			compact();
 		}
-		m.capture();
-		compact();
-		OpBlock header = OpBlock.createHeader(opBlock, blockchain.getRules());
+		OpBlock header = OpBlock.createHeader(opBlock, blockChain.getRules());
 		logSystem.logSuccessBlock(header,
 				String.format("New block '%s':%d  is created on top of '%s'. ",
 						opBlock.getFullHash(), opBlock.getBlockId(), opBlock.getStringValue(OpBlock.F_PREV_BLOCK_HASH) ));
@@ -288,35 +340,52 @@ public class BlocksManager {
 		return opBlock;
 	}
 
+	private boolean isSameParent(OpBlockChain blockChain) {
+		return OUtils.equals(blockchain.getParent().getLastBlockRawHash(), blockChain.getParent().getLastBlockRawHash());
+	}
+
 	public synchronized boolean compact() {
 		Metric m = mBlockSaveSuperBlock.start();
 		OpBlockChain savedParent = dataManager.saveMainBlockchain(blockchain.getParent());
-		if(blockchain.getParent() != savedParent) {
-			blockchain.changeToEqualParent(savedParent);
-		}
+		publishWithEqualParent(savedParent);
 		m.capture();
 		
 		m = mBlockCompact.start();
 		OpBlockChain newParent = dataManager.compact(0, blockchain.getParent(), true);
-		if(newParent != blockchain.getParent()) {
-			blockchain.changeToEqualParent(newParent);
-		}
+		publishWithEqualParent(newParent);
 		m.capture();
 		
 		return true;
 	}
-	
-	public synchronized boolean clearQueue() {
-		TreeSet<String> set = new TreeSet<>(); 
-		for(OpOperation o: blockchain.getQueueOperations()) {
-			set.add(o.getRawHash());
+
+	// published chain is never modified, readers keep using previous version
+	private boolean publishWithEqualParent(OpBlockChain newParent) {
+		if (blockchain.getParent() == newParent) {
+			return true;
 		}
-		boolean cleared = blockchain.removeAllQueueOperations();
-		if(!cleared) {
+		OpBlockChain copy = blockchain.createCopyWithEqualParent(newParent);
+		if (copy == null) {
 			return false;
 		}
-		return dataManager.removeOperations(set) == set.size();
-		// blockchain = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
+		blockchain = copy;
+		return true;
+	}
+	
+	public boolean clearQueue() {
+		// lock order: block creation lock, then this
+		synchronized (blockCreationLock) {
+			synchronized (this) {
+				if (blockchain.getStatus() != OpBlockChain.UNLOCKED || blockchain.getSuperblockSize() != 0) {
+					return false;
+				}
+				TreeSet<String> set = new TreeSet<>(); 
+				for(OpOperation o: blockchain.getQueueOperations()) {
+					set.add(o.getRawHash());
+				}
+				blockchain = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
+				return dataManager.removeOperations(set) == set.size();
+			}
+		}
 	}
 	
 	private Reader readerFromUrl(String url) throws IOException {
@@ -340,27 +409,8 @@ public class BlocksManager {
 						headersToReplicate.removeFirst();
 					}
 				}
-				for (OpBlock header : headersToReplicate) {
-					OpBlock fullBlock = downloadBlock(header);
-					if (fullBlock == null) {
-						logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED,
-								ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED.getErrorFormat(header.getRawHash()),
-								null);
-						return false;
-					}
-					fullBlock.makeImmutable();
-					for (OpOperation o : fullBlock.getOperations()) {
-						if (!dataManager.validateExistingOperation(o)) {
-							dataManager.insertOperation(o);
-						}
-					}
-					replicateOneBlock(fullBlock);
-					if (!isReplicateOn()) {
-						break;
-					}
-				}
-				return true;
-			} catch (IOException | FailedVerificationException e) {
+				return replicateBlocks(headersToReplicate);
+			} catch (IOException e) {
 				LOGGER.error(e.getMessage(), e);
 				logSystem.logError(null, ErrorType.MGMT_REPLICATION_IO_FAILED,
 						"Failed to replicate from " + getReplicateUrl(), e);
@@ -369,20 +419,115 @@ public class BlocksManager {
 		return false;
 	}
 
+	/**
+	 * Blocks are downloaded, parsed and verified in parallel ahead of the replicated block,
+	 * but only limited amount of blocks is prefetched (backpressure) and blocks are applied strictly in order.
+	 * Replication stops on first failure, so the next run continues from the last applied block.
+	 */
+	private boolean replicateBlocks(LinkedList<OpBlock> headersToReplicate) {
+		int prefetch = Math.max(1, settingsManager.OPENDB_REPLICATE_PREFETCH_BLOCKS.get());
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(prefetch, Math.max(1, headersToReplicate.size())));
+		Deque<Future<OpBlock>> prefetched = new LinkedList<Future<OpBlock>>();
+		Iterator<OpBlock> it = headersToReplicate.iterator();
+		try {
+			while (prefetched.size() < prefetch && it.hasNext()) {
+				prefetched.add(pool.submit(prefetchBlockTask(it.next())));
+			}
+			for (OpBlock header : headersToReplicate) {
+				Metric m = mBlockReplicateWait.start();
+				OpBlock fullBlock = prefetched.poll().get();
+				m.capture();
+				if (it.hasNext()) {
+					prefetched.add(pool.submit(prefetchBlockTask(it.next())));
+				}
+				if (fullBlock == null) {
+					logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED,
+							ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED.getErrorFormat(header.getRawHash()),
+							null);
+					return false;
+				}
+				m = mBlockReplicateInsertOps.start();
+				dataManager.insertMissingOperations(fullBlock.getOperations());
+				m.capture();
+				if (!replicateOneBlock(fullBlock)) {
+					logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED,
+							ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED.getErrorFormat(header.getRawHash()),
+							null);
+					return false;
+				}
+				if (!isReplicateOn()) {
+					break;
+				}
+			}
+			return true;
+		} catch (FailedVerificationException | ExecutionException e) {
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			LOGGER.error(cause.getMessage(), cause);
+			logSystem.logError(null, ErrorType.MGMT_REPLICATION_IO_FAILED,
+					"Failed to replicate from " + getReplicateUrl(), cause instanceof Exception ? (Exception) cause : e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+		return false;
+	}
+
+	private Callable<OpBlock> prefetchBlockTask(OpBlock header) {
+		return new Callable<OpBlock>() {
+
+			@Override
+			public OpBlock call() throws Exception {
+				Metric m = mBlockReplicateDownload.start();
+				OpBlock fullBlock = downloadBlock(header);
+				m.capture();
+				if (fullBlock != null) {
+					fullBlock.makeImmutable();
+					// signer keys created by not yet applied blocks are verified later during replication
+					OpBlockChain current = blockchain;
+					current.getRules().prevalidateOperations(current, fullBlock.getOperations());
+				}
+				return fullBlock;
+			}
+		};
+	}
+
 	private OpBlock downloadBlock(OpBlock header) throws IOException {
-		URL downloadByHash = new URL(getReplicateUrl() + "block-by-hash?hash=" + header.getRawHash());
-		OpBlock res = formatter.fromJson(new InputStreamReader(downloadByHash.openStream()), OpBlock.class);
+		URL downloadByHash = new URL(getReplicateUrl() + "block-by-hash?format=binary&hash=" + header.getRawHash());
+		URLConnection conn = downloadByHash.openConnection();
+		// servers without binary format support respond with json
+		conn.setRequestProperty("Accept", OpBinaryCodec.MEDIA_TYPE + ", text/json;q=0.5");
+		OpBlock res;
+		String contentType = conn.getContentType();
+		if (contentType != null && contentType.startsWith(OpBinaryCodec.MEDIA_TYPE)) {
+			try (InputStream is = conn.getInputStream()) {
+				res = OpBinaryCodec.decodeBlock(IOUtils.toByteArray(is));
+			}
+		} else {
+			try (Reader r = new InputStreamReader(conn.getInputStream())) {
+				res = formatter.fromJson(r, OpBlock.class);
+			}
+		}
 		if (res.getBlockId() == -1) {
 			return null;
 		}
 		return res;
 	}
 	
-	public synchronized boolean replicateOneBlock(OpBlock block) throws FailedVerificationException {
+	public boolean replicateOneBlock(OpBlock block) throws FailedVerificationException {
+		synchronized (blockCreationLock) {
+			return replicateOneBlockInternal(block);
+		}
+	}
+
+	private boolean replicateOneBlockInternal(OpBlock block) throws FailedVerificationException {
 		Metric m = mBlockSync.start();
-		OpBlockChain blc = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
+		OpBlockChain current = blockchain;
+		OpBlockChain blc = new OpBlockChain(current.getParent(), current.getRules());
 		DeletedObjectCtx hctx = new DeletedObjectCtx();
 		patchReplicationBlocks(blc, block);
+		// expensive hash & signature checks run in parallel before block is applied sequentially
+		current.getRules().prevalidateOperations(current, block.getOperations());
 		OpBlock res = blc.replicateBlock(block, hctx);
 		m.capture();
 		if (res == null) {
@@ -393,7 +538,15 @@ public class BlocksManager {
 		return res != null;
 	}
 	
-	public synchronized Set<String> removeQueueOperations(Set<String> operationsToDelete) {
+	public Set<String> removeQueueOperations(Set<String> operationsToDelete) {
+		synchronized (blockCreationLock) {
+			synchronized (this) {
+				return removeQueueOperationsInternal(operationsToDelete);
+			}
+		}
+	}
+	
+	private Set<String> removeQueueOperationsInternal(Set<String> operationsToDelete) {
 		Set<String> deleted = new TreeSet<String>();
 		// handle non last operations - slow method
 		OpBlockChain blc = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
@@ -448,7 +601,15 @@ public class BlocksManager {
 		}
 	}
 	
-	public synchronized boolean revertOneBlock() throws FailedVerificationException {
+	public boolean revertOneBlock() throws FailedVerificationException {
+		synchronized (blockCreationLock) {
+			synchronized (this) {
+				return revertOneBlockInternal();
+			}
+		}
+	}
+	
+	private boolean revertOneBlockInternal() throws FailedVerificationException {
 		if (OpBlockChain.UNLOCKED != blockchain.getStatus()) {
 			throw new IllegalStateException("Blockchain is not ready to create block");
 		}
@@ -456,7 +617,7 @@ public class BlocksManager {
 			return false;
 		}
 		if (blockchain.getParent().getSuperblockSize() == 1 || blockchain.getParent().isDbAccessed()) {
-			return revertSuperblock();
+			return revertSuperblockInternal();
 		}
 
 		OpBlockChain newParent = new OpBlockChain(blockchain.getParent().getParent(), blockchain.getRules());
@@ -491,7 +652,15 @@ public class BlocksManager {
 		return true;
 	}
 	
-	public synchronized boolean revertSuperblock() throws FailedVerificationException {
+	public boolean revertSuperblock() throws FailedVerificationException {
+		synchronized (blockCreationLock) {
+			synchronized (this) {
+				return revertSuperblockInternal();
+			}
+		}
+	}
+	
+	private boolean revertSuperblockInternal() throws FailedVerificationException {
 		if (OpBlockChain.UNLOCKED != blockchain.getStatus()) {
 			throw new IllegalStateException("Blockchain is not ready to create block");
 		}
@@ -502,7 +671,7 @@ public class BlocksManager {
 		OpBlockChain parent = blockchain.getParent();
 		if(parent.isDbAccessed()) {
 			OpBlockChain newParent = dataManager.unloadSuperblockFromDB(parent);
-			return blockchain.changeToEqualParent(newParent);
+			return publishWithEqualParent(newParent);
 		} else {
 			OpBlockChain blc = new OpBlockChain(blockchain.getParent().getParent(), blockchain.getRules());
 			OpBlockChain pnt = blockchain.getParent();
@@ -607,17 +776,11 @@ public class BlocksManager {
 	}
 	
 	public double getQueueCapacity() {
-		int opsSize = 0;
-		int opsCnt = 0;
-		Deque<OpOperation> ops = blockchain.getQueueOperations();
-		for (OpOperation o : ops) {
-			opsCnt++;
-			opsSize += formatter.opToJson(o).length();
-		}
-		return capacity(opsSize, opsCnt);
+		OpBlockChain blc = blockchain;
+		return capacity(blc.getQueueJsonSize(), blc.getQueueSize());
 	}
 
-	private double capacity(int size, int opsCnt) {
+	private double capacity(long size, int opsCnt) {
 		double c1 = size / ((double) OpBlockchainRules.MAX_ALL_OP_SIZE_MB);
 		double c2 = opsCnt / ((double) OpBlockchainRules.MAX_BLOCK_SIZE_OPS);
 		return Math.max(c1, c2);
@@ -628,7 +791,7 @@ public class BlocksManager {
 		int opsCnt = 0;
 		List<OpOperation> candidates = new ArrayList<OpOperation>();
 		for (OpOperation o : q) {
-			int l = formatter.opToJson(o).length();
+			int l = formatter.getOpJsonSize(o);
 			if (size + l > OpBlockchainRules.MAX_ALL_OP_SIZE_MB) {
 				break;
 			}
@@ -661,6 +824,9 @@ public class BlocksManager {
 	private static final PerformanceMetric mBlockCreateExtResources = PerformanceMetrics.i().getMetric("block.mgmt.create.extresources");
 	private static final PerformanceMetric mBlockSync = PerformanceMetrics.i().getMetric("block.mgmt.sync");
 	private static final PerformanceMetric mBlockReplicate = PerformanceMetrics.i().getMetric("block.mgmt.replicate.total");
+	private static final PerformanceMetric mBlockReplicateDownload = PerformanceMetrics.i().getMetric("block.mgmt.replicate.download");
+	private static final PerformanceMetric mBlockReplicateWait = PerformanceMetrics.i().getMetric("block.mgmt.replicate.wait");
+	private static final PerformanceMetric mBlockReplicateInsertOps = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.insertops");
 	private static final PerformanceMetric mBlockSaveBlock = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.saveblock");
 	private static final PerformanceMetric mBlockSaveHistory = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.savesuperblock");
 	private static final PerformanceMetric mBlockSaveSuperBlock = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.savehistory");
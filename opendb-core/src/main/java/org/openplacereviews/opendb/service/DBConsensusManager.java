@@ -8,31 +8,54 @@ import org.openplacereviews.opendb.OpenDBServer.MetadataDb;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.*;
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.IPFSService.ResourceDTO;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
@@ -48,6 +71,12 @@ public class DBConsensusManager {
 
 	protected static final Log LOGGER = LogFactory.getLog(DBConsensusManager.class);
 
+	private static final int BATCH_OPS_SIZE = 1000;
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+	private static final int KEYS_FETCH_SIZE = 10000;
+	// releases cursors of superblock streams which were not closed
+	private static final Cleaner CURSOR_CLEANER = Cleaner.create();
+
 	// check SimulateSuperblockCompactSequences to verify numbers
 
 	@Autowired
@@ -79,6 +108,8 @@ public class DBConsensusManager {
 	private Map<String, SuperblockDbAccess> dbSuperBlocks = new ConcurrentHashMap<>();
 	private OpBlockChain dbManagedChain = null;
 	private OpBlockchainRules rules;
+	// parsed objects of db superblocks weighted by content length
+	private volatile Cache<SuperblockObjectKey, OpObject> objectsCache;
 
 
 	public Map<String, OpBlock> getOrphanedBlocks() {
@@ -128,13 +159,13 @@ public class DBConsensusManager {
 
 		LOGGER.info("... Loading operation queue  ...");
 		int[] ops = new int[1];
-		jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where blocks is null order by dbid asc ",
+		jdbcTemplate.query("SELECT content, bcontent from " + OPERATIONS_TABLE + " where blocks is null order by dbid asc ",
 				new RowCallbackHandler() {
 
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
 						ops[0]++;
-						OpOperation op = formatter.parseOperation(rs.getString(1));
+						OpOperation op = parseOperation(rs, 1, 2);
 						op.makeImmutable();
 						blcQueue.addOperation(op);
 					}
@@ -155,6 +186,7 @@ public class DBConsensusManager {
 
 	private OpBlockChain loadBlocks(List<OpBlock> topBlockInfo, final OpBlockChain newParent,
 									final OpBlockchainRules rules) throws FailedVerificationException {
+		buildMissingKeysFilters(newParent);
 		if (topBlockInfo.size() == 0) {
 			return newParent;
 		}
@@ -174,12 +206,14 @@ public class DBConsensusManager {
 
 
 	private OpBlock loadBlock(String blockHash) {
-		List<OpBlock> blocks = jdbcTemplate.query("SELECT content from " + BLOCKS_TABLE + " where hash = ? ",
+		List<OpBlock> blocks = jdbcTemplate.query("SELECT content, bcontent from " + BLOCKS_TABLE + " where hash = ? ",
 				new Object[]{SecUtils.getHashBytes(blockHash)}, new RowMapper<OpBlock>() {
 
 					@Override
 					public OpBlock mapRow(ResultSet rs, int rowNum) throws SQLException {
-						OpBlock rawBlock = formatter.parseBlock(rs.getString(1));
+						byte[] bcontent = rs.getBytes(2);
+						OpBlock rawBlock = bcontent != null ? OpBinaryCodec.decodeBlock(bcontent) :
+								formatter.parseBlock(rs.getString(1));
 						rawBlock.makeImmutable();
 						return rawBlock;
 					}
@@ -220,9 +254,23 @@ public class DBConsensusManager {
 					jdbcTemplate.update("UPDATE " + objTable + " set superblock = ?  WHERE superblock = ? ", sbHashNew, sbHashCurrent);
 					jdbcTemplate.update("UPDATE " + objTable + " set superblock = ?  WHERE superblock = ? ", sbHashNew, sbHashParent);
 				}
+				jdbcTemplate.update("DELETE FROM " + SUPERBLOCK_FILTERS_TABLE + " WHERE superblock = ? ", sbHashCurrent);
+				jdbcTemplate.update("DELETE FROM " + SUPERBLOCK_FILTERS_TABLE + " WHERE superblock = ? ", sbHashParent);
+				Map<String, BloomFilter<CharSequence>> keyFilters = new HashMap<String, BloomFilter<CharSequence>>();
+				if (settingsManager.OPENDB_SUPERBLOCK_FILTER_FPP.get() > 0) {
+					Metric m = mSaveFilters.start();
+					for (String objTable : dbSchema.getObjectTables()) {
+						for (Entry<String, Integer> e : countSuperblockObjects(sbHashNew, objTable).entrySet()) {
+							BloomFilter<CharSequence> filter = buildKeysFilter(sbHashNew, objTable, e.getKey(), e.getValue());
+							saveKeysFilter(sbHashNew, e.getKey(), filter);
+							keyFilters.put(e.getKey(), filter);
+						}
+					}
+					m.capture();
+				}
 
 				OpBlockChain res = new OpBlockChain(blc.getParent().getParent(),
-						blockHeaders, createDbAccess(newSuperblockHash, blockHeaders), blc.getRules());
+						blockHeaders, createDbAccess(newSuperblockHash, blockHeaders, keyFilters), blc.getRules());
 				// on catch 
 //				dbSB.markAsStale(false);
 //				dbPSB.markAsStale(false);
@@ -233,23 +281,238 @@ public class DBConsensusManager {
 
 
 
+	// null if cache is disabled
+	private Cache<SuperblockObjectKey, OpObject> getObjectsCache() {
+		Cache<SuperblockObjectKey, OpObject> c = objectsCache;
+		if (c == null) {
+			long maxWeight = settingsManager.OPENDB_SUPERBLOCK_OBJECTS_CACHE_SIZE.get() * 1024L * 1024L;
+			if (maxWeight <= 0) {
+				return null;
+			}
+			synchronized (this) {
+				c = objectsCache;
+				if (c == null) {
+					c = CacheBuilder.newBuilder().maximumWeight(maxWeight).weigher(new Weigher<SuperblockObjectKey, OpObject>() {
+
+						@Override
+						public int weigh(SuperblockObjectKey key, OpObject value) {
+							return key.weight;
+						}
+					}).removalListener(new RemovalListener<SuperblockObjectKey, OpObject>() {
+
+						@Override
+						public void onRemoval(RemovalNotification<SuperblockObjectKey, OpObject> notification) {
+							if (notification.wasEvicted()) {
+								mObjCacheEvict.start().capture();
+							}
+						}
+					}).build();
+					objectsCache = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	private OpObject getCachedObject(String superblock, String type, CompoundKey k) {
+		Cache<SuperblockObjectKey, OpObject> c = getObjectsCache();
+		if (c == null) {
+			return null;
+		}
+		OpObject obj = c.getIfPresent(new SuperblockObjectKey(superblock, type, k, 0));
+		(obj != null ? mObjCacheHit : mObjCacheMiss).start().capture();
+		return obj;
+	}
+
+	private OpObject cacheObject(String superblock, String type, CompoundKey k, OpObject obj, String content) {
+		obj.makeImmutable();
+		Cache<SuperblockObjectKey, OpObject> c = getObjectsCache();
+		if (c != null) {
+			int weight = content == null ? 1 : content.length();
+			c.put(new SuperblockObjectKey(superblock, type, k, weight), obj);
+		}
+		return obj;
+	}
+
+	private void invalidateCachedObjects(String superblock) {
+		Cache<SuperblockObjectKey, OpObject> c = objectsCache;
+		if (c != null) {
+			c.asMap().keySet().removeIf(k -> k.superblock.equals(superblock));
+		}
+	}
+
+	private static class SuperblockObjectKey {
+		private final String superblock;
+		private final String type;
+		private final CompoundKey key;
+		private final int weight;
+
+		public SuperblockObjectKey(String superblock, String type, CompoundKey key, int weight) {
+			this.superblock = superblock;
+			this.type = type;
+			this.key = key;
+			this.weight = weight;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(superblock, type, key);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			SuperblockObjectKey other = (SuperblockObjectKey) obj;
+			return Objects.equals(superblock, other.superblock) && Objects.equals(type, other.type)
+					&& Objects.equals(key, other.key);
+		}
+	}
+
+	/**
+	 * Connection and result set of superblock cursor, they're kept out of spliterator
+	 * so cleaner could release them when not closed stream is garbage collected.
+	 */
+	private static class SuperblockCursor implements Runnable {
+		private volatile Connection conn;
+		private volatile PreparedStatement st;
+		private volatile ResultSet rs;
+		private volatile boolean closed;
+
+		@Override
+		public void run() {
+			if (!closed) {
+				LOGGER.warn("Superblock objects stream was not closed, cursor is released by cleaner");
+			}
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (st != null) {
+					st.close();
+				}
+				if (conn != null) {
+					conn.commit();
+					conn.setAutoCommit(true);
+					conn.close();
+				}
+			} catch (SQLException e) {
+				LOGGER.error("Error closing superblock cursor: " + e.getMessage(), e);
+			} finally {
+				rs = null;
+				st = null;
+				conn = null;
+			}
+		}
+	}
+
+	/**
+	 * Reads objects with forward only cursor, so memory doesn't depend on size of superblock.
+	 * Could be split by ranges of p1 hash to read superblock in parallel (each split uses own connection).
+	 */
 	protected class SuperblockDbSpliterator implements Spliterator<Map.Entry<CompoundKey, OpObject>> {
 
 		private static final int BATCH_SIZE = 250;
-		private SqlRowSet rs;
-		private SuperblockDbAccess dbAccess;
-		private final int keySize; 
+		private static final int FETCH_SIZE = 1000;
+		private static final int MIN_SPLIT_SIZE = 5000;
+		private static final long MIN_HASH = Integer.MIN_VALUE;
+		private static final long MAX_HASH = Integer.MAX_VALUE + 1L;
+		private final SuperblockDbAccess dbAccess;
+		private final String type;
+		private final int keySize;
+		private final boolean onlyKeys;
+		private final int limit;
+		private final String sql;
+		private final Object[] params;
+		private final Object[] extraParams;
+		// all splits of the stream to close them when stream is closed
+		private final List<SuperblockDbSpliterator> splits;
+		// range of hashtext(p1) [hashFrom, hashTo)
+		private long hashFrom = MIN_HASH;
+		private long hashTo = MAX_HASH;
+		// count of objects and min size of split are known only when stream is split
+		private long estimatedSize = -1;
+		private long minSplitSize = MIN_SPLIT_SIZE;
 		private LinkedList<Map.Entry<CompoundKey, OpObject>> results = new LinkedList<>();
+		private SuperblockCursor cursor;
+		private Cleaner.Cleanable cleanable;
+		private boolean started;
 		private boolean end;
-		private boolean onlyKeys;
-		SuperblockDbSpliterator(SuperblockDbAccess dbAccess, int keySize, boolean onlyKeys, SqlRowSet rowSet) throws DBStaleException {
+
+		SuperblockDbSpliterator(SuperblockDbAccess dbAccess, String type, int keySize, boolean onlyKeys, int limit,
+				String sql, Object[] params, Object[] extraParams) {
 			this.dbAccess = dbAccess;
+			this.type = type;
 			this.keySize = keySize;
 			this.onlyKeys = onlyKeys;
-			this.rs = rowSet;
-			readEntries();
+			this.limit = limit;
+			this.sql = sql;
+			this.params = params;
+			this.extraParams = extraParams;
+			this.splits = Collections.synchronizedList(new ArrayList<SuperblockDbSpliterator>());
+			this.splits.add(this);
 		}
-		
+
+		private SuperblockDbSpliterator(SuperblockDbSpliterator s, long hashFrom, long hashTo, long estimatedSize) {
+			this.dbAccess = s.dbAccess;
+			this.type = s.type;
+			this.keySize = s.keySize;
+			this.onlyKeys = s.onlyKeys;
+			this.limit = s.limit;
+			this.sql = s.sql;
+			this.params = s.params;
+			this.extraParams = s.extraParams;
+			this.splits = s.splits;
+			this.hashFrom = hashFrom;
+			this.hashTo = hashTo;
+			this.estimatedSize = estimatedSize;
+			this.minSplitSize = s.minSplitSize;
+			this.splits.add(this);
+		}
+
+		private void openCursor() throws SQLException {
+			boolean range = hashFrom > MIN_HASH || hashTo < MAX_HASH;
+			String q = String.format(sql, range ? " and hashtext(p1) >= ? and hashtext(p1) < ? " : "");
+			cursor = new SuperblockCursor();
+			cleanable = CURSOR_CLEANER.register(this, cursor);
+			Connection conn = jdbcTemplate.getDataSource().getConnection();
+			cursor.conn = conn;
+			// postgres uses cursor for fetch size only inside transaction
+			conn.setAutoCommit(false);
+			PreparedStatement st = conn.prepareStatement(q, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			cursor.st = st;
+			st.setFetchSize(FETCH_SIZE);
+			int ind = 1;
+			for (Object o : params) {
+				st.setObject(ind++, o);
+			}
+			if (range) {
+				st.setLong(ind++, hashFrom);
+				st.setLong(ind++, hashTo);
+			}
+			cursor.rs = st.executeQuery();
+		}
+
+		void close() {
+			end = true;
+			if (cleanable != null) {
+				cursor.closed = true;
+				cleanable.clean();
+			}
+		}
+
+		void closeAll() {
+			synchronized (splits) {
+				for (SuperblockDbSpliterator s : splits) {
+					s.close();
+				}
+			}
+		}
+
 		private boolean readEntries() throws DBStaleException {
 			if (end) {
 				return true;
@@ -257,11 +520,16 @@ public class DBConsensusManager {
 			dbAccess.readLock.lock();
 			try {
 				dbAccess.checkNotStale();
+				if (!started) {
+					started = true;
+					openCursor();
+				}
+				final ResultSet rs = cursor.rs;
 				final List<String> ls = new ArrayList<String>(5);
 				int cnt = 0;
 				while (cnt++ < BATCH_SIZE) {
 					if(!rs.next()) {
-						end = true;
+						close();
 						return true;
 					}
 					ls.clear();
@@ -270,13 +538,23 @@ public class DBConsensusManager {
 					}
 					final CompoundKey k = new CompoundKey(0, ls);
 					final OpObject obj ;
+					String parentType = rs.getString(2);
+					String parentHash = SecUtils.hexify(rs.getBytes(3));
 					if(!onlyKeys) {
-						String cont = rs.getString(1);
-						obj = cont == null ? new OpObject(true) : formatter.parseObject(cont);
+						// stream contains older versions as well, so cache is only used if it is same version
+						OpObject cached = getCachedObject(dbAccess.superBlockHash, type, k);
+						if (cached != null && parentHash.equals(cached.getParentHash())
+								&& Objects.equals(parentType, cached.getParentType())) {
+							obj = cached;
+						} else {
+							String cont = rs.getString(1);
+							obj = cont == null ? new OpObject(true) : OpObject.parseLazy(cont);
+							obj.setParentOp(parentType, parentHash);
+						}
 					} else {
 						obj = new OpObject(rs.getBoolean(1));
+						obj.setParentOp(parentType, parentHash);
 					}
-					obj.setParentOp(rs.getString(2), SecUtils.hexify((byte[]) rs.getObject(3)));
 					results.add(new Map.Entry<CompoundKey, OpObject>() {
 
 						@Override
@@ -295,8 +573,16 @@ public class DBConsensusManager {
 						}
 					});
 				}
+			} catch (SQLException e) {
+				close();
+				throw new IllegalStateException(e);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
 			} finally {
 				dbAccess.readLock.unlock();
+				// cursor must not be cleaned while it is read
+				Reference.reachabilityFence(this);
 			}
 			return false;
 		}
@@ -309,7 +595,13 @@ public class DBConsensusManager {
 				empty = results.isEmpty();
 			}
 			if(!empty) {
-				action.accept(results.pop());
+				try {
+					action.accept(results.pop());
+				} catch (RuntimeException | Error e) {
+					// stream is not read further
+					close();
+					throw e;
+				}
 				return true;
 			}
 			return false;
@@ -317,19 +609,37 @@ public class DBConsensusManager {
 
 		@Override
 		public Spliterator<Entry<CompoundKey, OpObject>> trySplit() {
-			return null;
+			// limited query can't be split and cursor is already opened
+			if (started || limit > 0 || hashTo - hashFrom < 2) {
+				return null;
+			}
+			if (estimatedSize < 0) {
+				// count is queried only for parallel streams, splits are not smaller than fork join pool would make
+				estimatedSize = dbAccess.countObjects(type, extraParams);
+				minSplitSize = Math.max(MIN_SPLIT_SIZE, estimatedSize / (4L * ForkJoinPool.getCommonPoolParallelism()));
+			}
+			long est = estimatedSize;
+			if (est < minSplitSize) {
+				return null;
+			}
+			long mid = hashFrom + (hashTo - hashFrom) / 2;
+			SuperblockDbSpliterator prefix = new SuperblockDbSpliterator(this, hashFrom, mid, est / 2);
+			hashFrom = mid;
+			estimatedSize = est - est / 2;
+			return prefix;
 		}
 
 		@Override
 		public long estimateSize() {
+			// size is unknown without count query (sequential streams don't need it), splits are limited by trySplit
 			return Long.MAX_VALUE;
 		}
 
 		@Override
 		public int characteristics() {
-			return 0;
+			return NONNULL;
 		}
-		
+
 	}
 	
 	
@@ -344,12 +654,17 @@ public class DBConsensusManager {
 	
 	protected class SuperblockDbAccess implements BlockDbAccessInterface {
 
+		private static final int BATCH_KEYS_SIZE = 500;
+
 		protected final String superBlockHash;
 		protected final List<OpBlock> blockHeaders;
 		private final ReentrantReadWriteLock readWriteLock;
 		private final ReadLock readLock;
 		private final byte[] sbhash;
 		private AtomicBoolean staleAccess = new AtomicBoolean(false);
+		// negative cache: key is not present in superblock if filter doesn't contain it
+		private final Map<String, BloomFilter<CharSequence>> keyFilters = new ConcurrentHashMap<>();
+		private final Set<String> missingKeyFilters = ConcurrentHashMap.newKeySet();
 
 		public SuperblockDbAccess(String superBlockHash, Collection<OpBlock> blockHeaders) {
 			this.superBlockHash = superBlockHash;
@@ -360,11 +675,29 @@ public class DBConsensusManager {
 			dbSuperBlocks.put(superBlockHash, this);
 		}
 
+		private BloomFilter<CharSequence> getKeysFilter(String type) {
+			if (settingsManager.OPENDB_SUPERBLOCK_FILTER_FPP.get() <= 0) {
+				return null;
+			}
+			BloomFilter<CharSequence> filter = keyFilters.get(type);
+			if (filter == null && !missingKeyFilters.contains(type)) {
+				// missing filters are built on startup (see loadBlocks), so filter is only looked up once
+				filter = loadKeysFilter(sbhash, type);
+				if (filter != null) {
+					keyFilters.put(type, filter);
+				} else {
+					missingKeyFilters.add(type);
+				}
+			}
+			return filter;
+		}
+
 		public boolean markAsStale(boolean stale) throws DBStaleException {
 			WriteLock lock = readWriteLock.writeLock();
 			lock.lock();
 			try {
 				staleAccess.set(stale);
+				invalidateCachedObjects(superBlockHash);
 				return true;
 			} finally {
 				lock.unlock();
@@ -386,6 +719,18 @@ public class DBConsensusManager {
 				if (sz > keySizeByTable || sz == 0) {
 					throw new UnsupportedOperationException();
 				}
+				if (content) {
+					OpObject cached = getCachedObject(superBlockHash, type, k);
+					if (cached != null) {
+						return cached;
+					}
+				}
+				BloomFilter<CharSequence> filter = getKeysFilter(type);
+				if (filter != null && !filter.mightContain(k.toString())) {
+					mFilterSkip.start().capture();
+					return null;
+				}
+				Metric m = (filter != null ? mFilterQuery : mNoFilterQuery).start();
 				String nullFields = "";
 				for (int i = sz; i < keySizeByTable; i++) {
 					nullFields += " and p" + (i + 1) + " is null ";
@@ -394,7 +739,7 @@ public class DBConsensusManager {
 						" where superblock = ? and type = ? and " +
 						dbSchema.generatePKString(table, "p%1$d = ?", " and ", sz) + nullFields +
 						" order by sblockid desc";
-				return jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject	>() {
+				OpObject res = jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject	>() {
 
 					@Override
 					public OpObject extractData(ResultSet rs) throws SQLException, DataAccessException {
@@ -405,23 +750,121 @@ public class DBConsensusManager {
 						if (!content) {
 							// this is not 100% correct
 							obj = new OpObject(false);
+							obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
 						} else {
 							String cnt = rs.getString(3);
 							if (cnt == null) {
 								obj = new OpObject(true);
 							} else {
-								obj = formatter.parseObject(cnt);
+								obj = OpObject.parseLazy(cnt);
 							}
+							obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
+							cacheObject(superBlockHash, type, k, obj, cnt);
 						}
-						obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
 						return obj;
 					}
 				});
+				m.capture();
+				if (filter != null && res == null) {
+					mFilterFalsePositive.start().capture();
+				}
+				return res;
 			} finally {
 				readLock.unlock();
 			}
 		}
 
+		@Override
+		public Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys) throws DBStaleException {
+			Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+			readLock.lock();
+			try {
+				checkNotStale();
+				String table = dbSchema.getTableByType(type);
+				int keySizeByTable = dbSchema.getKeySizeByTable(table);
+				BloomFilter<CharSequence> filter = getKeysFilter(type);
+				// keys of different size are queried separately
+				Map<Integer, List<CompoundKey>> keysBySize = new TreeMap<Integer, List<CompoundKey>>();
+				for (CompoundKey k : keys) {
+					int sz = k.size();
+					if (sz > keySizeByTable || sz == 0) {
+						throw new UnsupportedOperationException();
+					}
+					OpObject cached = getCachedObject(superBlockHash, type, k);
+					if (cached != null) {
+						res.put(k, cached);
+					} else if (filter != null && !filter.mightContain(k.toString())) {
+						mFilterSkip.start().capture();
+					} else {
+						List<CompoundKey> lst = keysBySize.get(sz);
+						if (lst == null) {
+							lst = new ArrayList<CompoundKey>();
+							keysBySize.put(sz, lst);
+						}
+						lst.add(k);
+					}
+				}
+				for (Entry<Integer, List<CompoundKey>> e : keysBySize.entrySet()) {
+					List<CompoundKey> lst = e.getValue();
+					for (int i = 0; i < lst.size(); i += BATCH_KEYS_SIZE) {
+						loadObjectsByIds(type, table, e.getKey(), lst.subList(i, Math.min(lst.size(), i + BATCH_KEYS_SIZE)), res);
+					}
+					if (filter != null) {
+						for (CompoundKey k : lst) {
+							if (!res.containsKey(k)) {
+								mFilterFalsePositive.start().capture();
+							}
+						}
+					}
+				}
+				return res;
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		private void loadObjectsByIds(String type, String table, int sz, List<CompoundKey> keys, Map<CompoundKey, OpObject> res) {
+			Metric m = mBatchQuery.start();
+			int keySizeByTable = dbSchema.getKeySizeByTable(table);
+			Object[] o = new Object[keys.size() * sz + 2];
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < keys.size(); i++) {
+				values.append(i == 0 ? "(" : ", (").append(dbSchema.repeatString("?", ", ", sz)).append(")");
+				keys.get(i).toArray(o, i * sz);
+			}
+			o[o.length - 2] = sbhash;
+			o[o.length - 1] = type;
+			String nullFields = "";
+			for (int i = sz; i < keySizeByTable; i++) {
+				nullFields += " and t.p" + (i + 1) + " is null ";
+			}
+			String s = "select t.type, t.ophash, t.content, " + dbSchema.generatePKString(table, "t.p%1$d", ", ", sz) +
+					" from " + table + " t join (values " + values + ") as k(" + dbSchema.generatePKString(table, "k%1$d", ", ", sz) + ")" +
+					" on " + dbSchema.generatePKString(table, "t.p%1$d = k.k%1$d", " and ", sz) +
+					" where t.superblock = ? and t.type = ? " + nullFields +
+					" order by t.sblockid desc";
+			jdbcTemplate.query(s, o, new RowCallbackHandler() {
+
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					List<String> ls = new ArrayList<String>(sz);
+					for (int i = 0; i < sz; i++) {
+						ls.add(rs.getString(i + 4));
+					}
+					CompoundKey k = new CompoundKey(0, ls);
+					// latest version goes first
+					if (res.containsKey(k)) {
+						return;
+					}
+					String cnt = rs.getString(3);
+					OpObject obj = cnt == null ? new OpObject(true) : OpObject.parseLazy(cnt);
+					obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
+					res.put(k, cacheObject(superBlockHash, type, k, obj, cnt));
+				}
+			});
+			m.capture();
+		}
+
 		private void checkNotStale() throws DBStaleException {
 			if (staleAccess.get()) {
 				throw new DBStaleException("Superblock is stale : " + SecUtils.hexify(sbhash));
@@ -451,15 +894,19 @@ public class DBConsensusManager {
 					 cntField = "case when content is null then true else false end";
 				}
 				String sql = "select " + cntField + ", type, ophash, " + dbSchema.generatePKString(objTable, "p%1$d", ", ") + "  from " + objTable
-						+ " where superblock = ? and type = ? " + (cond == null ? "" : " and " + cond);
-				// so the result can simply override and get latest version
-				sql = sql + " order by sblockid asc";
+						+ " t where superblock = ? and type = ? " + (cond == null ? "" : " and " + cond)
+						// only latest version of the key in superblock (compacted superblocks keep older versions)
+						+ " and not exists (select 1 from " + objTable + " n where n.superblock = t.superblock and n.type = t.type and "
+						+ dbSchema.generatePKString(objTable, "n.p%1$d is not distinct from t.p%1$d", " and ")
+						+ " and n.sblockid > t.sblockid)";
+				// place for range condition of splits
+				sql = sql.replace("%", "%%") + "%s";
+				sql = sql + " order by sblockid desc";
 				if (limit > 0) {
 					sql = sql + " limit " + limit;
 				}
-				
-				final SqlRowSet rs = jdbcTemplate.queryForRowSet(sql, o);
-				return StreamSupport.stream(new SuperblockDbSpliterator(this, keySize, onlyKeys, rs), false); 
+				SuperblockDbSpliterator split = new SuperblockDbSpliterator(this, type, keySize, onlyKeys, limit, sql, o, extraParams);
+				return StreamSupport.stream(split, false).onClose(split::closeAll);
 			} finally {
 				readLock.unlock();
 			}
@@ -507,10 +954,10 @@ public class DBConsensusManager {
 					ophash = rawHash;
 					sqlCond = "encode(hash, 'hex') like (? || '%')";
 				}
-				jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where superblock = ? and " + sqlCond, new RowCallbackHandler() {
+				jdbcTemplate.query("SELECT content, bcontent from " + OPERATIONS_TABLE + " where superblock = ? and " + sqlCond, new RowCallbackHandler() {
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
-						op[0] = formatter.parseOperation(rs.getString(1));
+						op[0] = parseOperation(rs, 1, 2);
 					}
 				}, sbhash, ophash);
 				return op[0];
@@ -572,7 +1019,152 @@ public class DBConsensusManager {
 	}
 
 	protected BlockDbAccessInterface createDbAccess(String superblock, Collection<OpBlock> blockHeaders) {
-		return new SuperblockDbAccess(superblock, blockHeaders);
+		return createDbAccess(superblock, blockHeaders, Collections.emptyMap());
+	}
+
+	protected BlockDbAccessInterface createDbAccess(String superblock, Collection<OpBlock> blockHeaders,
+			Map<String, BloomFilter<CharSequence>> keyFilters) {
+		SuperblockDbAccess dbAccess = new SuperblockDbAccess(superblock, blockHeaders);
+		dbAccess.keyFilters.putAll(keyFilters);
+		return dbAccess;
+	}
+
+	protected BloomFilter<CharSequence> buildKeysFilter(Collection<CompoundKey> keys) {
+		double fpp = settingsManager.OPENDB_SUPERBLOCK_FILTER_FPP.get();
+		if (fpp <= 0) {
+			return null;
+		}
+		BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+				Math.max(keys.size(), 1), fpp);
+		for (CompoundKey k : keys) {
+			filter.put(k.toString());
+		}
+		return filter;
+	}
+
+	private void saveKeysFilter(byte[] superBlockHash, String type, BloomFilter<CharSequence> filter) {
+		ByteArrayOutputStream bous = new ByteArrayOutputStream();
+		try {
+			filter.writeTo(bous);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		jdbcTemplate.update("INSERT INTO " + SUPERBLOCK_FILTERS_TABLE + "(superblock, type, filter) VALUES (?, ?, ?)",
+				superBlockHash, type, bous.toByteArray());
+	}
+
+	private Map<String, Integer> countSuperblockObjects(byte[] superBlockHash, String table) {
+		Map<String, Integer> res = new TreeMap<String, Integer>();
+		jdbcTemplate.query("SELECT type, count(*) FROM " + table + " WHERE superblock = ? GROUP BY type", new RowCallbackHandler() {
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				res.put(rs.getString(1), rs.getInt(2));
+			}
+		}, superBlockHash);
+		return res;
+	}
+
+	// keys are put into filter while they are read, so all keys of superblock are never held in memory
+	private BloomFilter<CharSequence> buildKeysFilter(byte[] superBlockHash, String table, String type, int count) {
+		double fpp = settingsManager.OPENDB_SUPERBLOCK_FILTER_FPP.get();
+		if (fpp <= 0) {
+			return null;
+		}
+		Metric m = mFilterBuild.start();
+		BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+				Math.max(count, 1), fpp);
+		int keySize = dbSchema.getKeySizeByTable(table);
+		List<String> ls = new ArrayList<String>(keySize);
+		String sql = "SELECT " + dbSchema.generatePKString(table, "p%1$d", ", ") + " FROM " + table
+				+ " WHERE superblock = ? and type = ?";
+		// fetch size makes driver use cursor (in transaction), so rows are not loaded at once
+		jdbcTemplate.query(new PreparedStatementCreator() {
+
+			@Override
+			public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+				PreparedStatement st = con.prepareStatement(sql);
+				st.setFetchSize(KEYS_FETCH_SIZE);
+				st.setBytes(1, superBlockHash);
+				st.setString(2, type);
+				return st;
+			}
+		}, new RowCallbackHandler() {
+
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				ls.clear();
+				for (int i = 0; i < keySize; i++) {
+					String v = rs.getString(i + 1);
+					if (v == null) {
+						break;
+					}
+					ls.add(v);
+				}
+				filter.put(new CompoundKey(0, ls).toString());
+			}
+		});
+		m.capture();
+		return filter;
+	}
+
+	/**
+	 * Builds and saves filters of db superblocks which were saved before filters were introduced
+	 * (or while filters were disabled), so they are not rebuilt on every restart
+	 */
+	private void buildMissingKeysFilters(OpBlockChain blc) {
+		if (settingsManager.OPENDB_SUPERBLOCK_FILTER_FPP.get() <= 0) {
+			return;
+		}
+		while (!blc.isNullBlock()) {
+			String superblock = blc.getSuperBlockHash();
+			SuperblockDbAccess dbAccess = dbSuperBlocks.get(superblock);
+			if (blc.isDbAccessed() && dbAccess != null) {
+				txTemplate.execute(new TransactionCallback<Void>() {
+
+					@Override
+					public Void doInTransaction(TransactionStatus status) {
+						byte[] sbhash = SecUtils.getHashBytes(superblock);
+						Set<String> saved = new HashSet<String>(jdbcTemplate.queryForList(
+								"SELECT type FROM " + SUPERBLOCK_FILTERS_TABLE + " WHERE superblock = ?", String.class, sbhash));
+						for (String table : dbSchema.getObjectTables()) {
+							for (Entry<String, Integer> e : countSuperblockObjects(sbhash, table).entrySet()) {
+								String type = e.getKey();
+								if (!saved.contains(type)) {
+									LOGGER.info(String.format("Build filter of superblock '%s' for '%s' (%d objects)",
+											superblock, type, e.getValue()));
+									BloomFilter<CharSequence> filter = buildKeysFilter(sbhash, table, type, e.getValue());
+									saveKeysFilter(sbhash, type, filter);
+									dbAccess.keyFilters.put(type, filter);
+								}
+							}
+						}
+						return null;
+					}
+				});
+			}
+			blc = blc.getParent();
+		}
+	}
+
+	private BloomFilter<CharSequence> loadKeysFilter(byte[] superBlockHash, String type) {
+		List<byte[]> res = jdbcTemplate.query("SELECT filter FROM " + SUPERBLOCK_FILTERS_TABLE + " WHERE superblock = ? and type = ?",
+				new RowMapper<byte[]>() {
+
+					@Override
+					public byte[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return rs.getBytes(1);
+					}
+				}, superBlockHash, type);
+		if (res.isEmpty()) {
+			return null;
+		}
+		try {
+			return BloomFilter.readFrom(new ByteArrayInputStream(res.get(0)), Funnels.stringFunnel(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			LOGGER.warn(String.format("Superblock filter for '%s' is broken and will be rebuilt", type), e);
+			return null;
+		}
 	}
 
 	private OpBlockChain loadBlockHeadersAndBuildMainChain(final OpBlockchainRules rules) {
@@ -700,10 +1292,11 @@ public class DBConsensusManager {
 					edited += opOperation.getEdited().size();
 					deleted += opOperation.getDeleted().size();
 				}
+				byte[] bcontent = settingsManager.OPENDB_STORE_BINARY_CONTENT.get() ? OpBinaryCodec.encode(opBlock) : null;
 				jdbcTemplate.update("INSERT INTO " + BLOCKS_TABLE
-				+ " (hash, phash, blockid, header, content, opcount, objdeleted, objedited, objadded) " +
-								"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", blockHash, prevBlockHash,
-						opBlock.getBlockId(), blockHeaderObj, blockObj, opBlock.getOperations().size(), deleted, added, edited);
+				+ " (hash, phash, blockid, header, content, bcontent, opcount, objdeleted, objedited, objadded) " +
+								"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", blockHash, prevBlockHash,
+						opBlock.getBlockId(), blockHeaderObj, blockObj, bcontent, opBlock.getOperations().size(), deleted, added, edited);
 				for (OpOperation o : opBlock.getOperations()) {
 					int upd = jdbcTemplate.update(
 							"UPDATE " + OPERATIONS_TABLE + " set blocks = blocks || ? where hash = ?", 
@@ -724,12 +1317,11 @@ public class DBConsensusManager {
 
 	public OpBlockChain saveMainBlockchain(OpBlockChain blc) {
 		// find and saved last not saved part of the chain
-		OpBlockChain lastNotSaved = null;
-		OpBlockChain beforeLast = null;
+		OpBlockChain top = blc;
+		List<OpBlockChain> notSaved = new ArrayList<OpBlockChain>();
 		boolean parentInOrphanedList = true;
 		while (!blc.isNullBlock() && !blc.isDbAccessed()) {
-			beforeLast = lastNotSaved;
-			lastNotSaved = blc;
+			notSaved.add(blc);
 			if (parentInOrphanedList) {
 				for (OpBlock header : blc.getSuperblockHeaders()) {
 					OpBlock existing = orphanedBlocks.remove(header.getRawHash());
@@ -741,18 +1333,21 @@ public class DBConsensusManager {
 			}
 			blc = blc.getParent();
 		}
+		OpBlockChain lastNotSaved = notSaved.isEmpty() ? null : notSaved.get(notSaved.size() - 1);
 		if (lastNotSaved != null && lastNotSaved.getSuperblockSize() >= settingsManager.OPENDB_SUPERBLOCK_SIZE.get()) {
 			OpBlockChain saved = saveSuperblock(lastNotSaved);
-			if (beforeLast != null) {
-				if (!beforeLast.changeToEqualParent(saved)) {
+			// chains above saved superblock are copied on top of it, published chains are not modified
+			for (int i = notSaved.size() - 2; i >= 0; i--) {
+				OpBlockChain copy = notSaved.get(i).createCopyWithEqualParent(saved);
+				if (copy == null) {
 					throw new IllegalStateException(
 							"Can't change parent " + lastNotSaved.getSuperBlockHash() + " " + saved.getSuperBlockHash());
 				}
-			} else {
-				return saved;
+				saved = copy;
 			}
+			return saved;
 		}
-		return blc;
+		return top;
 	}
 
 	private OpBlockChain saveSuperblock(OpBlockChain blc) {
@@ -767,23 +1362,32 @@ public class DBConsensusManager {
 
 			@Override
 			public OpBlockChain doInTransaction(TransactionStatus status) {
+				Map<String, BloomFilter<CharSequence>> keyFilters = new HashMap<String, BloomFilter<CharSequence>>();
 				Map<String, Long> opsId = new HashMap<String, Long>();
+				Metric m = mSaveBlocks.start();
+				List<Object> blockHashes = new ArrayList<Object>();
+				List<Object[]> opsArgs = new ArrayList<Object[]>();
 				for (OpBlock block : blc.getSuperblockFullBlocks()) {
-					byte[] blHash = SecUtils.getHashBytes(block.getFullHash());
-					// assign parent hash only for last block
-					// String blockRawHash = SecUtils.hexify(blHash);
-					// LOGGER.info(String.format("Update block %s to superblock %s ", o.getHash(), superBlockHash));
-					jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? where hash = ?", superBlockHash, blHash);
+					blockHashes.add(SecUtils.getHashBytes(block.getFullHash()));
 					int order = 0;
 					int bid = block.getBlockId();
 					for (OpOperation op : block.getOperations()) {
 						long l = OUtils.combine(bid, order);
 						opsId.put(op.getRawHash(), l);
-						jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ?, sblockid = ?, sorder = ? where hash = ?",
-								superBlockHash, bid, order, SecUtils.getHashBytes(op.getRawHash()));
+						opsArgs.add(new Object[] { SecUtils.getHashBytes(op.getRawHash()), bid, order });
 						order++;
 					}
 				}
+				if (!blockHashes.isEmpty()) {
+					blockHashes.add(0, superBlockHash);
+					jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? where hash IN ("
+							+ dbSchema.repeatString("?", ",", blockHashes.size() - 1) + ")", blockHashes.toArray());
+				}
+				m.capture();
+
+				m = mSaveOps.start();
+				updateOperationsSuperblock(superBlockHash, opsArgs);
+				m.capture();
 
 				for (String type : blc.getRawSuperblockTypes()) {
 					Stream<Map.Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(type);
@@ -794,18 +1398,160 @@ public class DBConsensusManager {
 							dbIndexes.add(index);
 						}
 					}
+					m = mSaveObjs.start();
 					List<Object[]> insertBatch = prepareInsertObjBatch(objects, type, superBlockHash, opsId, dbIndexes);
 					String table = dbSchema.getTableByType(type);
-					dbSchema.insertObjIntoTableBatch(insertBatch, table, jdbcTemplate, dbIndexes);
+					if (!copyObjIntoTable(insertBatch, table, dbIndexes)) {
+						dbSchema.insertObjIntoTableBatch(toJsonbContent(insertBatch), table, jdbcTemplate, dbIndexes);
+					}
+					m.capture();
+
+					m = mSaveFilters.start();
+					List<CompoundKey> keys = new ArrayList<CompoundKey>();
+					blc.getRawSuperblockObjects(type).forEach(e -> keys.add(e.getKey()));
+					BloomFilter<CharSequence> filter = buildKeysFilter(keys);
+					if (filter != null) {
+						saveKeysFilter(superBlockHash, type, filter);
+						keyFilters.put(type, filter);
+					}
+					m.capture();
 				}
-				OpBlockChain dbchain = new OpBlockChain(blc.getParent(), blockHeaders, createDbAccess(superBlockHashStr, blockHeaders),
-						blc.getRules());
+				OpBlockChain dbchain = new OpBlockChain(blc.getParent(), blockHeaders,
+						createDbAccess(superBlockHashStr, blockHeaders, keyFilters), blc.getRules());
 
 				return dbchain;
 			}
 		});
 	}
 
+	private void updateOperationsSuperblock(byte[] superBlockHash, List<Object[]> opsArgs) {
+		for (int i = 0; i < opsArgs.size(); i += BATCH_OPS_SIZE) {
+			List<Object[]> batch = opsArgs.subList(i, Math.min(opsArgs.size(), i + BATCH_OPS_SIZE));
+			Object[] args = new Object[batch.size() * 3 + 1];
+			int ind = 0;
+			args[ind++] = superBlockHash;
+			for (Object[] a : batch) {
+				args[ind++] = a[0];
+				args[ind++] = a[1];
+				args[ind++] = a[2];
+			}
+			jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " o set superblock = ?, sblockid = v.sblockid, sorder = v.sorder "
+					+ " FROM (VALUES " + dbSchema.repeatString("(?::bytea, ?::int, ?::int)", ",", batch.size()) + ") "
+					+ " AS v(hash, sblockid, sorder) WHERE o.hash = v.hash", args);
+		}
+	}
+
+	/**
+	 * Streams object rows with COPY, so db doesn't parse and plan thousands of inserts.
+	 * Text format is used cause index columns could have any sql type.
+	 * @return false if connection doesn't support COPY
+	 */
+	private boolean copyObjIntoTable(List<Object[]> rows, String table, Collection<OpIndexColumn> indexes) {
+		if (rows.isEmpty()) {
+			return true;
+		}
+		return jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+
+			@Override
+			public Boolean doInConnection(Connection conn) throws SQLException, DataAccessException {
+				if (!conn.isWrapperFor(PGConnection.class)) {
+					return false;
+				}
+				String sql = "COPY " + table + "(" + dbSchema.getObjTableColumns(table, indexes) + ") FROM STDIN";
+				PGCopyOutputStream os = new PGCopyOutputStream(conn.unwrap(PGConnection.class), sql, COPY_BUFFER_SIZE);
+				try {
+					Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+					CopyTextWriter escaped = new CopyTextWriter(w);
+					for (Object[] row : rows) {
+						for (int i = 0; i < row.length; i++) {
+							if (i > 0) {
+								w.write('\t');
+							}
+							Object v = row[i];
+							if (v == null) {
+								w.write("\\N");
+							} else if (v instanceof byte[]) {
+								w.write("\\\\x");
+								w.write(SecUtils.hexify((byte[]) v));
+							} else if (v instanceof OpObject) {
+								formatter.objToJson((OpObject) v, escaped);
+							} else {
+								// sql arrays are written as array literals
+								escaped.write(v.toString());
+							}
+						}
+						w.write('\n');
+					}
+					w.flush();
+					os.endCopy();
+				} catch (IOException e) {
+					throw new SQLException(e);
+				} finally {
+					if (os.isActive()) {
+						os.cancelCopy();
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	private List<Object[]> toJsonbContent(List<Object[]> rows) {
+		for (Object[] row : rows) {
+			if (row[5] instanceof OpObject) {
+				PGobject contentObj = new PGobject();
+				contentObj.setType("jsonb");
+				try {
+					contentObj.setValue(formatter.objToJson((OpObject) row[5]));
+				} catch (SQLException es) {
+					throw new IllegalArgumentException(es);
+				}
+				row[5] = contentObj;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Escapes special characters of COPY text format
+	 */
+	private static class CopyTextWriter extends Writer {
+
+		private final Writer w;
+
+		public CopyTextWriter(Writer w) {
+			this.w = w;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				char c = cbuf[i];
+				if (c == '\\') {
+					w.write("\\\\");
+				} else if (c == '\n') {
+					w.write("\\n");
+				} else if (c == '\r') {
+					w.write("\\r");
+				} else if (c == '\t') {
+					w.write("\\t");
+				} else {
+					w.write(c);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			w.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			w.flush();
+		}
+	}
+
 	protected List<Object[]> prepareInsertObjBatch(Stream<Map.Entry<CompoundKey, OpObject>> objects, String type,
 												   byte[] superBlockHash, Map<String, Long> opsId, Collection<OpIndexColumn> indexes) {
 
@@ -844,14 +1590,8 @@ public class DBConsensusManager {
 				args[ind++] = sblockid;
 				args[ind++] = sorder;
 				if (!obj.isDeleted()) {
-					PGobject contentObj = new PGobject();
-					contentObj.setType("jsonb");
-					try {
-						contentObj.setValue(formatter.objToJson(obj));
-					} catch (SQLException es) {
-						throw new IllegalArgumentException(es);
-					}
-					args[ind++] = contentObj;
+					// serialized to jsonb while rows are written to db 
+					args[ind++] = obj;
 				} else {
 					args[ind++] = null;
 				}
@@ -911,7 +1651,11 @@ public class DBConsensusManager {
 			compactedParent = compact(0, blc.getParent(), db);
 		}
 		if (blc.getParent() != compactedParent) {
-			blc.changeToEqualParent(compactedParent);
+			// copy-on-write: chain could be already used by readers
+			OpBlockChain copy = blc.createCopyWithEqualParent(compactedParent);
+			if (copy != null) {
+				return copy;
+			}
 		}
 		return blc;
 	}
@@ -1007,6 +1751,7 @@ public class DBConsensusManager {
 					for (String objTable : dbSchema.getObjectTables()) {
 						jdbcTemplate.update("DELETE FROM " + objTable + " where superblock = ?", blockHash);
 					}
+					jdbcTemplate.update("DELETE FROM " + SUPERBLOCK_FILTERS_TABLE + " where superblock = ?", blockHash);
 					return res;
 				}
 			}) ;
@@ -1123,26 +1868,103 @@ public class DBConsensusManager {
 				}
 				byte[] bhash = SecUtils.getHashBytes(op.getHash());
 
-				jdbcTemplate.update("INSERT INTO " + OPERATIONS_TABLE + "(hash, type, content) VALUES (?, ?, ?)", bhash, type, pGobject);
+				jdbcTemplate.update("INSERT INTO " + OPERATIONS_TABLE + "(hash, type, content, bcontent) VALUES (?, ?, ?, ?)",
+						bhash, type, pGobject, getBinaryContent(op));
 				return op;
 			}
 			
 		});
 	}
 
+	/**
+	 * Batch version of validateExistingOperation & insertOperation: 
+	 * 1 query to find already stored operations and 1 batch insert of missing ones.
+	 * @return amount of inserted operations
+	 */
+	public int insertMissingOperations(Collection<OpOperation> ops) {
+		if (ops.isEmpty()) {
+			return 0;
+		}
+		Metric m = mOpsBatchInsert.start();
+		Map<String, OpOperation> missing = new LinkedHashMap<String, OpOperation>();
+		for (OpOperation o : ops) {
+			missing.put(SecUtils.hexify(SecUtils.getHashBytes(o.getHash())), o);
+		}
+		Integer res = txTemplate.execute(new TransactionCallback<Integer>() {
+
+			@Override
+			public Integer doInTransaction(TransactionStatus status) {
+				List<Object> hashes = new ArrayList<Object>();
+				for (OpOperation o : missing.values()) {
+					hashes.add(SecUtils.getHashBytes(o.getHash()));
+				}
+				jdbcTemplate.query("SELECT hash, content, bcontent from " + OPERATIONS_TABLE + " where hash IN ("
+						+ dbSchema.repeatString("?", ",", hashes.size()) + ")", new RowCallbackHandler() {
+
+							@Override
+							public void processRow(ResultSet rs) throws SQLException {
+								OpOperation op = missing.remove(SecUtils.hexify(rs.getBytes(1)));
+								if (op != null) {
+									String js = formatter.opToJson(op);
+									String existing = formatter.opToJson(parseOperation(rs, 2, 3));
+									if (!js.equals(existing)) {
+										throw new IllegalArgumentException(String.format(
+												"Operation is duplicated with '%s' hash but different content: \n'%s'\n'%s'",
+												op.getHash(), existing.replace("\n", ""), js.replace("\n", "")));
+									}
+								}
+							}
+						}, hashes.toArray());
+				List<Object[]> args = new ArrayList<Object[]>();
+				for (OpOperation op : missing.values()) {
+					PGobject pGobject = new PGobject();
+					pGobject.setType("jsonb");
+					try {
+						pGobject.setValue(formatter.opToJson(op));
+					} catch (SQLException e) {
+						throw new IllegalArgumentException(e);
+					}
+					args.add(new Object[] { SecUtils.getHashBytes(op.getHash()), op.getType(), pGobject, getBinaryContent(op) });
+				}
+				if (!args.isEmpty()) {
+					jdbcTemplate.batchUpdate("INSERT INTO " + OPERATIONS_TABLE + "(hash, type, content, bcontent) VALUES (?, ?, ?, ?)", args);
+				}
+				return args.size();
+			}
+		});
+		m.capture();
+		return res == null ? 0 : res;
+	}
+
 	public OpOperation getOperationByHash(String hash) {
 		final byte[] bhash = SecUtils.getHashBytes(hash);
 		OpOperation[] res = new OpOperation[1];
-		jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where hash = ?", new Object[]{bhash}, new RowCallbackHandler() {
+		jdbcTemplate.query("SELECT content, bcontent from " + OPERATIONS_TABLE + " where hash = ?", new Object[]{bhash}, new RowCallbackHandler() {
 
 			@Override
 			public void processRow(ResultSet rs) throws SQLException {
-				res[0] = formatter.parseOperation(rs.getString(1));
+				res[0] = parseOperation(rs, 1, 2);
 			}
 		});
 		return res[0];
 	}
 
+	// binary content is preferred if it was stored
+	private OpOperation parseOperation(ResultSet rs, int contentCol, int bcontentCol) throws SQLException {
+		byte[] bcontent = rs.getBytes(bcontentCol);
+		if (bcontent != null) {
+			return OpBinaryCodec.decodeOperation(bcontent);
+		}
+		return formatter.parseOperation(rs.getString(contentCol));
+	}
+
+	private byte[] getBinaryContent(OpOperation op) {
+		if (!settingsManager.OPENDB_STORE_BINARY_CONTENT.get()) {
+			return null;
+		}
+		return OpBinaryCodec.encode(op);
+	}
+
 	public String getSetting(String key) {
 		return dbSchema.getSetting(jdbcTemplate, key);
 	}
@@ -1151,5 +1973,21 @@ public class DBConsensusManager {
 		return dbSchema.getIndexes();
 	}
 
+	// false positive rate of filters = falsepositive / query
+	private static final PerformanceMetric mFilterSkip = PerformanceMetrics.i().getMetric("db.superblock.filter.skip");
+	private static final PerformanceMetric mFilterQuery = PerformanceMetrics.i().getMetric("db.superblock.filter.query");
+	private static final PerformanceMetric mFilterFalsePositive = PerformanceMetrics.i().getMetric("db.superblock.filter.falsepositive");
+	private static final PerformanceMetric mFilterBuild = PerformanceMetrics.i().getMetric("db.superblock.filter.build");
+	private static final PerformanceMetric mNoFilterQuery = PerformanceMetrics.i().getMetric("db.superblock.byid.query");
+	private static final PerformanceMetric mBatchQuery = PerformanceMetrics.i().getMetric("db.superblock.byids.query");
+	private static final PerformanceMetric mObjCacheHit = PerformanceMetrics.i().getMetric("db.superblock.cache.hit");
+	private static final PerformanceMetric mObjCacheMiss = PerformanceMetrics.i().getMetric("db.superblock.cache.miss");
+	private static final PerformanceMetric mObjCacheEvict = PerformanceMetrics.i().getMetric("db.superblock.cache.evict");
+	private static final PerformanceMetric mSaveBlocks = PerformanceMetrics.i().getMetric("db.superblock.save.blocks");
+	private static final PerformanceMetric mSaveOps = PerformanceMetrics.i().getMetric("db.superblock.save.ops");
+	private static final PerformanceMetric mSaveObjs = PerformanceMetrics.i().getMetric("db.superblock.save.objs");
+	private static final PerformanceMetric mSaveFilters = PerformanceMetrics.i().getMetric("db.superblock.save.filters");
+	private static final PerformanceMetric mOpsBatchInsert = PerformanceMetrics.i().getMetric("db.ops.insert.batch");
+
 
 }
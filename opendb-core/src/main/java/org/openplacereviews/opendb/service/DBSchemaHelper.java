@@ -4,6 +4,7 @@ import static org.openplacereviews.opendb.ops.de.ColumnDef.IndexType.GIN;
 import static org.openplacereviews.opendb.ops.de.ColumnDef.IndexType.GIST;
 import static org.openplacereviews.opendb.ops.de.ColumnDef.IndexType.INDEXED;
 import static org.openplacereviews.opendb.ops.de.ColumnDef.IndexType.NOT_INDEXED;
+import static org.openplacereviews.opendb.ops.de.ColumnDef.IndexType.SPATIAL;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -96,13 +97,17 @@ public class DBSchemaHelper {
 				}
 				if (!found) {
 					alterTableNewColumn(jdbcTemplate, c);
+				} else if (c.getIndex() != NOT_INDEXED) {
+					// index could be added to existing column later (no-op if exists)
+					jdbcTemplate.execute(generateIndexQuery(c));
 				}
 			}
 		}
 	}
 
 	public void alterTableNewColumn(JdbcTemplate jdbcTemplate, ColumnDef c) {
-		String alterTable = String.format("alter table %s add column %s %s", c.getTableName(), 
+		// column could exist if index creation was interrupted
+		String alterTable = String.format("alter table %s add column if not exists %s %s", c.getTableName(), 
 				c.getColName(), c.getColType());
 		jdbcTemplate.execute(alterTable);
 		if(c.getIndex() != NOT_INDEXED) {
@@ -158,6 +163,9 @@ public class DBSchemaHelper {
 			case GIST: {
 				return String.format("%s_%s_gist_ind", tableName, colName);
 			}
+			case SPATIAL: {
+				return String.format("%s_%s_spatial_ind", tableName, colName);
+			}
 			default: {
 				throw new UnsupportedOperationException();
 			}
@@ -167,13 +175,17 @@ public class DBSchemaHelper {
 	private String generateIndexQuery(ColumnDef c) {
 		String indName = generateIndexName(c.getIndex(), c.getTableName(), c.getColName());
 		if (c.getIndex() == INDEXED) {
-			return String.format("create index %s on %s (%s);\n", indName,
+			return String.format("create index if not exists %s on %s (%s);\n", indName,
 					c.getTableName(), c.getColName());
 		} else if (c.getIndex() == GIN) {
-			return String.format("create index %s on %s using gin (%s);\n", indName,
+			return String.format("create index if not exists %s on %s using gin (%s);\n", indName,
 					c.getTableName(), c.getColName());
 		} else if (c.getIndex() == GIST) {
-			return String.format("create index %s on %s using gist (tsvector(%s));\n", indName,
+			return String.format("create index if not exists %s on %s using gist (tsvector(%s));\n", indName,
+					c.getTableName(), c.getColName());
+		} else if (c.getIndex() == SPATIAL) {
+			// tile codes are searched by ranges
+			return String.format("create index if not exists %s on %s (%s);\n", indName,
 					c.getTableName(), c.getColName());
 		}
 		return null;
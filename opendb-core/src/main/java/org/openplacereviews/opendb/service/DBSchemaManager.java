@@ -58,6 +58,7 @@ public class DBSchemaManager {
 	protected static final String BLOCKS_TRASH_TABLE = "blocks_trash";
 	protected static final String EXT_RESOURCE_TABLE = "resources";
 	protected static final String OP_OBJ_HISTORY_TABLE = "op_obj_history";
+	protected static final String SUPERBLOCK_FILTERS_TABLE = "superblock_filters";
 
 	private static DBSchemaHelper dbschema = new DBSchemaHelper(SETTINGS_TABLE);
 	protected static final int MAX_KEY_SIZE = 5;
@@ -124,6 +125,7 @@ public class DBSchemaManager {
 		dbschema.registerColumn(BLOCKS_TABLE, "blocksize", "int", NOT_INDEXED);
 		dbschema.registerColumn(BLOCKS_TABLE, "header", "jsonb", NOT_INDEXED);
 		dbschema.registerColumn(BLOCKS_TABLE, "content", "jsonb", NOT_INDEXED);
+		dbschema.registerColumn(BLOCKS_TABLE, "bcontent", "bytea", NOT_INDEXED);
 
 		dbschema.registerColumn(BLOCKS_TRASH_TABLE, "hash", "bytea PRIMARY KEY", INDEXED);
 		dbschema.registerColumn(BLOCKS_TRASH_TABLE, "phash", "bytea", NOT_INDEXED);
@@ -139,8 +141,9 @@ public class DBSchemaManager {
 		dbschema.registerColumn(OPERATIONS_TABLE, "sorder", "int", INDEXED);
 		dbschema.registerColumn(OPERATIONS_TABLE, "blocks", "bytea[]", NOT_INDEXED);
 		dbschema.registerColumn(OPERATIONS_TABLE, "content", "jsonb", NOT_INDEXED);
+		dbschema.registerColumn(OPERATIONS_TABLE, "bcontent", "bytea", NOT_INDEXED);
 
-		dbschema.registerColumn(OP_OBJ_HISTORY_TABLE, "sorder", "serial not null", NOT_INDEXED);
+		dbschema.registerColumn(OP_OBJ_HISTORY_TABLE, "sorder", "serial not null", INDEXED);
 		dbschema.registerColumn(OP_OBJ_HISTORY_TABLE, "blockhash", "bytea", INDEXED);
 		dbschema.registerColumn(OP_OBJ_HISTORY_TABLE, "ophash", "bytea", INDEXED);
 		dbschema.registerColumn(OP_OBJ_HISTORY_TABLE, "type", "text", INDEXED);
@@ -167,6 +170,10 @@ public class DBSchemaManager {
 		dbschema.registerColumn(EXT_RESOURCE_TABLE, "added", "timestamp", NOT_INDEXED);
 		dbschema.registerColumn(EXT_RESOURCE_TABLE, "blocks", "bytea[]", NOT_INDEXED);
 
+		dbschema.registerColumn(SUPERBLOCK_FILTERS_TABLE, "superblock", "bytea", INDEXED);
+		dbschema.registerColumn(SUPERBLOCK_FILTERS_TABLE, "type", "text", NOT_INDEXED);
+		dbschema.registerColumn(SUPERBLOCK_FILTERS_TABLE, "filter", "bytea", NOT_INDEXED);
+
 
 		registerObjTable(OBJS_TABLE, MAX_KEY_SIZE);
 
@@ -409,6 +416,10 @@ public class DBSchemaManager {
 		@SuppressWarnings("unchecked")
 		List<String> fld = (List<String>) entry.get(SettingsManager.INDEX_FIELD);
 		IndexType di = getIndexType(index);
+		if (di == IndexType.SPATIAL && !("bigint".equalsIgnoreCase(colType) || "int8".equalsIgnoreCase(colType))) {
+			// tile code takes 62 bits
+			throw new IllegalArgumentException(String.format("Spatial index '%s' should have bigint sql type, not '%s'", name, colType));
+		}
 
 		ColumnDef cd = new ColumnDef(tableName, name, colType, di);
 		// to be used array
@@ -545,15 +556,19 @@ public class DBSchemaManager {
 		return Collections.emptyList();
 	}
 
-	public void insertObjIntoTableBatch(List<Object[]> args, String table, JdbcTemplate jdbcTemplate, Collection<OpIndexColumn> indexes) {
+	public String getObjTableColumns(String table, Collection<OpIndexColumn> indexes) {
 		StringBuilder extraColumnNames = new StringBuilder();
 		for(OpIndexColumn index : indexes) {
 			extraColumnNames.append(index.getColumnDef().getColName()).append(",");
 		}
-		jdbcTemplate.batchUpdate("INSERT INTO " + table
-				+ "(type,ophash,superblock,sblockid,sorder,content,"
+		return "type,ophash,superblock,sblockid,sorder,content,"
 				+ extraColumnNames.toString()
-				+ generatePKString(table, "p%1$d", ",") + ") "
+				+ generatePKString(table, "p%1$d", ",");
+	}
+
+	public void insertObjIntoTableBatch(List<Object[]> args, String table, JdbcTemplate jdbcTemplate, Collection<OpIndexColumn> indexes) {
+		jdbcTemplate.batchUpdate("INSERT INTO " + table
+				+ "(" + getObjTableColumns(table, indexes) + ") "
 				+ " values(?,?,?,?,?,?," + repeatString("?,", "", indexes.size()) + generatePKString(table, "?", ",") + ")", args);
 	}
 
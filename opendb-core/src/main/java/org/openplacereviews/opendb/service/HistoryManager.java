@@ -7,14 +7,14 @@ import org.openplacereviews.opendb.ops.OpOperation;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
@@ -38,6 +38,8 @@ public class HistoryManager {
 	public static final String HISTORY_BY_OPERATION_HASH = "operation";
 
 	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(OpObject.DATE_FORMAT);
+	// objects which states are reconstructed by one query
+	private static final int SEED_BATCH_SIZE = 500;
 
 	@Autowired
 	private DBSchemaManager dbSchema;
@@ -80,13 +82,10 @@ public class HistoryManager {
 	}
 
 	public void retrieveHistory(HistoryObjectRequest historyObjectRequest) {
-		String sql;
+		String where = null;
 		switch (historyObjectRequest.historyType) {
 			case HISTORY_BY_USER: {
-				StringBuilder userString = getUserSqlRequestString(historyObjectRequest);
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE + " WHERE " +
-						userString + " ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = getUserSqlRequestString(historyObjectRequest).toString();
 				break;
 			}
 			case HISTORY_BY_OBJECT: {
@@ -94,33 +93,27 @@ public class HistoryManager {
 				if (historyObjectRequest.key.size() > 1) {
 					objType = historyObjectRequest.key.get(0);
 				}
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE + " WHERE " +
-						(objType == null ? "" : " type = ? AND ") + dbSchema.generatePKString(OP_OBJ_HISTORY_TABLE, "p%1$d = ?", " AND ",
-						(objType == null ? historyObjectRequest.key.size() : historyObjectRequest.key.size() - 1)) +
-						" ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = (objType == null ? "" : " type = ? AND ") + dbSchema.generatePKString(OP_OBJ_HISTORY_TABLE, "p%1$d = ?", " AND ",
+						(objType == null ? historyObjectRequest.key.size() : historyObjectRequest.key.size() - 1));
 				break;
 			}
 			case HISTORY_BY_TYPE: {
 				historyObjectRequest.key = Collections.singletonList(historyObjectRequest.key.get(0));
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE +
-						" WHERE type = ?" + " ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = " type = ?";
 				break;
 			}
 			case HISTORY_ALL: {
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE +
-						" ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = "";
 				break;
 			}
 			case HISTORY_BY_OPERATION_HASH: {
-				sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash FROM " + OP_OBJ_HISTORY_TABLE +
-						" WHERE ophash = ? ORDER BY sorder " + historyObjectRequest.sort + " LIMIT " + historyObjectRequest.limit;
-				loadHistory(sql, historyObjectRequest);
+				where = " ophash = ?";
 				break;
 			}
 		}
+		if (where != null) {
+			loadHistory(where, historyObjectRequest);
+		}
 	}
 
 	private StringBuilder getUserSqlRequestString(HistoryObjectRequest historyObjectRequest) {
@@ -145,63 +138,246 @@ public class HistoryManager {
 		return userString;
 	}
 
-	protected void loadHistory(String sql, HistoryObjectRequest historyObjectRequest) {
-		Object[] keyObject = null;
+	/**
+	 * Loads one page of history ordered by sorder. Page is continued by keyset condition on sorder
+	 * (decoded from continuation token), one extra row is fetched to know whether next page exists.
+	 * Only edits of the requested page are replayed and reconstructed.
+	 */
+	protected void loadHistory(String where, HistoryObjectRequest historyObjectRequest) {
+		if (historyObjectRequest.limit < 1) {
+			throw new IllegalArgumentException("History limit should be positive: " + historyObjectRequest.limit);
+		}
+		boolean asc = ASC_SORT.equalsIgnoreCase(historyObjectRequest.sort);
+		Long fromSorder = historyObjectRequest.continuation == null ? null :
+				decodeContinuation(historyObjectRequest.continuation, asc);
+		List<Object> args = new ArrayList<>();
 		if (historyObjectRequest.key != null) {
 			if (historyObjectRequest.historyType.equals(HISTORY_BY_OPERATION_HASH)) {
-				keyObject = new Object[] {SecUtils.getHashBytes(historyObjectRequest.key.get(0))};
+				args.add(SecUtils.getHashBytes(historyObjectRequest.key.get(0)));
 			} else {
-				keyObject = historyObjectRequest.key.toArray();
+				Object[] keyObject = historyObjectRequest.key.toArray();
 				keyObject = generateUserSearchObject(historyObjectRequest, keyObject);
+				args.addAll(Arrays.asList(keyObject));
 			}
 		}
-		historyObjectRequest.historySearchResult = jdbcTemplate.query(sql, keyObject, new ResultSetExtractor<List<HistoryEdit>>() {
+		if (fromSorder != null) {
+			where = (where.trim().length() == 0 ? "" : "(" + where + ") AND ") + " sorder " + (asc ? ">" : "<") + " ?";
+			args.add(fromSorder);
+		}
+		String sql = "SELECT usr_1, login_1, usr_2, login_2, p1, p2, p3, p4, p5, time, obj, type, status, ophash, sorder FROM "
+				+ OP_OBJ_HISTORY_TABLE + (where.trim().length() == 0 ? "" : " WHERE " + where)
+				+ " ORDER BY sorder " + (asc ? ASC_SORT : DESC_SORT) + " LIMIT " + (historyObjectRequest.limit + 1);
+		List<HistoryEdit> result = new ArrayList<>();
+		List<Long> sorders = new ArrayList<>();
+		historyObjectRequest.nextContinuation = null;
+		jdbcTemplate.query(sql, args.toArray(), new RowCallbackHandler() {
+
 			@Override
-			public List<HistoryEdit> extractData(ResultSet rs) throws SQLException, DataAccessException {
-				List<HistoryEdit> result = new LinkedList<>();
-
-				while (rs.next()) {
-					List<String> users = new ArrayList<>();
-					String user = "";
-					for (int i = 1; i <= 4; i++) {
-						if (rs.getString(i) != null) {
-							if (user.length() == 0) {
-								user = rs.getString(i);
-							} else {
-								user += ":" + rs.getString(i);
-							}
-							if (i % 2 == 0) {
-								users.add(user);
-								user = "";
-							}
-						}
-					}
-					List<String> ids = new ArrayList<>();
-					ids.add(rs.getString(12));
-					for (int i = 5; i <= 4 + MAX_KEY_SIZE; i++) {
-						if (rs.getString(i) != null) {
-							ids.add(rs.getString(i));
-						}
-					}
-					HistoryEdit historyObject = new HistoryEdit(
-							users,
-							rs.getString(12),
-							formatter.parseObject(rs.getString(11)),
-							formatFullDate(rs.getTimestamp(10)),
-							HistoryManager.Status.getStatus(rs.getInt(13)),
-							SecUtils.hexify(rs.getBytes(14))
-					);
-					if (historyObject.getStatus().equals(HistoryManager.Status.EDITED)) {
-						historyObject.setDeltaChanges(formatter.fromJsonToTreeMap(rs.getString(11)));
-					}
-					historyObject.setId(ids);
-					result.add(historyObject);
+			public void processRow(ResultSet rs) throws SQLException {
+				if (result.size() >= historyObjectRequest.limit) {
+					historyObjectRequest.nextContinuation = encodeContinuation(sorders.get(sorders.size() - 1), asc);
+					return;
 				}
-
-				result = generateHistoryObj(result, historyObjectRequest.sort);
-				return result;
+				result.add(readHistoryEdit(rs));
+				sorders.add(rs.getLong(15));
 			}
 		});
+		Map<List<String>, OpObject> seeds = Collections.emptyMap();
+		if (!asc && fromSorder != null) {
+			seeds = getObjectStatesAfter(result, sorders);
+		}
+		HistoryReplay replay = new HistoryReplay(seeds);
+		for (HistoryEdit historyEdit : result) {
+			replay.next(historyEdit);
+		}
+		historyObjectRequest.historySearchResult = result;
+	}
+
+	private HistoryEdit readHistoryEdit(ResultSet rs) throws SQLException {
+		List<String> users = new ArrayList<>();
+		String user = "";
+		for (int i = 1; i <= 4; i++) {
+			if (rs.getString(i) != null) {
+				if (user.length() == 0) {
+					user = rs.getString(i);
+				} else {
+					user += ":" + rs.getString(i);
+				}
+				if (i % 2 == 0) {
+					users.add(user);
+					user = "";
+				}
+			}
+		}
+		List<String> ids = new ArrayList<>();
+		ids.add(rs.getString(12));
+		for (int i = 5; i <= 4 + MAX_KEY_SIZE; i++) {
+			if (rs.getString(i) != null) {
+				ids.add(rs.getString(i));
+			}
+		}
+		HistoryEdit historyObject = new HistoryEdit(
+				users,
+				rs.getString(12),
+				formatter.parseObject(rs.getString(11)),
+				formatFullDate(rs.getTimestamp(10)),
+				HistoryManager.Status.getStatus(rs.getInt(13)),
+				SecUtils.hexify(rs.getBytes(14))
+		);
+		if (historyObject.getStatus().equals(HistoryManager.Status.EDITED)) {
+			historyObject.setDeltaChanges(formatter.fromJsonToTreeMap(rs.getString(11)));
+		}
+		historyObject.setId(ids);
+		return historyObject;
+	}
+
+	private static String encodeContinuation(long sorder, boolean asc) {
+		String token = (asc ? ASC_SORT : DESC_SORT) + ":" + sorder;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static long decodeContinuation(String continuation, boolean asc) {
+		try {
+			String token = new String(Base64.getUrlDecoder().decode(continuation), StandardCharsets.UTF_8);
+			String prefix = (asc ? ASC_SORT : DESC_SORT) + ":";
+			if (!token.startsWith(prefix)) {
+				throw new IllegalArgumentException("Continuation token doesn't match sort order: " + continuation);
+			}
+			return Long.parseLong(token.substring(prefix.length()));
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException and base64 errors
+			throw new IllegalArgumentException("Invalid continuation token: " + continuation, e);
+		}
+	}
+
+	/**
+	 * State of objects while rows of one page are replayed. When page doesn't start from the newest edit
+	 * first row of each object is seeded by {@link #getObjectStatesAfter(List, List)}.
+	 */
+	private class HistoryReplay {
+		private final Map<List<String>, OpObject> seeds;
+		private final Map<List<String>, HistoryEdit> previousHistoryEditMap = new HashMap<>();
+		private final Map<List<String>, OpObject> originObjectMap = new HashMap<>();
+
+		HistoryReplay(Map<List<String>, OpObject> seeds) {
+			this.seeds = seeds;
+		}
+
+		void next(HistoryEdit historyEdit) {
+			HistoryEdit previousHistoryEdit = previousHistoryEditMap.get(historyEdit.id);
+			OpObject originObject;
+			if (previousHistoryEdit == null && seeds.containsKey(historyEdit.id)) {
+				originObject = seeds.get(historyEdit.id);
+				historyEdit.objEdit = originObject;
+			} else {
+				originObject = getPreviousOpObject(originObjectMap.get(historyEdit.id), previousHistoryEdit, historyEdit);
+			}
+			previousHistoryEditMap.put(historyEdit.id, historyEdit);
+			originObjectMap.put(historyEdit.id, originObject);
+		}
+	}
+
+	/**
+	 * Reconstructs objects as they were right after their first (not deleted) history edit of the page:
+	 * starts from the nearest newer full snapshot (object stored by deletion or current object in blockchain)
+	 * and reverts only edits made after it. Snapshots and edits of all objects are loaded by 2 queries per batch.
+	 * @return state by object id (type + key), state is null if object couldn't be reconstructed
+	 */
+	protected Map<List<String>, OpObject> getObjectStatesAfter(List<HistoryEdit> page, List<Long> sorders) {
+		Map<List<String>, Long> firstSorders = new LinkedHashMap<>();
+		Set<List<String>> visited = new HashSet<>();
+		for (int i = 0; i < page.size(); i++) {
+			HistoryEdit historyEdit = page.get(i);
+			if (visited.add(historyEdit.id) && !historyEdit.getStatus().equals(Status.DELETED)) {
+				firstSorders.put(historyEdit.id, sorders.get(i));
+			}
+		}
+		Map<List<String>, OpObject> states = new HashMap<>();
+		List<List<String>> ids = new ArrayList<>(firstSorders.keySet());
+		for (int i = 0; i < ids.size(); i += SEED_BATCH_SIZE) {
+			List<List<String>> batch = ids.subList(i, Math.min(ids.size(), i + SEED_BATCH_SIZE));
+			loadObjectStatesAfter(batch, firstSorders, states);
+		}
+		return states;
+	}
+
+	private void loadObjectStatesAfter(List<List<String>> ids, Map<List<String>, Long> sorders,
+			Map<List<String>, OpObject> states) {
+		StringBuilder objCond = new StringBuilder(" h.type = v.type");
+		StringBuilder columns = new StringBuilder("ind, type");
+		for (int i = 1; i <= MAX_KEY_SIZE; i++) {
+			objCond.append(" AND (h.p").append(i).append(" = v.p").append(i)
+					.append(" OR h.p").append(i).append(" IS NULL AND v.p").append(i).append(" IS NULL)");
+			columns.append(", p").append(i);
+		}
+		String row = "(?::int, ?" + dbSchema.repeatString(", ?::text", "", MAX_KEY_SIZE) + ", ?::bigint";
+		// 1. nearest snapshots stored by deletion after the edit
+		List<Object> args = new ArrayList<>();
+		for (int ind = 0; ind < ids.size(); ind++) {
+			addObjectValues(args, ind, ids.get(ind));
+			args.add(sorders.get(ids.get(ind)));
+		}
+		Long[] snapshotSorders = new Long[ids.size()];
+		OpObject[] snapshots = new OpObject[ids.size()];
+		jdbcTemplate.query("SELECT DISTINCT ON (v.ind) v.ind, h.sorder, h.obj FROM " + OP_OBJ_HISTORY_TABLE + " h JOIN (VALUES "
+				+ dbSchema.repeatString(row + ")", ",", ids.size()) + ") AS v(" + columns + ", sorder) ON " + objCond
+				+ " AND h.sorder > v.sorder WHERE h.status = " + Status.DELETED.getValue()
+				+ " ORDER BY v.ind, h.sorder ASC", new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				snapshotSorders[rs.getInt(1)] = rs.getLong(2);
+				snapshots[rs.getInt(1)] = formatter.parseObject(rs.getString(3));
+			}
+		}, args.toArray());
+
+		// 2. edits made between the edit and the snapshot are reverted
+		List<Integer> toRevert = new ArrayList<>();
+		args.clear();
+		for (int ind = 0; ind < ids.size(); ind++) {
+			List<String> id = ids.get(ind);
+			OpObject state = snapshots[ind];
+			if (state == null) {
+				state = blocksManager.getBlockchain().getObjectByName(id.get(0), id.subList(1, id.size()));
+			}
+			states.put(id, state);
+			if (state != null) {
+				toRevert.add(ind);
+				addObjectValues(args, ind, id);
+				args.add(sorders.get(id));
+				args.add(snapshotSorders[ind] == null ? Long.MAX_VALUE : snapshotSorders[ind]);
+			}
+		}
+		if (toRevert.isEmpty()) {
+			return;
+		}
+		Map<Integer, List<TreeMap<String, Object>>> changes = new HashMap<>();
+		jdbcTemplate.query("SELECT v.ind, h.obj FROM " + OP_OBJ_HISTORY_TABLE + " h JOIN (VALUES "
+				+ dbSchema.repeatString(row + ", ?::bigint)", ",", toRevert.size()) + ") AS v(" + columns
+				+ ", sorder, snapshot) ON " + objCond + " AND h.sorder > v.sorder AND h.sorder < v.snapshot"
+				+ " WHERE h.status = " + Status.EDITED.getValue() + " ORDER BY v.ind, h.sorder DESC", new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				changes.computeIfAbsent(rs.getInt(1), k -> new ArrayList<>()).add(formatter.fromJsonToTreeMap(rs.getString(2)));
+			}
+		}, args.toArray());
+		for (int ind : toRevert) {
+			List<TreeMap<String, Object>> deltas = changes.get(ind);
+			if (deltas != null) {
+				OpObject state = states.get(ids.get(ind));
+				for (TreeMap<String, Object> delta : deltas) {
+					state = generateReverseEditState(state, delta);
+				}
+				states.put(ids.get(ind), state);
+			}
+		}
+	}
+
+	private void addObjectValues(List<Object> args, int ind, List<String> id) {
+		args.add(ind);
+		args.add(id.get(0));
+		for (int i = 1; i <= MAX_KEY_SIZE; i++) {
+			args.add(i < id.size() ? id.get(i) : null);
+		}
 	}
 
 	private Object[] generateUserSearchObject(HistoryObjectRequest historyObjectRequest, Object[] keyObject) {
@@ -238,22 +414,6 @@ public class HistoryManager {
 	}
 
 
-	public List<HistoryEdit> generateHistoryObj(List<HistoryEdit> historyList, String sort) {
-		List<HistoryEdit> newHistoryList = new ArrayList<>();
-
-		Map<List<String>, HistoryEdit> previousHistoryEditMap = new HashMap<>();
-		Map<List<String>, OpObject> originObjectMap = new HashMap<>();
-		for (HistoryEdit historyEdit : historyList) {
-			OpObject originObject = getPreviousOpObject(originObjectMap.get(historyEdit.id), previousHistoryEditMap.get(historyEdit.id), historyEdit);
-			previousHistoryEditMap.put(historyEdit.id, historyEdit);
-			newHistoryList.add(historyEdit);
-			originObjectMap.put(historyEdit.id, originObject);
-		}
-
-		return newHistoryList;
-	}
-
-
 	private String formatFullDate(Date date) {
 		if (date == null)
 			return null;
@@ -271,22 +431,25 @@ public class HistoryManager {
 			historyEdit.objEdit = originObject;
 		} else {
 			Map<String, Object> changes = previousHistoryEdit.deltaChanges;
-			if (changes == null) {
-				historyEdit.objEdit = originObject;
-			} else {
-				originObject = generateReverseEditObject(originObject, changes);
-				if (originObject.getFieldByExpr(OpObject.F_STATE) != null &&
-						originObject.getFieldByExpr(OpObject.F_STATE).equals(F_FINAL)) {
-					originObject.setFieldByExpr(OpObject.F_STATE, OpObject.F_OPEN);
-					originObject.remove(F_SUBMITTED_OP_HASH);
-				}
-				historyEdit.objEdit = originObject;
+			if (changes != null) {
+				originObject = generateReverseEditState(originObject, changes);
 			}
+			historyEdit.objEdit = originObject;
 		}
 
 		return originObject;
 	}
 
+	private OpObject generateReverseEditState(OpObject originObject, Map<String, Object> changes) {
+		OpObject prevObj = generateReverseEditObject(originObject, changes);
+		if (prevObj.getFieldByExpr(OpObject.F_STATE) != null &&
+				prevObj.getFieldByExpr(OpObject.F_STATE).equals(F_FINAL)) {
+			prevObj.setFieldByExpr(OpObject.F_STATE, OpObject.F_OPEN);
+			prevObj.remove(F_SUBMITTED_OP_HASH);
+		}
+		return prevObj;
+	}
+
 	@SuppressWarnings("unchecked")
 	public OpObject generateReverseEditObject(OpObject originObject, Map<String, Object> changes) {
 		Map<String, Object> changeEdit = (Map<String, Object>) changes.get(OpObject.F_CHANGE);
@@ -462,7 +625,11 @@ public class HistoryManager {
 		public List<String> key;
 		public int limit;
 		public String sort;
+		// opaque token returned by previous page
+		public String continuation;
 		public List<HistoryEdit> historySearchResult;
+		// token for the next page, null if there are no more rows
+		public String nextContinuation;
 
 		public HistoryObjectRequest(String historyType, List<String> key, int limit, String sort) {
 			this.limit = limit;
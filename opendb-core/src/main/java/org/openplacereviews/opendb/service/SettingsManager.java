@@ -518,11 +518,18 @@ public class SettingsManager {
 	// REPLICA
 	public final CommonPreference<Integer> OPENDB_REPLICATE_INTERVAL = registerIntPreference(USER, "opendb.replicate.interval", 15, "Time interval to replicate blocks").editable();
 	public final CommonPreference<String> OPENDB_REPLICATE_URL = registerStringPreference(USER, "opendb.replicate.url", "https://test.openplacereviews.org/api/", "Main source to replicate blocks").editable();
+	public final CommonPreference<Integer> OPENDB_REPLICATE_PREFETCH_BLOCKS = registerIntPreference(USER, "opendb.replicate.prefetchBlocks", 8, "Amount of blocks downloaded and verified in parallel ahead of replicated block").editable();
 
 	// BLOCK AND HISTORY
+	public final CommonPreference<Boolean> OPENDB_STORE_BINARY_CONTENT = registerBooleanPreference("opendb.db.store-binary-content", false, "Store operations and blocks also in compact binary format which is faster to load").editable();
 	public final CommonPreference<Boolean> OPENDB_STORE_HISTORY = registerBooleanPreference("opendb.db.store-history", true, "Store history of operations").editable().restartNeeded();
 	public final CommonPreference<Double> OPENDB_COMPACT_COEFICIENT = registerDoublePreference("opendb.db.compactCoefficient", 1.0,  "Compact coefficient for compacting blockchain").editable();
+	public final CommonPreference<Integer> OPENDB_INDEX_BACKFILL_BATCH = registerIntPreference("opendb.db.index-backfill.batch", 1000, "Amount of objects updated by one statement while new index is filled").editable();
+	public final CommonPreference<Integer> OPENDB_INDEX_BACKFILL_THREADS = registerIntPreference("opendb.db.index-backfill.threads", 4, "Amount of superblocks processed in parallel while new index is filled").editable();
+	public final CommonPreference<Map<String, Object>> OPENDB_INDEX_BACKFILL_CHECKPOINT = registerMapPreference("opendb.db.index-backfill.checkpoint", new TreeMap<String, Object>(), "Superblocks which already have values of index being filled (table.column -> superblock hashes)");
 	public final CommonPreference<Integer> OPENDB_SUPERBLOCK_SIZE = registerIntPreference("opendb.db.dbSuperblockSize", 32,  "The amount of blocks to create superblock in a database").editable();
+	public final CommonPreference<Double> OPENDB_SUPERBLOCK_FILTER_FPP = registerDoublePreference("opendb.db.superblockFilterFpp", 0.01,  "False positive probability of superblock keys filter (0 to disable filters)").editable();
+	public final CommonPreference<Integer> OPENDB_SUPERBLOCK_OBJECTS_CACHE_SIZE = registerIntPreference("opendb.db.superblockObjectsCacheMb", 64,  "Max size (MB of json content) of parsed objects cache for db superblocks (0 to disable cache)").editable().restartNeeded();
 
 	// LOCAL STORAGE
 	public final CommonPreference<String> OPENDB_STORAGE_LOCAL_STORAGE_PATH = registerStringPreference("opendb.storage.local-storage", "", "Path for storing resource files").restartNeeded().editable();
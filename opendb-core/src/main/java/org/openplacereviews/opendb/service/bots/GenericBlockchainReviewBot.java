@@ -12,6 +12,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.stream.Stream;
 
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
@@ -64,21 +65,23 @@ public abstract class GenericBlockchainReviewBot<T> extends GenericMultiThreadBo
 			boolean blockExist = blc.getBlockHeaderByRawHash(wrapNull(lastScannedBlockHash)) != null;
 			while (blc != null && !blc.isNullBlock()) {
 				OpBlock lastBlockHeader = blc.getLastBlockHeader();
-				Iterator<Entry<CompoundKey, OpObject>> it = blc.getRawSuperblockObjects("opr.place").iterator();
-				while (it.hasNext()) {
-					Entry<CompoundKey, OpObject> e = it.next();
-					if (!keys.add(e.getKey())) {
-						continue;
-					}
-					progress++;
-					boolean proc = processSingleObject(e.getValue(), op, lastBlockHeader);
-					if (proc) {
-						op = addOpIfNeeded(op, false);
-						changed++;
-					}
-					if (progress % 5000 == 0) {
-						info(String.format("Progress of '%s' %d / %d  (changed %d).", botTypeName(),
-								progress, totalCnt, changed));
+				try (Stream<Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects("opr.place")) {
+					Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
+					while (it.hasNext()) {
+						Entry<CompoundKey, OpObject> e = it.next();
+						if (!keys.add(e.getKey())) {
+							continue;
+						}
+						progress++;
+						boolean proc = processSingleObject(e.getValue(), op, lastBlockHeader);
+						if (proc) {
+							op = addOpIfNeeded(op, false);
+							changed++;
+						}
+						if (progress % 5000 == 0) {
+							info(String.format("Progress of '%s' %d / %d  (changed %d).", botTypeName(),
+									progress, totalCnt, changed));
+						}
 					}
 				}
 				blc = blc.getParent();
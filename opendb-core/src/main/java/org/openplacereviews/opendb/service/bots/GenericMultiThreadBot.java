@@ -171,7 +171,7 @@ public abstract class GenericMultiThreadBot<T> implements IOpenDBBot<T> {
 	}
 	
 	protected boolean blockCreateNeeded(int factor) {
-		return blocksManager.getBlockchain().getQueueOperations().size() >= operationsPerBlock * factor && 
+		return blocksManager.getBlockchain().getQueueSize() >= operationsPerBlock * factor && 
 				blocksManager.getQueueCapacity() >= blockCapacity * factor;
 	}
 	
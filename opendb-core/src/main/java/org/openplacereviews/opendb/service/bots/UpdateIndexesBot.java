@@ -6,25 +6,35 @@ import org.openplacereviews.opendb.ops.OpIndexColumn;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.BlocksManager;
+import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
 import org.openplacereviews.opendb.service.DBSchemaManager;
 import org.openplacereviews.opendb.service.SettingsManager;
 import org.openplacereviews.opendb.service.SettingsManager.CommonPreference;
 import org.openplacereviews.opendb.service.SettingsManager.PreferenceFamily;
 import org.openplacereviews.opendb.util.OUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Stream;
 
 import static org.openplacereviews.opendb.service.SettingsManager.*;
 
 public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 
-	private int totalCnt = 1;
-	private int progress = 0;
+	private volatile int totalCnt = 1;
+	private volatile int progress = 0;
 	
 
 	@Autowired
@@ -69,6 +79,12 @@ public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 				}
 			}
 
+			if (!expectedIndexState.isEmpty()) {
+				// single pool to fill all new indexes, it is shut down in finally
+				ThreadFactoryBuilder tf = new ThreadFactoryBuilder().setNameFormat(Thread.currentThread().getName() + "-%d");
+				this.service = (ThreadPoolExecutor) Executors.newFixedThreadPool(
+						Math.max(1, settingsManager.OPENDB_INDEX_BACKFILL_THREADS.get()), tf.build());
+			}
 			for (String indexId : expectedIndexState.keySet()) {
 				Map<String, Object> expectedIndex = expectedIndexState.remove(indexId).get();
 				String colName = (String) expectedIndex.get(INDEX_NAME);
@@ -79,15 +95,15 @@ public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 				info("Index: '" + colName + "' for table: " + tableName + " was added");
 				
 				info(" Start data migration for new index ...");
-				blocksManager.lockBlockchain("Locked for DB Index Updating");
+				Map<String, OpIndexColumn> columnsByType = new TreeMap<>();
 				List<String> objTypes = dbSchemaManager.getTypesByTable(tableName);
 				for (String objType : objTypes) {
 					Map<String, OpIndexColumn> map = dbSchemaManager.getIndexes().get(objType);
 					if(map != null && map.get(colName) != null) {
-						reindexOpColumn(tableName, objType, map.get(colName));
+						columnsByType.put(objType, map.get(colName));
 					}
 				}
-				blocksManager.unlockBlockchain();
+				backfillIndex(tableName, colName, columnsByType);
 				CommonPreference<Map<String, Object>> pn = settingsManager.registerMapPreferenceForFamily(SettingsManager.DB_SCHEMA_INTERNAL_INDEXES, expectedIndex);
 				pn.set(expectedIndex);
 				info("Data migration for new index was finished");
@@ -114,61 +130,155 @@ public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 		return mp;
 	}
 
-	private void reindexOpColumn(String tableName, String objType, OpIndexColumn ind) {
-		String sql = "UPDATE " + tableName + " SET " + ind.getColumnDef().getColName() + " = ? WHERE "
-				+ dbSchemaManager.generatePKString(tableName, "p%1$d = ?", " AND ") + " AND ophash = ?";
-		
-		OpBlockChain opBlockChain = blocksManager.getBlockchain();
-		while (opBlockChain.getParent() != null) {
-			Stream<Map.Entry<CompoundKey, OpObject>> objects = opBlockChain.getRawSuperblockObjects(objType);
-			List<Object[]> args = prepareInsertIndexObjBatch(objects, objType, ind);
-			totalCnt += args.size();
-			for (Object[] arg : args) {
-				progress++;
-				jdbcTemplate.update(sql, arg);
-				if (progress % 5000 == 0) {
-					info(String.format("Progress of 'update-indexes' %d / %d", progress, totalCnt));
+	/**
+	 * Fills new index column without locking blockchain. Index column is already registered, so superblocks 
+	 * saved from now on get values inline. Superblocks are processed in parallel by batches, 
+	 * processed superblocks are checkpointed to settings, so backfill continues after restart.
+	 * Chain is checked again after each pass as superblocks could be saved or compacted meanwhile.
+	 * Superblocks are processed by thread pool of the bot which is created once per call().
+	 */
+	private void backfillIndex(String tableName, String colName, Map<String, OpIndexColumn> columnsByType) throws Exception {
+		String checkpointKey = tableName + "." + colName;
+		Set<String> processed = ConcurrentHashMap.newKeySet();
+		processed.addAll(getCheckpoint(checkpointKey));
+		boolean found = true;
+		while (found) {
+			found = false;
+			List<Future<?>> futures = new ArrayList<>();
+			try {
+				OpBlockChain blc = blocksManager.getBlockchain();
+				while (!blc.isNullBlock()) {
+					String sbHash = blc.getSuperBlockHash();
+					if (blc.isDbAccessed() && !processed.contains(sbHash)) {
+						ThreadPoolExecutor pool = this.service;
+						if (pool == null) {
+							throw new IllegalStateException("Index updating was interrupted");
+						}
+						found = true;
+						final OpBlockChain superblock = blc;
+						futures.add(pool.submit(() -> {
+							backfillSuperblock(superblock, tableName, columnsByType);
+							processed.add(sbHash);
+							saveCheckpoint(checkpointKey, processed);
+							return null;
+						}));
+					}
+					blc = blc.getParent();
+				}
+				for (Future<?> f : futures) {
+					f.get();
 				}
+			} catch (Exception e) {
+				// don't leave other superblocks updating, processed ones are checkpointed
+				for (Future<?> f : futures) {
+					f.cancel(true);
+				}
+				throw e;
 			}
-
-			opBlockChain = opBlockChain.getParent();
 		}
+		saveCheckpoint(checkpointKey, null);
 	}
-	
-	private List<Object[]> prepareInsertIndexObjBatch(Stream<Map.Entry<CompoundKey, OpObject>> objects, String type, OpIndexColumn index) {
-		List<Object[]> updateList = new ArrayList<>();
-		String table = dbSchemaManager.getTableByType(type);
-		int ksize = dbSchemaManager.getKeySizeByTable(table);
-		Iterator<Map.Entry<CompoundKey, OpObject>> it = objects.iterator();
-		Connection conn = null;
-		try {
-			conn = jdbcTemplate.getDataSource().getConnection();
-			while (it.hasNext()) {
-				Map.Entry<CompoundKey, OpObject> e = it.next();
-				CompoundKey pkey = e.getKey();
-				OpObject obj = e.getValue();
-				Object[] args = new Object[1 + ksize + 1];
-				if (obj != null && !obj.isDeleted()) {
-					args[0] = index.evalDBValue(obj, conn);
+
+	private void backfillSuperblock(OpBlockChain superblock, String tableName, Map<String, OpIndexColumn> columnsByType) {
+		int batchSize = Math.max(1, settingsManager.OPENDB_INDEX_BACKFILL_BATCH.get());
+		for (Map.Entry<String, OpIndexColumn> e : columnsByType.entrySet()) {
+			List<Map.Entry<CompoundKey, OpObject>> batch = new ArrayList<>(batchSize);
+			try (Stream<Map.Entry<CompoundKey, OpObject>> objects = superblock.getRawSuperblockObjects(e.getKey())) {
+				Iterator<Map.Entry<CompoundKey, OpObject>> it = objects.iterator();
+				while (it.hasNext()) {
+					batch.add(it.next());
+					if (batch.size() >= batchSize) {
+						updateBatch(tableName, e.getValue(), batch);
+						batch.clear();
+					}
 				}
-				pkey.toArray(args, 1);
-				args[ksize + 1] = SecUtils.getHashBytes(obj.getParentHash());
-				updateList.add(args);
-				
+			} catch (DBStaleException ex) {
+				// superblock was compacted, new superblock has values inline or is processed on next pass
+				return;
 			}
-		} catch (SQLException e) {
-			throw new IllegalArgumentException();
-		} finally {
-			if(conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					throw new IllegalArgumentException(e);
+			updateBatch(tableName, e.getValue(), batch);
+		}
+	}
+
+	/**
+	 * Set based update: UPDATE table SET col = v.val FROM (VALUES (...), ...) v WHERE keys and ophash match
+	 */
+	private void updateBatch(String tableName, OpIndexColumn ind, List<Map.Entry<CompoundKey, OpObject>> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		int ksize = dbSchemaManager.getKeySizeByTable(tableName);
+		String colName = ind.getColumnDef().getColName();
+		jdbcTemplate.execute(new ConnectionCallback<Integer>() {
+
+			@Override
+			public Integer doInConnection(Connection conn) throws SQLException, DataAccessException {
+				List<Object[]> rows = new ArrayList<>();
+				for (Map.Entry<CompoundKey, OpObject> e : batch) {
+					OpObject obj = e.getValue();
+					Object value = obj == null || obj.isDeleted() ? null : ind.evalDBValue(obj, conn);
+					// column is empty already
+					if (value != null) {
+						Object[] row = new Object[ksize + 2];
+						row[0] = value;
+						e.getKey().toArray(row, 1);
+						row[ksize + 1] = SecUtils.getHashBytes(obj.getParentHash());
+						rows.add(row);
+					}
+				}
+				if (rows.isEmpty()) {
+					return 0;
+				}
+				String rowSql = "(CAST(? AS " + ind.getColumnDef().getColType() + "), "
+						+ dbSchemaManager.generatePKString(tableName, "CAST(? AS text)", ", ") + ", CAST(? AS bytea))";
+				StringBuilder sql = new StringBuilder();
+				sql.append("UPDATE ").append(tableName).append(" t SET ").append(colName).append(" = v.val FROM (VALUES ");
+				for (int i = 0; i < rows.size(); i++) {
+					sql.append(i > 0 ? ", " : "").append(rowSql);
+				}
+				sql.append(") AS v(val, ").append(dbSchemaManager.generatePKString(tableName, "p%1$d", ", "))
+						.append(", ophash) WHERE t.p1 = v.p1 AND t.ophash = v.ophash");
+				for (int k = 2; k <= ksize; k++) {
+					// shorter keys have empty columns
+					sql.append(" AND t.p").append(k).append(" IS NOT DISTINCT FROM v.p").append(k);
+				}
+				try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+					int p = 1;
+					for (Object[] row : rows) {
+						for (Object o : row) {
+							ps.setObject(p++, o);
+						}
+					}
+					int cnt = ps.executeUpdate();
+					addProgress(batch.size());
+					return cnt;
 				}
 			}
+		});
+	}
+
+	private synchronized void addProgress(int cnt) {
+		totalCnt += cnt;
+		progress += cnt;
+		if (progress / 5000 != (progress - cnt) / 5000) {
+			info(String.format("Progress of 'update-indexes' %d / %d", progress, totalCnt));
 		}
+	}
 
-		return updateList;
+	@SuppressWarnings("unchecked")
+	private List<String> getCheckpoint(String checkpointKey) {
+		Object l = settingsManager.OPENDB_INDEX_BACKFILL_CHECKPOINT.get().get(checkpointKey);
+		return l instanceof List ? (List<String>) l : Collections.emptyList();
+	}
+
+	private synchronized void saveCheckpoint(String checkpointKey, Set<String> processed) {
+		Map<String, Object> checkpoint = new TreeMap<>(settingsManager.OPENDB_INDEX_BACKFILL_CHECKPOINT.get());
+		if (processed == null) {
+			checkpoint.remove(checkpointKey);
+		} else {
+			checkpoint.put(checkpointKey, new ArrayList<>(processed));
+		}
+		settingsManager.OPENDB_INDEX_BACKFILL_CHECKPOINT.set(checkpoint);
 	}
 
 	
@@ -0,0 +1,125 @@
+package org.openplacereviews.opendb.util;
+
+import java.io.Writer;
+import java.security.MessageDigest;
+
+/**
+ * Writer which encodes written characters as UTF-8 straight into message digest
+ * (same bytes as String.getBytes("UTF-8")) and counts written characters,
+ * so json could be hashed and measured without intermediate String.
+ * Message digest could be null to only count characters.
+ */
+public class DigestWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 1 << 12;
+
+	private final MessageDigest md;
+	private final byte[] buf;
+	private int pos;
+	private char highSurrogate;
+	private long length;
+
+	public DigestWriter(MessageDigest md) {
+		this.md = md;
+		this.buf = md == null ? null : new byte[BUFFER_SIZE];
+	}
+
+	@Override
+	public void write(int c) {
+		length++;
+		if (md != null) {
+			encode((char) c);
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		length += len;
+		if (md != null) {
+			for (int i = off; i < off + len; i++) {
+				encode(cbuf[i]);
+			}
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		length += len;
+		if (md != null) {
+			for (int i = off; i < off + len; i++) {
+				encode(str.charAt(i));
+			}
+		}
+	}
+
+	private void encode(char c) {
+		if (pos + 4 > buf.length) {
+			flushBuffer();
+		}
+		if (highSurrogate != 0) {
+			char h = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(h, c);
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+				return;
+			}
+			// unpaired surrogate is replaced as by String.getBytes
+			buf[pos++] = '?';
+			if (pos + 4 > buf.length) {
+				flushBuffer();
+			}
+		}
+		if (c < 0x80) {
+			buf[pos++] = (byte) c;
+		} else if (c < 0x800) {
+			buf[pos++] = (byte) (0xc0 | (c >> 6));
+			buf[pos++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buf[pos++] = '?';
+		} else {
+			buf[pos++] = (byte) (0xe0 | (c >> 12));
+			buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buf[pos++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void flushBuffer() {
+		if (pos > 0) {
+			md.update(buf, 0, pos);
+			pos = 0;
+		}
+	}
+
+	/**
+	 * Number of written characters (same as length of written String)
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Completes digest of written characters
+	 */
+	public byte[] digest() {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			encode('?');
+		}
+		flushBuffer();
+		return md.digest();
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
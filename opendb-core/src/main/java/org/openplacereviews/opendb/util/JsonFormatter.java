@@ -6,6 +6,7 @@ import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Type;
 import java.util.*;
@@ -67,7 +68,7 @@ public class JsonFormatter {
 	            JsonObject obj = in.getAsJsonObject();
 	            Set<Map.Entry<String, JsonElement>> entitySet = obj.entrySet();
 	            for(Map.Entry<String, JsonElement> entry: entitySet){
-	                map.put(entry.getKey(), read(entry.getValue()));
+	                map.put(OUtils.intern(entry.getKey()), read(entry.getValue()));
 	            }
 	            return map;
 	        }else if(in.isJsonPrimitive()){
@@ -75,7 +76,7 @@ public class JsonFormatter {
 	            if(prim.isBoolean()){
 	                return prim.getAsBoolean();
 	            }else if(prim.isString()){
-	                return prim.getAsString();
+	                return OUtils.intern(prim.getAsString());
 	            }else if(prim.isNumber()){
 	                Number num = prim.getAsNumber();
 	                // here you can handle double int/long values
@@ -130,19 +131,97 @@ public class JsonFormatter {
 	public String fullObjectToJson(Object o) {
 		return gsonFullOutput.toJson(o);
 	}
+
+	public void fullObjectToJson(Object o, Appendable out) {
+		gsonFullOutput.toJson(o, out);
+	}
+
+	/**
+	 * Writes same content as fullObjectToJson(obj). Objects loaded from db which fields weren't parsed
+	 * are copied from stored json (stored objects don't have eval field) with eval fields prepended.
+	 */
+	public void writeFullObject(OpObject obj, Appendable out) throws IOException {
+		String stored = obj.getStoredJson();
+		if (stored == null) {
+			gsonFullOutput.toJson(obj, out);
+			return;
+		}
+		Map<String, Object> eval = obj.getEvalFields();
+		int start = stored.indexOf('{') + 1;
+		if (eval == null || start == 0) {
+			out.append(stored);
+			return;
+		}
+		out.append("{\"").append(OpObject.F_EVAL).append("\":");
+		gsonFullOutput.toJson(eval, out);
+		int next = start;
+		while (next < stored.length() && Character.isWhitespace(stored.charAt(next))) {
+			next++;
+		}
+		if (next < stored.length() && stored.charAt(next) != '}') {
+			out.append(',');
+		}
+		out.append(stored, start, stored.length());
+	}
 	
 	
 	public String opToJsonNoHash(OpOperation op) {
 		return gsonOperationHash.toJson(op);
 	}
 	
+	public void opToJsonNoHash(OpOperation op, Appendable out) {
+		gsonOperationHash.toJson(op, out);
+	}
+
 	public String opToJson(OpOperation op) {
 		return gson.toJson(op);
 	}
+
+	public void opToJson(OpOperation op, Appendable out) {
+		gson.toJson(op, out);
+	}
+
+	/**
+	 * Length of opToJson(op) measured without building the string, cached for immutable operations
+	 */
+	public int getOpJsonSize(OpOperation op) {
+		int sz = op.getCachedJsonSize();
+		if (sz < 0) {
+			DigestWriter w = new DigestWriter(null);
+			opToJson(op, w);
+			sz = (int) w.getLength();
+			op.setCachedJsonSize(sz);
+		}
+		return sz;
+	}
 	
+	/**
+	 * Length of toJson(block) calculated from cached json sizes of operations
+	 */
+	public int getBlockJsonSize(OpBlock bl) {
+		TreeMap<String, Object> tm = new TreeMap<>(bl.getRawOtherFields());
+		tm.put(OpBlock.F_OPERATIONS, Collections.emptyList());
+		DigestWriter w = new DigestWriter(null);
+		gson.toJson(tm, w);
+		long sz = w.getLength();
+		List<OpOperation> ops = bl.getOperations();
+		for (OpOperation o : ops) {
+			sz += getOpJsonSize(o);
+		}
+		// separators between operations
+		if (ops.size() > 1) {
+			sz += ops.size() - 1;
+		}
+		return (int) sz;
+	}
+
 	public String objToJson(OpObject op) {
 		return gson.toJson(op);
 	}
 
+	public void objToJson(OpObject op, Appendable out) {
+		gson.toJson(op, out);
+	}
+
 	
 }
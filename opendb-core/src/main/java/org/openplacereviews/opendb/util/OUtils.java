@@ -2,8 +2,25 @@ package org.openplacereviews.opendb.util;
 
 import java.util.List;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 public class OUtils {
 
+	// field names, types, ids and tag values are repeated across millions of objects
+	private static final Interner<String> STRINGS = Interners.newWeakInterner();
+	public static final int MAX_INTERNED_STRING_LENGTH = 64;
+
+	/**
+	 * Returns shared instance of short string, long strings are returned as is
+	 */
+	public static String intern(String s) {
+		if (s == null || s.length() > MAX_INTERNED_STRING_LENGTH) {
+			return s;
+		}
+		return STRINGS.intern(s);
+	}
+
 	public static boolean isEmpty(String s) {
 		return s == null || s.trim().length() == 0;
 	}
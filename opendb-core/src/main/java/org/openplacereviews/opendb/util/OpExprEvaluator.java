@@ -1,5 +1,6 @@
 package org.openplacereviews.opendb.util;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -62,10 +63,13 @@ public class OpExprEvaluator {
 	public static final String F_OLD = "old";
 	public static final String F_REF = "ref";
 
+	private static final Gson GSON = new Gson();
+
 	private ExpressionContext ectx;
+	private ExprNode compiled;
 
 	public static class EvaluationContext {
-		private JsonElement ctx;
+		private Object ctx;
 		private OpBlockChain blc;
 		private int exprNested;
 
@@ -77,18 +81,35 @@ public class OpExprEvaluator {
 			this.ctx = ctx;
 		}
 
+		/**
+		 * Context over read-only maps and lists (fields of objects) which are accessed without conversion to json,
+		 * expressions don't modify it, so it could be shared by many expressions
+		 */
+		public EvaluationContext(OpBlockChain blockchain, Map<String, Object> ctx) {
+			this.blc = blockchain;
+			this.ctx = ctx;
+		}
+
 	}
 
 	public OpExprEvaluator(ExpressionContext ectx) {
 		this.ectx = ectx;
+		this.compiled = compile(ectx);
 	}
 
 	public ExpressionContext getEctx() {
 		return this.ectx;
 	}
 
+	/**
+	 * Compiled expression tree which could be inspected without evaluation (i.e. to analyze preconditions)
+	 */
+	public ExprNode getCompiled() {
+		return compiled;
+	}
+
 	public Object evaluateObject(EvaluationContext obj) {
-		return eval(ectx, obj);
+		return compiled.eval(obj);
 	}
 
 	public boolean evaluateBoolean(EvaluationContext ctx) {
@@ -112,19 +133,19 @@ public class OpExprEvaluator {
 		return new OpExprEvaluator(ectx);
 	}
 
-	protected Object callFunction(String functionName, List<Object> args, EvaluationContext ctx) {
+	protected Object callFunction(Function function, List<Object> args, EvaluationContext ctx) {
+		String functionName = function.getName();
 		Number n1, n2;
 		Object obj1, obj2;
-		JsonObject object;
-		switch (functionName) {
-		case FUNCTION_M_MULT:
+		switch (function) {
+		case M_MULT:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() * n2.longValue();
 			}
 			return n1.doubleValue() * n2.doubleValue();
-		case FUNCTION_M_DIV:
+		case M_DIV:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
@@ -140,23 +161,23 @@ public class OpExprEvaluator {
 				return n1.longValue() / n2.longValue();
 			}
 			return n1.doubleValue() / n2.doubleValue();
-		case FUNCTION_M_PLUS:
+		case M_PLUS:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() + n2.longValue();
 			}
 			return n1.doubleValue() + n2.doubleValue();
-		case FUNCTION_M_MINUS:
+		case M_MINUS:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() - n2.longValue();
 			}
 			return n1.doubleValue() - n2.doubleValue();
-		case FUNCTION_STR_FIRST:
-		case FUNCTION_STR_SECOND:
-		case FUNCTION_STR_ALL:
+		case STR_FIRST:
+		case STR_SECOND:
+		case STR_ALL:
 			String ffs = getStringArgument(functionName, args, 0);
 			if (ffs != null) {
 				int indexOf = ffs.indexOf(':');
@@ -166,63 +187,61 @@ public class OpExprEvaluator {
 				}
 			}
 			return ffs;
-		case FUNCTION_STR_CONCAT: {
+		case STR_CONCAT: {
 			String res = getStringObject(getObjArgument(functionName, args, 0, false));
 			for(int i = 1 ; i <args.size(); i++) {
 				res += getStringObject(getObjArgument(functionName, args, i, false));
 			}
 			return res;
 		}
-		case FUNCTION_STR_COMBINE:
+		case STR_COMBINE:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			String s1 = getStringArgument(functionName, args, 1);
 			String res = "";
 			if (!isJsonArrayObj(obj1)) {
 				return obj1;
 			} else {
-				JsonArray ar1 = (JsonArray) obj1;
-				for(int i = 0; i < ar1.size(); i++) {
+				for(int i = 0; i < arraySize(obj1); i++) {
 					if(i > 0) {
 						res += s1;
 					}
-					JsonElement e1 = ar1.get(i);
-					res += e1 != null && e1.isJsonPrimitive() ? 
-							((JsonPrimitive)e1).getAsString() : toStringPrimitive(e1); 
+					Object e1 = arrayElement(obj1, i);
+					res += isScalar(e1) ? getAsString(e1) : toJsonString(e1);
 				}
 			}
 			return res;
-		case FUNCTION_STD_EQ:
+		case STD_EQ:
 			obj1 = getObjArgument(functionName, args, 0);
 			obj2 = getObjArgument(functionName, args, 1);
 			return objEquals(obj1, obj2);
-		case FUNCTION_STD_NEQ:
+		case STD_NEQ:
 			obj1 = getObjArgument(functionName, args, 0);
 			obj2 = getObjArgument(functionName, args, 1);
 			int r = objEquals(obj1, obj2);
 			return r == 0 ? 1 : 0;
-		case FUNCTION_STD_LEQ:
+		case STD_LEQ:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() <= n2.longValue() ? 1 : 0;
 			}
 			return n1.doubleValue() <= n2.doubleValue() ? 1 : 0;
-		case FUNCTION_STD_LE:
+		case STD_LE:
 			n1 = (Number) getObjArgument(functionName, args, 0);
 			n2 = (Number) getObjArgument(functionName, args, 1);
 			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
 				return n1.longValue() < n2.longValue() ? 1 : 0;
 			}
 			return n1.doubleValue() < n2.doubleValue() ? 1 : 0;
-		case FUNCTION_STD_SIZE:
+		case STD_SIZE:
 			Object ob = getObjArgument(functionName, args, 0, false);
-			if (ob instanceof JsonArray) {
-				return ((JsonArray) ob).size();
-			} else if (ob instanceof JsonObject) {
-				return ((JsonObject) ob).size();
+			if (isJsonArrayObj(ob)) {
+				return arraySize(ob);
+			} else if (isJsonMapObj(ob)) {
+				return mapKeys(ob).size();
 			}
 			return ob == null ? 0 : 1;
-		case FUNCTION_STD_AND:
+		case STD_AND:
 			for (Object o : args) {
 				if (o == null) {
 					return 0;
@@ -237,7 +256,7 @@ public class OpExprEvaluator {
 				}
 			}
 			return 1;
-		case FUNCTION_STD_OR:
+		case STD_OR:
 			for (Object o : args) {
 				if (o == null) {
 					continue;
@@ -252,18 +271,17 @@ public class OpExprEvaluator {
 				}
 			}
 			return 0;
-		case FUNCTION_AUTH_HAS_SIG_ROLES:
+		case AUTH_HAS_SIG_ROLES:
 			Object opSigned = getObjArgument(functionName, args, 0, false);
 			Object checkRoles = getObjArgument(functionName, args, 1, false);
 			List<String> signedBy, roles;
-			if (opSigned instanceof JsonObject) {
-				JsonElement elm = ((JsonObject) opSigned).get(OpOperation.F_SIGNED_BY);
-				signedBy = getStringsList(elm);
+			if (isJsonMapObj(opSigned)) {
+				signedBy = getStringsList(mapGet(opSigned, OpOperation.F_SIGNED_BY));
 			} else {
 				return 0;
 			}
-			if(checkRoles instanceof JsonElement) {
-				roles = getStringsList((JsonElement) checkRoles);
+			if(checkRoles instanceof JsonElement || isJsonArrayObj(checkRoles) || isJsonMapObj(checkRoles)) {
+				roles = getStringsList(checkRoles);
 			} else if(checkRoles instanceof String) {
 				roles = Collections.singletonList(checkRoles.toString());
 			} else {
@@ -283,31 +301,31 @@ public class OpExprEvaluator {
 			}
 
 			return 1;
-		case FUNCTION_OP_FIELDS_CHANGED:
+		case OP_FIELDS_CHANGED:
 			obj1 = getObjArgument(functionName, args, 0, false);
-			if (!(obj1 instanceof JsonObject)) {
+			if (!isJsonMapObj(obj1)) {
 				throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " support only JsonObject");
 			}
-			object = ((JsonObject) obj1);
-			if (object.get(F_EDIT) == null) {
+			Object objList = mapGet(obj1, F_EDIT);
+			if (objList == null) {
 				throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " must to contains edit list");
 			}
 
-			JsonArray objList = (JsonArray) object.get(F_EDIT);
 			JsonArray arrayChangedFields = new JsonArray();
-			for (JsonElement o : objList) {
-				JsonObject changedMap =  o.getAsJsonObject().get(F_CHANGE).getAsJsonObject();
-
-				for (Map.Entry<String, JsonElement> e : changedMap.entrySet()) {
-					String fieldExpr = e.getKey();
-					Object op = e.getValue();
-					if (op instanceof JsonObject) {
-						for(Map.Entry<String, JsonElement> ee : ((JsonObject) op).entrySet()) {
-							if(ee.getKey().equals(OpBlockChain.OP_CHANGE_APPEND)) {
+			for (int i = 0; i < arraySize(objList); i++) {
+				Object changedMap = mapGet(arrayElement(objList, i), F_CHANGE);
+				if (!isJsonMapObj(changedMap)) {
+					throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " edit doesn't contain change");
+				}
+				for (String fieldExpr : mapKeys(changedMap)) {
+					Object op = mapGet(changedMap, fieldExpr);
+					if (isJsonMapObj(op)) {
+						for(String opKey : mapKeys(op)) {
+							if(opKey.equals(OpBlockChain.OP_CHANGE_APPEND)) {
 								arrayChangedFields.add(fieldExpr);
-							} else if(ee.getKey().equals(OpBlockChain.OP_CHANGE_APPENDMANY)) {
+							} else if(opKey.equals(OpBlockChain.OP_CHANGE_APPENDMANY)) {
 								arrayChangedFields.add(fieldExpr);
-							} else if(ee.getKey().equals(OpBlockChain.OP_CHANGE_SET)) {
+							} else if(opKey.equals(OpBlockChain.OP_CHANGE_SET)) {
 								arrayChangedFields.add(fieldExpr);
 							} else {
 								throw new UnsupportedOperationException();
@@ -325,74 +343,74 @@ public class OpExprEvaluator {
 				}
 			}
 			return arrayChangedFields;
-		case FUNCTION_OP_OPERATION_TYPE:
+		case OP_OPERATION_TYPE:
 			obj1 = getObjArgument(functionName, args, 0, false);
-			if (!(obj1 instanceof JsonObject)) {
+			if (!isJsonMapObj(obj1)) {
 				throw new UnsupportedOperationException(FUNCTION_OP_OPERATION_TYPE + " support only JsonObject");
 			}
-			object = ((JsonObject) obj1);
-			if (object.get(F_EDIT) != null) {
+			if (mapGet(obj1, F_EDIT) != null) {
 				return F_EDIT;
 			}
-			if (object.get(F_CREATE) != null) {
+			if (mapGet(obj1, F_CREATE) != null) {
 				return F_CREATE;
 			}
-			if (object.get(F_DELETE) != null) {
+			if (mapGet(obj1, F_DELETE) != null) {
 				return F_DELETE;
 			}
 			throw new UnsupportedOperationException(FUNCTION_OP_OPERATION_TYPE + " op doesn't have any ops type");
 
-		case FUNCTION_OP_GET_OBJECT_BY_FIELD:
+		case OP_GET_OBJECT_BY_FIELD:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			Object obj = obj1;
 			for (int i = 1; i < args.size(); i++) {
-				if (!(obj instanceof JsonObject)) {
+				if (!isJsonMapObj(obj)) {
 					throw new UnsupportedOperationException(FUNCTION_OP_GET_OBJECT_BY_FIELD + " support only JsonObject");
 				}
 				obj = getField(obj, getStringObject(args.get(i)));
 			}
 			return obj;
-		case FUNCTION_M_FIELDS_INT_SUM:
+		case M_FIELDS_INT_SUM:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			obj2 = getObjArgument(functionName, args, 1, false);
-			if (!(obj1 instanceof JsonObject)) {
+			if (!isJsonMapObj(obj1)) {
 				throw new UnsupportedOperationException(FUNCTION_M_FIELDS_INT_SUM + " support only JsonObject");
 			}
 			int sum = 0;
-			object = ((JsonObject) obj1).get(getStringObject(obj2)).getAsJsonObject();
-			for (Map.Entry<String, JsonElement> e : object.entrySet()) {
-				sum += e.getValue().getAsInt();
+			Object sumFields = mapGet(obj1, getStringObject(obj2));
+			if (!isJsonMapObj(sumFields)) {
+				throw new UnsupportedOperationException(FUNCTION_M_FIELDS_INT_SUM + " support only JsonObject fields");
+			}
+			for (String key : mapKeys(sumFields)) {
+				Object v = mapGet(sumFields, key);
+				sum += v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(getAsString(v));
 			}
 			return sum;
-		case FUNCTION_SET_CONTAINS_KEY:
+		case SET_CONTAINS_KEY:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			obj2 = getObjArgument(functionName, args, 1, false);
-			Set<String> refKey = ((JsonObject) obj1).keySet();
-			if (!refKey.contains(String.valueOf(obj2))) {
+			if (!mapKeys(obj1).contains(String.valueOf(obj2))) {
 				return 0;
 			}
 			return 1;
-		case FUNCTION_SET_MINUS:
+		case SET_MINUS:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			obj2 = getObjArgument(functionName, args, 1, false);
 			Set<String> obj1Set = new TreeSet<String>();
 			if (isJsonMapObj(obj1)) {
-				obj1Set.addAll(((JsonObject) obj1).keySet());
+				obj1Set.addAll(mapKeys(obj1));
 			} else if (isJsonArrayObj(obj1)) {
-				JsonArray j1 = ((JsonArray) obj1);
-				for (int i = 0; i < j1.size(); i++) {
-					obj1Set.add(toStringPrimitive(j1.get(i)));
+				for (int i = 0; i < arraySize(obj1); i++) {
+					obj1Set.add(toJsonString(arrayElement(obj1, i)));
 				}
 			} else {
 				obj1Set.add(toStringPrimitive(obj1));
 			}
 
 			if (isJsonMapObj(obj2)) {
-				obj1Set.removeAll(((JsonObject) obj1).keySet());
+				obj1Set.removeAll(mapKeys(obj1));
 			} else if (isJsonArrayObj(obj2)) {
-				JsonArray j2 = ((JsonArray) obj2);
-				for (int i = 0; i < j2.size(); i++) {
-					obj1Set.remove(toStringPrimitive(j2.get(i)));
+				for (int i = 0; i < arraySize(obj2); i++) {
+					obj1Set.remove(toJsonString(arrayElement(obj2, i)));
 				}
 			} else {
 				obj1Set.remove(toStringPrimitive(obj2));
@@ -405,11 +423,13 @@ public class OpExprEvaluator {
 				}
 			}
 			return ar;
-		case FUNCTION_SET_ALL:
+		case SET_ALL:
 			JsonArray arrayRes = new JsonArray();
 			for (Object o : args) {
 				if (o instanceof JsonElement) {
 					arrayRes.add((JsonElement) o);
+				} else if (isJsonMapObj(o) || isJsonArrayObj(o)) {
+					arrayRes.add(toJsonElement(o));
 				} else if (o instanceof Number) {
 					arrayRes.add((Number) o);
 				} else {
@@ -419,20 +439,18 @@ public class OpExprEvaluator {
 				}
 			}
 			return arrayRes;
-		case FUNCTION_SET_IN:
+		case SET_IN:
 			obj1 = getObjArgument(functionName, args, 0, false);
 			obj2 = getObjArgument(functionName, args, 1, false);
 			if (!isJsonArrayObj(obj1) && !isJsonMapObj(obj1)) {
-				if (obj2 instanceof JsonArray) {
-					JsonArray j2 = ((JsonArray) obj2);
-					for (int i = 0; i < j2.size(); i++) {
-						if (objEquals(obj1, j2.get(i)) != 0) {
+				if (isJsonArrayObj(obj2)) {
+					for (int i = 0; i < arraySize(obj2); i++) {
+						if (objEquals(obj1, arrayElement(obj2, i)) != 0) {
 							return 1;
 						}
 					}
-				} else if (obj2 instanceof JsonObject) {
-					JsonObject j2 = ((JsonObject) obj2);
-					for (String key : j2.keySet()) {
+				} else if (isJsonMapObj(obj2)) {
+					for (String key : mapKeys(obj2)) {
 						if (objEquals(obj1, key) != 0) {
 							return 1;
 						}
@@ -443,10 +461,9 @@ public class OpExprEvaluator {
 				}
 				return 0;
 			} else {
-				if (obj2 instanceof JsonArray) {
-					JsonArray j2 = ((JsonArray) obj2);
-					for (int i = 0; i < j2.size(); i++) {
-						if (objEquals(obj1, j2.get(i)) != 0) {
+				if (isJsonArrayObj(obj2)) {
+					for (int i = 0; i < arraySize(obj2); i++) {
+						if (objEquals(obj1, arrayElement(obj2, i)) != 0) {
 							return 1;
 						}
 					}
@@ -465,12 +482,11 @@ public class OpExprEvaluator {
 		if (obj2 instanceof String) {
 			str = new StringBuilder((String) obj2);
 		} else if (isJsonArrayObj(obj2)) {
-			JsonArray array = (JsonArray) obj2;
-			for (int i = 0; i < array.size(); i++) {
+			for (int i = 0; i < arraySize(obj2); i++) {
 				if (str.toString().equals("")) {
-					str.append(toStringPrimitive(array.get(i).getAsString()));
+					str.append(toStringPrimitive(getAsString(arrayElement(obj2, i))));
 				} else {
-					str.append(":").append(toStringPrimitive(array.get(i).getAsString()));
+					str.append(":").append(toStringPrimitive(getAsString(arrayElement(obj2, i))));
 				}
 			}
 		}
@@ -501,23 +517,54 @@ public class OpExprEvaluator {
 		return false;
 	}
 
-	private List<String> getStringsList(JsonElement elm) {
+	private List<String> getStringsList(Object elm) {
 		List<String> lst = new ArrayList<String>();
-		if (elm.isJsonPrimitive()) {
+		if (elm instanceof String) {
+			lst.add((String) elm);
+		} else if (elm instanceof JsonPrimitive) {
 			if (((JsonPrimitive) elm).isString()) {
 				lst.add(((JsonPrimitive) elm).getAsString());
 			}
-		} else if (elm.isJsonArray()) {
-			JsonArray jsar = (JsonArray) elm;
-			for (int i = 0; i < jsar.size(); i++) {
-				lst.add(jsar.get(i).getAsString());
+		} else if (isJsonArrayObj(elm)) {
+			for (int i = 0; i < arraySize(elm); i++) {
+				lst.add(getAsString(arrayElement(elm, i)));
 			}
 		}
 		return lst;
 	}
 
 	private String toStringPrimitive(Object o) {
-		return o == null ? "" : o.toString();
+		if (o == null) {
+			return "";
+		}
+		return isJsonMapObj(o) || isJsonArrayObj(o) ? toJsonString(o) : o.toString();
+	}
+
+	private boolean isScalar(Object o) {
+		return o instanceof JsonPrimitive || o instanceof String || o instanceof Number || o instanceof Boolean;
+	}
+
+	// string value of primitive as JsonElement.getAsString
+	private String getAsString(Object o) {
+		if (o instanceof JsonElement) {
+			return ((JsonElement) o).getAsString();
+		} else if (isScalar(o)) {
+			return o.toString();
+		}
+		return toJsonElement(o).getAsString();
+	}
+
+	// json representation of element, strings are quoted
+	private String toJsonString(Object o) {
+		return toJsonElement(o).toString();
+	}
+
+	// maps and lists are converted only when functions require json (i.e. to compare objects)
+	private JsonElement toJsonElement(Object o) {
+		if (o instanceof JsonElement) {
+			return (JsonElement) o;
+		}
+		return GSON.toJsonTree(o);
 	}
 
 	private int objEquals(Object obj1, Object obj2) {
@@ -542,26 +589,47 @@ public class OpExprEvaluator {
 			}
 			return n1.doubleValue() == n2.doubleValue() ? 1 : 0;
 		}
-		if (obj1 instanceof JsonPrimitive) {
-			obj1 = ((JsonPrimitive) obj1).getAsString();
+		if (obj1 instanceof JsonPrimitive || obj1 instanceof Boolean) {
+			obj1 = getAsString(obj1);
+		}
+		if (obj2 instanceof JsonPrimitive || obj2 instanceof Boolean) {
+			obj2 = getAsString(obj2);
 		}
-		if (obj2 instanceof JsonPrimitive) {
-			obj2 = ((JsonPrimitive) obj2).getAsString();
+		if ((isJsonMapObj(obj1) || isJsonArrayObj(obj1)) && (isJsonMapObj(obj2) || isJsonArrayObj(obj2))) {
+			return toJsonElement(obj1).equals(toJsonElement(obj2)) ? 1 : 0;
 		}
 		return OUtils.equals(obj1, obj2) ? 1 : 0;
 	}
 
 	public boolean isJsonMapObj(Object o) {
-		return o instanceof JsonObject;
+		return o instanceof JsonObject || o instanceof Map;
 	}
 
 	public boolean isJsonArrayObj(Object o) {
-		return o instanceof JsonArray;
+		return o instanceof JsonArray || o instanceof List;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Set<String> mapKeys(Object o) {
+		return o instanceof JsonObject ? ((JsonObject) o).keySet() : ((Map<String, Object>) o).keySet();
+	}
+
+	private Object mapGet(Object o, String key) {
+		return o instanceof JsonObject ? unwrap(((JsonObject) o).get(key)) : ((Map<?, ?>) o).get(key);
+	}
+
+	private int arraySize(Object o) {
+		return o instanceof JsonArray ? ((JsonArray) o).size() : ((List<?>) o).size();
+	}
+
+	// element is not unwrapped, so json primitives could be distinguished by functions
+	private Object arrayElement(Object o, int i) {
+		return o instanceof JsonArray ? ((JsonArray) o).get(i) : ((List<?>) o).get(i);
 	}
 
 	protected String getStringArgument(String functionName, List<Object> args, int i) {
 		Object o = getObjArgument(functionName, args, i);
-		return o == null ? null : o.toString();
+		return o == null ? null : toStringPrimitive(o);
 	}
 
 	private Object getObjArgument(String functionName, List<Object> args, int i) {
@@ -571,9 +639,9 @@ public class OpExprEvaluator {
 	protected Object getObjArgument(String functionName, List<Object> args, int i, boolean expandSingleArray) {
 		validateSize(functionName, args, i);
 		Object obj = args.get(i);
-		if (obj instanceof JsonArray && expandSingleArray) {
-			if (((JsonArray) obj).size() == 1) {
-				obj = ((JsonArray) obj).get(0);
+		if (isJsonArrayObj(obj) && expandSingleArray) {
+			if (arraySize(obj) == 1) {
+				obj = arrayElement(obj, 0);
 			}
 		}
 		if (obj instanceof JsonPrimitive) {
@@ -593,62 +661,235 @@ public class OpExprEvaluator {
 		}
 	}
 
-	protected Object eval(ExpressionContext expr, EvaluationContext ctx) {
+	/**
+	 * Walks parse tree once and builds tree of closures: literals are parsed,
+	 * functions are resolved and functions with constant arguments are evaluated in advance.
+	 */
+	protected ExprNode compile(ExpressionContext expr) {
 		ParseTree child = expr.getChild(0);
 		if (child instanceof TerminalNode) {
 			TerminalNode t = ((TerminalNode) child);
 			if (t.getSymbol().getType() == OpenDBExprParser.INT) {
-				return Long.parseLong(t.getText());
+				return new ConstNode(Long.parseLong(t.getText()));
 			} else if (t.getSymbol().getType() == OpenDBExprParser.THIS) {
-				return ctx.ctx;
+				return ThisNode.THIS;
 			} else if (t.getSymbol().getType() == OpenDBExprParser.DOT) {
-				String field = expr.getChild(1).getText();
-				return getField(ctx.ctx, field);
-
+				// '.field' is the same as 'this.field'
+				return new FieldNode(ThisNode.THIS, expr.getChild(1).getText());
 			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL1) {
-				return t.getText().substring(1, t.getText().length() - 1).replace("\\\'", "\'");
+				return new ConstNode(t.getText().substring(1, t.getText().length() - 1).replace("\\\'", "\'"));
 			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL2) {
-				return t.getText().substring(1, t.getText().length() - 1).replace("\\\"", "\"");
+				return new ConstNode(t.getText().substring(1, t.getText().length() - 1).replace("\\\"", "\""));
 			}
 			throw new UnsupportedOperationException("Terminal node is not supported");
 		}
 		if (child instanceof ExpressionContext
 				&& ((TerminalNode) expr.getChild(1)).getSymbol().getType() == OpenDBExprLexer.DOT) {
-			ExpressionContext fc = ((ExpressionContext) child);
-			String field = expr.getChild(2).getText();
-			Object eval = eval(fc, ctx);
-			return getField(eval, field);
+			return new FieldNode(compile((ExpressionContext) child), expr.getChild(2).getText());
 		}
 		if (child instanceof MethodCallContext) {
 			MethodCallContext mcc = ((MethodCallContext) child);
 			String functionName = mcc.getChild(0).getText();
-			List<Object> args = new ArrayList<Object>();
+			List<ExprNode> args = new ArrayList<ExprNode>();
+			List<String> argsText = new ArrayList<String>();
+			for (int i = 0; i < mcc.getChildCount(); i++) {
+				ParseTree pt = mcc.getChild(i);
+				if (pt instanceof ExpressionContext) {
+					args.add(compile((ExpressionContext) pt));
+					argsText.add(pt.getText());
+				}
+			}
+			Function function = Function.getByName(functionName);
+			if (function == null) {
+				// fails only when it is evaluated as before
+				return ctx -> {
+					throw new UnsupportedOperationException(String.format("Unsupported function '%s'", functionName));
+				};
+			}
+			FunctionNode fn = new FunctionNode(function, args.toArray(new ExprNode[args.size()]),
+					argsText.toArray(new String[argsText.size()]));
+			return fn.fold();
+		}
+		throw new UnsupportedOperationException("Unsupported parser operation: %s" + child.getText());
+	}
+
+	public interface ExprNode {
+		Object eval(EvaluationContext ctx);
+	}
+
+	public static class ConstNode implements ExprNode {
+		private final Object value;
+
+		public ConstNode(Object value) {
+			this.value = value;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		@Override
+		public Object eval(EvaluationContext ctx) {
+			return value;
+		}
+	}
+
+	public static class ThisNode implements ExprNode {
+		public static final ThisNode THIS = new ThisNode();
+
+		private ThisNode() {
+		}
+
+		@Override
+		public Object eval(EvaluationContext ctx) {
+			return ctx.ctx;
+		}
+	}
+
+	public class FieldNode implements ExprNode {
+		private final ExprNode object;
+		private final String field;
+
+		private FieldNode(ExprNode object, String field) {
+			this.object = object;
+			this.field = field;
+		}
+
+		public ExprNode getObject() {
+			return object;
+		}
+
+		public String getField() {
+			return field;
+		}
+
+		@Override
+		public Object eval(EvaluationContext ctx) {
+			return OpExprEvaluator.this.getField(object.eval(ctx), field);
+		}
+	}
+
+	public class FunctionNode implements ExprNode {
+		private final Function function;
+		private final ExprNode[] args;
+		private final String[] argsText;
+
+		private FunctionNode(Function function, ExprNode[] args, String[] argsText) {
+			this.function = function;
+			this.args = args;
+			this.argsText = argsText;
+		}
+
+		public String getFunctionName() {
+			return function.getName();
+		}
+
+		public List<ExprNode> getArgs() {
+			return Collections.unmodifiableList(Arrays.asList(args));
+		}
+
+		public ExprNode fold() {
+			if (!function.isPure()) {
+				return this;
+			}
+			Object[] values = new Object[args.length];
+			for (int i = 0; i < args.length; i++) {
+				if (!(args[i] instanceof ConstNode)) {
+					return this;
+				}
+				values[i] = ((ConstNode) args[i]).value;
+			}
+			try {
+				return new ConstNode(callFunction(function, Arrays.asList(values), null));
+			} catch (RuntimeException e) {
+				// error is thrown when expression is evaluated
+				return this;
+			}
+		}
+
+		@Override
+		public Object eval(EvaluationContext ctx) {
+			Object[] values = new Object[args.length];
 			StringBuilder traceExpr = null;
 			if (isTraceExpressions()) {
 				traceExpr = new StringBuilder();
-				traceExpr.append(space(ctx.exprNested)).append(functionName);
+				traceExpr.append(space(ctx.exprNested)).append(function.getName());
 			}
-			for (int i = 0; i < mcc.getChildCount(); i++) {
-				ParseTree pt = mcc.getChild(i);
-				if (pt instanceof ExpressionContext) {
-					Object obj = eval((ExpressionContext) pt, ctx);
-					if (isTraceExpressions()) {
-						traceExpr.append("[ '").append(pt.getText()).append("'");
-						traceExpr.append(" -> '").append(obj).append("']");
-					}
-					args.add(obj);
+			for (int i = 0; i < args.length; i++) {
+				values[i] = args[i].eval(ctx);
+				if (isTraceExpressions()) {
+					traceExpr.append("[ '").append(argsText[i]).append("'");
+					traceExpr.append(" -> '").append(values[i]).append("']");
 				}
 			}
 			ctx.exprNested++;
-			Object funcRes = callFunction(functionName, args, ctx);
-
+			Object funcRes = callFunction(function, Arrays.asList(values), ctx);
 			if (isTraceExpressions()) {
 				System.out.println("EXPR:  " + traceExpr.toString() + " = " + funcRes);
 			}
 			ctx.exprNested--;
 			return funcRes;
 		}
-		throw new UnsupportedOperationException("Unsupported parser operation: %s" + child.getText());
+	}
+
+	protected enum Function {
+		STR_FIRST(FUNCTION_STR_FIRST),
+		STR_SECOND(FUNCTION_STR_SECOND),
+		STR_ALL(FUNCTION_STR_ALL),
+		STR_COMBINE(FUNCTION_STR_COMBINE),
+		STR_CONCAT(FUNCTION_STR_CONCAT),
+		M_PLUS(FUNCTION_M_PLUS),
+		M_MULT(FUNCTION_M_MULT),
+		M_DIV(FUNCTION_M_DIV),
+		M_MINUS(FUNCTION_M_MINUS),
+		M_FIELDS_INT_SUM(FUNCTION_M_FIELDS_INT_SUM),
+		STD_EQ(FUNCTION_STD_EQ),
+		STD_NEQ(FUNCTION_STD_NEQ),
+		STD_LEQ(FUNCTION_STD_LEQ),
+		STD_LE(FUNCTION_STD_LE),
+		STD_SIZE(FUNCTION_STD_SIZE),
+		STD_OR(FUNCTION_STD_OR),
+		STD_AND(FUNCTION_STD_AND),
+		SET_IN(FUNCTION_SET_IN),
+		SET_ALL(FUNCTION_SET_ALL),
+		SET_MINUS(FUNCTION_SET_MINUS),
+		SET_CONTAINS_KEY(FUNCTION_SET_CONTAINS_KEY),
+		// depends on blockchain state
+		AUTH_HAS_SIG_ROLES(FUNCTION_AUTH_HAS_SIG_ROLES, false),
+		OP_OPERATION_TYPE(FUNCTION_OP_OPERATION_TYPE),
+		OP_GET_OBJECT_BY_FIELD(FUNCTION_OP_GET_OBJECT_BY_FIELD),
+		OP_FIELDS_CHANGED(FUNCTION_OP_FIELDS_CHANGED);
+
+		private static final Map<String, Function> BY_NAME = new HashMap<String, Function>();
+		static {
+			for (Function f : values()) {
+				BY_NAME.put(f.name, f);
+			}
+		}
+
+		private final String name;
+		private final boolean pure;
+
+		Function(String name) {
+			this(name, true);
+		}
+
+		Function(String name, boolean pure) {
+			this.name = name;
+			this.pure = pure;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isPure() {
+			return pure;
+		}
+
+		public static Function getByName(String name) {
+			return BY_NAME.get(name);
+		}
 	}
 
 	protected boolean isTraceExpressions() {
@@ -656,22 +897,22 @@ public class OpExprEvaluator {
 	}
 
 	private Object getField(Object obj, String field) {
-		if (obj instanceof JsonArray) {
-			JsonArray ar = (JsonArray) obj;
+		if (isJsonArrayObj(obj)) {
+			int sz = arraySize(obj);
 			try {
 				int nt = Integer.parseInt(field);
-				if (nt < ar.size() && nt >= 0) {
-					return unwrap(ar.get(nt));
+				if (nt < sz && nt >= 0) {
+					return unwrap(arrayElement(obj, nt));
 				}
 				return null;
 			} catch (NumberFormatException e) {
 			}
-			if (ar.size() > 0 && ar.get(0) instanceof JsonObject) {
-				return unwrap(((JsonObject) ar.get(0)).get(field));
+			if (sz > 0 && isJsonMapObj(arrayElement(obj, 0))) {
+				return mapGet(arrayElement(obj, 0), field);
 			}
 			return null;
-		} else if (obj instanceof JsonObject) {
-			return unwrap(((JsonObject) obj).get(field));
+		} else if (isJsonMapObj(obj)) {
+			return mapGet(obj, field);
 		} else if ("0".equals(field)) {
 			return obj;
 		}
@@ -686,7 +927,7 @@ public class OpExprEvaluator {
 		return s;
 	}
 
-	private Object unwrap(JsonElement j) {
+	private Object unwrap(Object j) {
 		if (j instanceof JsonPrimitive) {
 			if (((JsonPrimitive) j).isBoolean()) {
 				return ((JsonPrimitive) j).getAsBoolean();
@@ -3,7 +3,9 @@ package org.openplacereviews.opendb;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
+import org.openplacereviews.opendb.util.DigestWriter;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 import static org.junit.Assert.assertEquals;
@@ -37,6 +39,19 @@ public class SecUtilsTest {
 		assertEquals(expected1_3, Hex.encodeHexString(out1_3));
 	}
 
+	@Test
+	public void calculateHashWithDigestWriterTest() throws IOException {
+		String[] ins = new String[] { "", "abc", "\u00e9t\u00e9 \u20ac \ud83d\ude00 end",
+				"unpaired \ud83d x \ude00", "tail \ud83d", StringUtils.repeat("\u0436\ud83d\ude00a", 5000) };
+		for (String in : ins) {
+			DigestWriter w = new DigestWriter(SecUtils.getMessageDigest(SecUtils.HASH_SHA256));
+			w.write(in);
+			assertEquals(in.length(), w.getLength());
+			assertEquals(SecUtils.calculateHashWithAlgo(SecUtils.HASH_SHA256, null, in),
+					SecUtils.formatHashWithAlgo(SecUtils.HASH_SHA256, w.digest()));
+		}
+	}
+
 	@Test(expected = UnsupportedOperationException.class)
 	public void calculateUnsupportedHashTest() throws UnsupportedEncodingException {
 		String in = "abc";
@@ -5,17 +5,26 @@ import static org.mockito.ArgumentMatchers.*;
 import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
 import static org.openplacereviews.opendb.VariableHelperTest.serverName;
 
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.*;
 import org.openplacereviews.opendb.ObjectGeneratorTest;
 import org.openplacereviews.opendb.service.*;
+import org.openplacereviews.opendb.service.BlocksManager.BlocksListResult;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class BlockManagerReplicationTest extends ObjectGeneratorTest {
 
@@ -107,6 +116,69 @@ public class BlockManagerReplicationTest extends ObjectGeneratorTest {
 	}
 
 
+	@Test
+	public void testReplicateFromRemoteNode() throws Exception {
+		OpBlockChain remote = new OpBlockChain(OpBlockChain.NULL, new OpBlockchainRules(formatter, null));
+		generateOperations(formatter, remote);
+		addOperationFromList(formatter, remote, new String[]{"create-obj-fix-opr"});
+		remote.createBlock(serverName, serverKeyPair);
+		addOperationFromList(formatter, remote, new String[]{"create-obj-fix-opr2"});
+		remote.createBlock(serverName, serverKeyPair);
+
+		// local stub of upstream node api
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/api/", exchange -> {
+			String res;
+			Map<String, String> params = new HashMap<String, String>();
+			for (String p : exchange.getRequestURI().getQuery().split("&")) {
+				params.put(p.substring(0, p.indexOf('=')), p.substring(p.indexOf('=') + 1));
+			}
+			if (exchange.getRequestURI().getPath().endsWith("/blocks")) {
+				BlocksListResult br = new BlocksListResult();
+				br.blocks = new LinkedList<OpBlock>(remote.getBlockHeaders(-1));
+				Collections.reverse(br.blocks);
+				String from = params.get("from");
+				while (!from.isEmpty() && !br.blocks.isEmpty() && !from.equals(br.blocks.get(0).getRawHash())) {
+					br.blocks.remove(0);
+				}
+				res = formatter.fullObjectToJson(br);
+			} else {
+				OpBlock block = remote.getFullBlockByRawHash(params.get("hash"));
+				if ("binary".equals(params.get("format"))) {
+					byte[] bytes = OpBinaryCodec.encode(block);
+					exchange.getResponseHeaders().set("Content-Type", OpBinaryCodec.MEDIA_TYPE);
+					exchange.sendResponseHeaders(200, bytes.length);
+					try (OutputStream os = exchange.getResponseBody()) {
+						os.write(bytes);
+					}
+					return;
+				}
+				res = formatter.fullObjectToJson(block);
+			}
+			byte[] bytes = res.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(bytes);
+			}
+		});
+		server.start();
+		try {
+			ReflectionTestUtils.setField(blocksManager, "settingsManager", settingsManager);
+			settingsManager.OPENDB_REPLICATE_URL.set("http://localhost:" + server.getAddress().getPort() + "/api/");
+			settingsManager.OPENDB_REPLICATE_PREFETCH_BLOCKS.set(2);
+			settingsManager.OPENDB_BLOCKCHAIN_STATUS.set(SettingsManager.BlockSource.REPLICATION);
+
+			assertTrue("Replication failed", blocksManager.replicate());
+			assertEquals(remote.getLastBlockRawHash(), blocksManager.getBlockchain().getLastBlockRawHash());
+			assertObjectPatched();
+			// nothing to replicate, continues from the last replicated block
+			assertTrue("Replication failed", blocksManager.replicate());
+			assertEquals(remote.getLastBlockRawHash(), blocksManager.getBlockchain().getLastBlockRawHash());
+		} finally {
+			server.stop(0);
+		}
+	}
+
 	@Test
 	public void testCompactCoef1() throws FailedVerificationException {
 		generateOperations(formatter, blc);
@@ -9,6 +9,7 @@ import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.List;
@@ -201,6 +202,106 @@ public class OpBlockchainGettersTest {
 		assertEquals(2, r.result.size());
 	}
 
+	@Test
+	public void testGetObjectByNameThroughRuntimeSuperblocks() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+		blc.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+		assertFalse(r.result.isEmpty());
+
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+		OpBlockChain top = new OpBlockChain(child, blc.getRules());
+		for (OpObject o : r.result) {
+			assertSame(o, top.getObjectByName(OpBlockchainRules.OP_SIGNUP, o.getId()));
+		}
+		assertNull(top.getObjectByName(OpBlockchainRules.OP_SIGNUP, "not-existing-signup"));
+
+		// merged superblock replaces 2 runtime superblocks, index should be rebuilt
+		OpBlockChain merged = new OpBlockChain(child, blc, blc.getRules());
+		assertTrue(top.changeToEqualParent(merged));
+		for (OpObject o : r.result) {
+			assertSame(o, top.getObjectByName(OpBlockchainRules.OP_SIGNUP, o.getId()));
+		}
+		assertNull(top.getObjectByName(OpBlockchainRules.OP_SIGNUP, "not-existing-signup"));
+	}
+
+	@Test
+	public void testFetchAllObjectsThroughRuntimeSuperblocks() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain.ObjectsSearchRequest all = new OpBlockChain.ObjectsSearchRequest();
+		blc.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, all);
+		assertFalse(all.result.isEmpty());
+
+		OpBlockChain top = new OpBlockChain(blc, blc.getRules());
+		OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+		r.limit = 1;
+		top.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+		assertEquals(1, r.result.size());
+
+		r = new OpBlockChain.ObjectsSearchRequest();
+		r.requestOnlyKeys = true;
+		top.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+		assertTrue(r.result.isEmpty());
+		assertEquals(all.result.size(), r.keys.size());
+	}
+
+	@Test
+	public void testFetchAllObjectsNewestSuperblockFirst() throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		OpBlockChain bottom = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		int i = 0;
+		for (; i < ops.size() / 2; i++) {
+			bottom.addOperation(ops.get(i));
+		}
+		bottom.createBlock(serverName, serverKeyPair);
+		OpBlockChain top = new OpBlockChain(bottom, blc.getRules());
+		for (; i < ops.size(); i++) {
+			top.addOperation(ops.get(i));
+		}
+
+		for (String type : blc.getRawSuperblockTypes()) {
+			OpBlockChain.ObjectsSearchRequest expected = new OpBlockChain.ObjectsSearchRequest();
+			blc.fetchAllObjects(type, expected);
+			List<CompoundKey> topKeys = new ArrayList<>();
+			top.getRawSuperblockObjects(type).forEach(e -> topKeys.add(e.getKey()));
+
+			OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+			top.fetchAllObjects(type, r);
+			assertEquals(expected.keys.size(), r.keys.size());
+			boolean parentObjects = false;
+			for (int k = 0; k < r.keys.size(); k++) {
+				CompoundKey key = r.keys.get(k);
+				// objects of top superblock (including overridden ones) go before objects of parent
+				if (topKeys.contains(key)) {
+					assertFalse(parentObjects);
+				} else {
+					parentObjects = true;
+				}
+				assertSame(top.getObjectByName(type, new ArrayList<String>(key)), r.result.get(k));
+			}
+		}
+	}
+
+	@Test
+	public void testGetObjectsByIds() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+		blc.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+		assertFalse(r.result.isEmpty());
+
+		OpBlockChain top = new OpBlockChain(blc, blc.getRules());
+		List<CompoundKey> keys = new ArrayList<>();
+		for (OpObject o : r.result) {
+			keys.add(new CompoundKey(0, o.getId()));
+		}
+		keys.add(new CompoundKey("not-existing-signup", null));
+		Map<CompoundKey, OpObject> objs = top.getObjectsByIds(OpBlockchainRules.OP_SIGNUP, keys);
+		assertEquals(r.result.size(), objs.size());
+		for (OpObject o : r.result) {
+			assertSame(o, objs.get(new CompoundKey(0, o.getId())));
+		}
+	}
+
 	private Object[] opblockchainBasicParameterWithBlock() throws FailedVerificationException {
 		beforeEachTestMethod();
 
@@ -1,5 +1,8 @@
 package org.openplacereviews.opendb.ops;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -7,6 +10,8 @@ import org.junit.rules.ExpectedException;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.util.JsonFormatter;
+import org.openplacereviews.opendb.util.OpExprEvaluator;
+import org.openplacereviews.opendb.util.OpExprEvaluator.EvaluationContext;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -487,6 +492,61 @@ public class OpBlockchainRulesTest {
 		blc.validateOperation(opOperation);
 	}
 
+	/**
+	 * Success adding operation which hash and signature were verified in advance
+	 *
+	 * @throws FailedVerificationException
+	 */
+	@Test
+	public void testPrevalidateOperations() throws FailedVerificationException {
+		String id = "openplacereviews";
+
+		OpObject opObject = new OpObject();
+		opObject.setId(id + 1);
+
+		Map<String, Object> refs = new TreeMap<>();
+		refs.put("s", Arrays.asList(OpBlockchainRules.OP_SIGNUP, id));
+
+		OpOperation opOperation = new OpOperation();
+		opOperation.putObjectValue(OpOperation.F_REF, refs);
+		opOperation.setType(OpBlockchainRules.OP_GRANT);
+		opOperation.addCreated(opObject);
+
+		generateHashAndSignForOperation(opOperation, blc, true, serverKeyPair);
+		opOperation.makeImmutable();
+
+		blc.getRules().prevalidateOperations(blc, Collections.singletonList(opOperation));
+		assertTrue(blc.addOperation(opOperation));
+	}
+
+	/**
+	 * Expected ErrorType.OP_SIGNATURE_FAILED after operation signed by another key was verified in advance
+	 *
+	 * @throws FailedVerificationException
+	 */
+	@Test
+	public void testPrevalidateOperationsExpectError_OpSignatureFailed() throws FailedVerificationException {
+		String id = "openplacereviews";
+
+		OpObject opObject = new OpObject();
+		opObject.setId(id + 1);
+
+		Map<String, Object> refs = new TreeMap<>();
+		refs.put("s", Arrays.asList(OpBlockchainRules.OP_SIGNUP, id));
+
+		OpOperation opOperation = new OpOperation();
+		opOperation.putObjectValue(OpOperation.F_REF, refs);
+		opOperation.setType(OpBlockchainRules.OP_GRANT);
+		opOperation.addCreated(opObject);
+
+		generateHashAndSignForOperation(opOperation, blc, true, SecUtils.generateRandomEC256K1KeyPair());
+		opOperation.makeImmutable();
+
+		blc.getRules().prevalidateOperations(blc, Collections.singletonList(opOperation));
+		exceptionRule.expect(BlockchainValidationException.class);
+		blc.addOperation(opOperation);
+	}
+
 	/**
 	 * Success validateOperations
 	 *
@@ -668,6 +728,144 @@ public class OpBlockchainRulesTest {
 		assertNotEquals(rootHash, rootHash2);
 	}
 
+	/**
+	 * Rules evaluated over shared read-only view of fields give the same results
+	 * as rules evaluated over json context converted for each rule (previous implementation)
+	 */
+	@Test
+	public void testSharedFieldsContextMatchesJsonContext() throws FailedVerificationException {
+		for (String[] list : new String[][] { BOOTSTRAP_LIST, BLOCKCHAIN_LIST, VOTING_LIST }) {
+			ParityCheckRules rules = new ParityCheckRules(formatter);
+			OpBlockChain chain = new OpBlockChain(OpBlockChain.NULL, rules);
+			generateOperationsByList(formatter, chain, list);
+			if (list == VOTING_LIST) {
+				for (OpOperation voteOp : getVotingOperations(formatter, chain, 9)) {
+					voteOp.makeImmutable();
+					chain.addOperation(voteOp);
+				}
+			}
+			assertTrue(rules.evaluated > 0);
+			assertEquals(Collections.emptyList(), rules.mismatches);
+		}
+	}
+
+	/**
+	 * Rules skipped by operation shape index don't change validation result:
+	 * preconditions of skipped rules are not satisfied when all rules are evaluated
+	 */
+	@Test
+	public void testShapeIndexedRulesMatchAllRules() throws FailedVerificationException {
+		int skipped = 0;
+		for (String[] list : new String[][] { BOOTSTRAP_LIST, BLOCKCHAIN_LIST, VOTING_LIST }) {
+			AllRulesCheckRules rules = new AllRulesCheckRules(formatter);
+			OpBlockChain chain = new OpBlockChain(OpBlockChain.NULL, rules);
+			generateOperationsByList(formatter, chain, list);
+			if (list == VOTING_LIST) {
+				for (OpOperation voteOp : getVotingOperations(formatter, chain, 9)) {
+					voteOp.makeImmutable();
+					chain.addOperation(voteOp);
+				}
+			}
+			skipped += rules.skipped;
+			assertEquals(Collections.emptyList(), rules.mismatches);
+		}
+		assertTrue(skipped > 0);
+	}
+
+	private static class AllRulesCheckRules extends OpBlockchainRules {
+		private final List<String> mismatches = new ArrayList<>();
+		private int skipped;
+
+		public AllRulesCheckRules(JsonFormatter formatter) {
+			super(formatter, null);
+		}
+
+		@Override
+		boolean ruleCouldFire(OpObject rule, String type, String opType, int newObjs, int oldObjs) {
+			// all rules of operation type are validated
+			return true;
+		}
+
+		@Override
+		boolean validateRule(OpObject rule, OpOperation o, RulesEvaluationContext evalCtx) {
+			if (super.ruleCouldFire(rule, o.getType(), getShapeOpType(o), evalCtx.newObjsArray.size(),
+					evalCtx.deletedObjsCache.size())) {
+				return super.validateRule(rule, o, evalCtx);
+			}
+			skipped++;
+			try {
+				if (!super.validateRule(rule, o, evalCtx)) {
+					mismatches.add(rule.getId() + " " + o.getHash());
+				}
+			} catch (RuntimeException e) {
+				mismatches.add(rule.getId() + " " + o.getHash() + " " + e.getMessage());
+			}
+			// result of shape index
+			return true;
+		}
+	}
+
+	private static class ParityCheckRules extends OpBlockchainRules {
+		private static final Gson GSON = new Gson();
+		private final JsonFormatter formatter;
+		private final List<String> mismatches = new ArrayList<>();
+		private int evaluated;
+
+		public ParityCheckRules(JsonFormatter formatter) {
+			super(formatter, null);
+			this.formatter = formatter;
+		}
+
+		@Override
+		boolean validateRule(OpObject rule, OpOperation o, RulesEvaluationContext evalCtx) {
+			for (String field : new String[] { F_IF, F_VALIDATE }) {
+				List<OpExprEvaluator> exprs;
+				try {
+					exprs = getValidateExpresions(field, rule);
+				} catch (RuntimeException e) {
+					break;
+				}
+				for (OpExprEvaluator expr : exprs) {
+					List<Object> shared = evaluate(expr, evalCtx.get());
+					List<Object> perRule = evaluate(expr, new RulesEvaluationContext(evalCtx.blockchain, o,
+							evalCtx.newObjsArray, evalCtx.deletedObjsCache, evalCtx.refObjsCache).get());
+					List<Object> json = evaluate(expr, getJsonContext(evalCtx));
+					if (!json.equals(shared) || !json.equals(perRule)) {
+						mismatches.add(rule.getId() + " " + expr.getEctx().getText() + " " + o.getHash() + ": "
+								+ json + " != " + shared + " / " + perRule);
+					}
+					evaluated++;
+				}
+			}
+			return super.validateRule(rule, o, evalCtx);
+		}
+
+		private List<Object> evaluate(OpExprEvaluator expr, EvaluationContext ctx) {
+			try {
+				Object res = expr.evaluateObject(ctx);
+				return Arrays.asList(expr.evaluateBoolean(ctx), GSON.toJsonTree(res));
+			} catch (RuntimeException e) {
+				return Collections.singletonList(e.getClass().getName());
+			}
+		}
+
+		private EvaluationContext getJsonContext(RulesEvaluationContext evalCtx) {
+			JsonArray deletedArray = (JsonArray) formatter.toJsonElement(evalCtx.deletedObjsCache);
+			for (int i = 0; i < deletedArray.size(); i++) {
+				((JsonObject) deletedArray.get(i)).addProperty(OpOperation.F_TYPE,
+						evalCtx.deletedObjsCache.get(i).getParentType());
+			}
+			JsonObject refsMap = formatter.toJsonElement(evalCtx.refObjsCache).getAsJsonObject();
+			for (String key : refsMap.keySet()) {
+				((JsonObject) refsMap.get(key)).addProperty(OpOperation.F_TYPE,
+						evalCtx.refObjsCache.get(key).getParentType());
+			}
+			JsonArray newArray = (JsonArray) formatter.toJsonElement(evalCtx.newObjsArray);
+			JsonObject opJsonObj = formatter.toJsonElement(evalCtx.o).getAsJsonObject();
+			return new EvaluationContext(evalCtx.blockchain, opJsonObj, newArray, deletedArray, refsMap);
+		}
+	}
+
 	private void selectOperations(List<OpOperation> opOperations, Set<String> operationsToDelete,
 								  Iterator<OpOperation> iterator) {
 		int i = 0;
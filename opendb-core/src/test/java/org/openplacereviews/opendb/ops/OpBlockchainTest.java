@@ -4,14 +4,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.*;
 import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
 import static org.openplacereviews.opendb.VariableHelperTest.serverName;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -19,7 +22,14 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.openplacereviews.opendb.api.MgmtController;
+import org.mockito.Mockito;
+import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
+import org.openplacereviews.opendb.ops.OpBlockChain.SearchType;
 import org.openplacereviews.opendb.ops.OpBlockchainRules.BlockchainValidationException;
+import org.openplacereviews.opendb.ops.de.ColumnDef;
+import org.openplacereviews.opendb.ops.de.ColumnDef.IndexType;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
@@ -232,6 +242,294 @@ public class OpBlockchainTest {
 		assertNull(opBlockChain.replicateBlock(opBlock));
 	}
 
+	@Test
+	public void testAddOperations() throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		OpBlockChain opBlockChain = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		OpBlockChain.DeletedObjectCtx hctx = new OpBlockChain.DeletedObjectCtx();
+
+		assertTrue(opBlockChain.addOperations(ops, hctx));
+
+		assertEquals(ops, new ArrayList<>(opBlockChain.getQueueOperations()));
+		for (OpOperation o : ops) {
+			for (OpObject obj : o.getCreated()) {
+				if (!obj.getId().isEmpty()) {
+					assertEquals(blc.getObjectByName(o.getType(), obj.getId()),
+							opBlockChain.getObjectByName(o.getType(), obj.getId()));
+				}
+			}
+		}
+		assertNotNull(opBlockChain.createBlock(serverName, serverKeyPair));
+	}
+
+	@Test
+	public void testQueueTotals() throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		long jsonSize = 0;
+		for (OpOperation o : ops) {
+			jsonSize += formatter.opToJson(o).length();
+		}
+		assertEquals(ops.size(), blc.getQueueSize());
+		assertEquals(jsonSize, blc.getQueueJsonSize());
+
+		// merkle trees of queue are checked by block validation for different tree shapes
+		for (int n = 1; n <= ops.size(); n++) {
+			OpBlockChain opBlockChain = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+			for (OpOperation o : ops.subList(0, n)) {
+				opBlockChain.addOperation(o);
+			}
+			OpBlock opBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+			assertNotNull(opBlock);
+			assertEquals(0, opBlockChain.getQueueSize());
+			assertEquals(0, opBlockChain.getQueueJsonSize());
+			assertEquals(formatter.toJson(opBlock).length(), blc.getRules().calculateBlockSize(opBlock));
+		}
+	}
+
+	@Test
+	public void testBinaryCodecRoundTrip() throws FailedVerificationException {
+		for (OpOperation o : blc.getQueueOperations()) {
+			OpOperation decoded = OpBinaryCodec.decodeOperation(OpBinaryCodec.encode(o));
+			assertEquals(formatter.opToJson(o), formatter.opToJson(decoded));
+			assertEquals(o.getHash(), blc.getRules().calculateOperationHash(decoded, false));
+			for (OpObject obj : o.getCreated()) {
+				assertEquals(formatter.objToJson(obj), formatter.objToJson(OpBinaryCodec.decodeObject(OpBinaryCodec.encode(obj))));
+			}
+		}
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+		OpBlock decoded = OpBinaryCodec.decodeBlock(OpBinaryCodec.encode(opBlock));
+		assertEquals(formatter.toJson(opBlock), formatter.toJson(decoded));
+	}
+
+	@Test
+	public void testParsedStringsAreInterned() {
+		OpObject o1 = formatter.parseObject("{\"id\":[\"1\"],\"tags\":{\"amenity\":\"cafe\"}}");
+		OpObject o2 = formatter.parseObject("{\"id\":[\"2\"],\"tags\":{\"amenity\":\"cafe\"}}");
+		Map<String, Object> t1 = o1.getStringObjMap("tags");
+		Map<String, Object> t2 = o2.getStringObjMap("tags");
+		assertTrue(t1.keySet().iterator().next() == t2.keySet().iterator().next());
+		assertTrue(t1.get("amenity") == t2.get("amenity"));
+
+		OpObject copy = new OpObject(o1);
+		assertTrue(copy.getStringObjMap("tags").get("amenity") == t2.get("amenity"));
+	}
+
+	@Test
+	public void testLazyParsedObject() {
+		String json = "{\"eval\":{\"a\":1},\"id\":[\"1\"],\"lat\":1.5,\"size\":2,\"tags\":{\"amenity\":\"cafe\"},\"v\":null}";
+		OpObject parsed = formatter.parseObject(json);
+		OpObject lazy = OpObject.parseLazy(json);
+		OpPrivateLazyFields fields = (OpPrivateLazyFields) lazy.fields;
+		assertEquals(parsed.getId(), lazy.getId());
+		assertEquals(parsed.getFieldByExpr("tags.amenity"), lazy.getFieldByExpr("tags.amenity"));
+		assertNull(lazy.getStringValue("eval"));
+		assertFalse(fields.isMaterialized());
+
+		assertEquals(parsed, lazy);
+		assertTrue(fields.isMaterialized());
+		assertEquals(formatter.objToJson(parsed), formatter.objToJson(lazy));
+		assertEquals(parsed.getField(null, "size"), lazy.getField(null, "size"));
+	}
+
+	@Test
+	public void testWriteFullObjectFromStoredJson() throws IOException {
+		for (String json : new String[] { "{\"id\": [\"1\"], \"tags\": {\"amenity\": \"cafe\"}}", "{}" }) {
+			OpObject lazy = OpObject.parseLazy(json);
+			lazy.setParentOp("osm.testplace", "00ff");
+			StringBuilder out = new StringBuilder();
+			formatter.writeFullObject(lazy, out);
+			assertNotNull(lazy.getStoredJson());
+
+			OpObject parsed = formatter.parseObject(json);
+			parsed.setParentOp("osm.testplace", "00ff");
+			assertEquals(formatter.fromJsonToTreeMap(formatter.fullObjectToJson(parsed)),
+					formatter.fromJsonToTreeMap(out.toString()));
+		}
+	}
+
+	@Test
+	public void testRuntimeIndexIsUpdatedIncrementally() {
+		OpIndexColumn col = new OpIndexColumn("osm.place", "osmid", -1,
+				new ColumnDef("obj_osm_place", "osmid", "bigint", IndexType.INDEXED));
+		col.setFieldsExpression(Collections.singletonList("osmid"));
+		OpPrivateObjectInstancesById oi = new OpPrivateObjectInstancesById("osm.place", null);
+		oi.add(Arrays.asList("1"), formatter.parseObject("{\"id\":[\"1\"],\"osmid\":10}"));
+		oi.add(Arrays.asList("2"), formatter.parseObject("{\"id\":[\"2\"],\"osmid\":20}"));
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		assertEquals(1, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { 10 }).count());
+
+		oi.add(Arrays.asList("1"), formatter.parseObject("{\"id\":[\"1\"],\"osmid\":20}"));
+		assertEquals(0, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { 10 }).count());
+		assertEquals(2, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "20" }).count());
+
+		oi.add(Arrays.asList("2"), null);
+		assertEquals(1, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { 20 }).count());
+	}
+
+	@Test
+	public void testRuntimeIndexSearchTypes() {
+		OpIndexColumn num = new OpIndexColumn("osm.place", "version", -1,
+				new ColumnDef("obj_osm_place", "version", "bigint", IndexType.INDEXED));
+		num.setFieldsExpression(Collections.singletonList("version"));
+		OpIndexColumn str = new OpIndexColumn("osm.place", "name", -1,
+				new ColumnDef("obj_osm_place", "name", "text", IndexType.INDEXED));
+		str.setFieldsExpression(Collections.singletonList("name"));
+		OpPrivateObjectInstancesById oi = new OpPrivateObjectInstancesById("osm.place", null);
+		for (int i = 1; i <= 12; i++) {
+			oi.add(Arrays.asList("" + i), formatter.parseObject("{\"id\":[\"" + i + "\"],\"version\":" + i + ",\"name\":\"cafe " + i + "\"}"));
+		}
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		r.searchType = SearchType.RANGE;
+		assertEquals(3, num.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "2", "4" }).count());
+		assertEquals(3, num.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "10", "" }).count());
+		r.searchType = SearchType.IN;
+		assertEquals(2, num.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "2", "7", "20" }).count());
+		r.searchType = SearchType.PREFIX;
+		assertEquals(4, str.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "cafe 1" }).count());
+		r.searchType = SearchType.RANGE;
+		assertEquals(2, str.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "cafe 2", "cafe 3" }).count());
+	}
+
+	@Test
+	public void testTextIndexSearchInCodePointOrder() {
+		OpIndexColumn str = new OpIndexColumn("osm.place", "name", -1,
+				new ColumnDef("obj_osm_place", "name", "text", IndexType.INDEXED));
+		str.setFieldsExpression(Collections.singletonList("name"));
+		OpPrivateObjectInstancesById oi = new OpPrivateObjectInstancesById("osm.place", null);
+		String[] names = { "Zoo", "apple", "\uFF21", "\uD83D\uDE00" };
+		for (int i = 0; i < names.length; i++) {
+			oi.add(Arrays.asList("" + i), formatter.parseObject("{\"id\":[\"" + i + "\"],\"name\":\"" + names[i] + "\"}"));
+		}
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		r.searchType = SearchType.RANGE;
+		// upper case goes before lower case as in COLLATE "C"
+		assertEquals(1, str.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "Z", "a" }).count());
+		// supplementary characters go after BMP characters (String.compareTo compares surrogates)
+		assertEquals(2, str.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "\uE000", "" }).count());
+	}
+
+	@Test
+	public void testTextIndexDbConditionIsCollationIndependent() {
+		OpIndexColumn str = new OpIndexColumn("osm.place", "name", -1,
+				new ColumnDef("obj_osm_place", "name", "text", IndexType.INDEXED));
+		str.setFieldsExpression(Collections.singletonList("name"));
+		OpIndexColumn num = new OpIndexColumn("osm.place", "version", -1,
+				new ColumnDef("obj_osm_place", "version", "bigint", IndexType.INDEXED));
+		num.setFieldsExpression(Collections.singletonList("version"));
+		List<String> conditions = new ArrayList<>();
+		BlockDbAccessInterface dbAccess = Mockito.mock(BlockDbAccessInterface.class);
+		Mockito.when(dbAccess.streamObjects(Mockito.eq("osm.place"), Mockito.anyInt(), Mockito.anyBoolean(), Mockito.any()))
+				.thenAnswer(i -> {
+					Object cond = i.getArguments()[3];
+					conditions.add(String.valueOf(cond instanceof Object[] ? ((Object[]) cond)[0] : cond));
+					return Stream.empty();
+				});
+		OpPrivateObjectInstancesById oi = new OpPrivateObjectInstancesById("osm.place", dbAccess);
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		r.searchType = SearchType.RANGE;
+		str.streamObjects(oi, 1000, "osm.place", -1, r, new Object[] { "a", "b" }).count();
+		num.streamObjects(oi, 1000, "osm.place", -1, r, new Object[] { "1", "2" }).count();
+		r.searchType = SearchType.PREFIX;
+		str.streamObjects(oi, 1000, "osm.place", -1, r, new Object[] { "a" }).count();
+		assertEquals(3, conditions.size());
+		assertTrue(conditions.get(0).contains("COLLATE \"C\""));
+		assertFalse(conditions.get(1).contains("COLLATE"));
+		assertTrue(conditions.get(2).contains("COLLATE \"C\""));
+	}
+
+	@Test
+	public void testSpatialIndexBBoxSearch() {
+		OpIndexColumn col = new OpIndexColumn("osm.place", "tile", -1,
+				new ColumnDef("obj_osm_place", "tile", "bigint", IndexType.SPATIAL));
+		col.setFieldsExpression(Arrays.asList("lat", "lon"));
+		OpPrivateObjectInstancesById oi = new OpPrivateObjectInstancesById("osm.place", null);
+		double[][] points = { { 52.37, 4.89 }, { 52.38, 4.90 }, { 48.85, 2.35 }, { -33.86, 151.2 }, { 10, 179.9 } };
+		for (int i = 0; i < points.length; i++) {
+			oi.add(Arrays.asList("" + i), formatter.parseObject(
+					"{\"id\":[\"" + i + "\"],\"lat\":" + points[i][0] + ",\"lon\":" + points[i][1] + "}"));
+		}
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		r.searchType = SearchType.BBOX;
+		assertEquals(2, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "4.8", "52.3", "5", "52.4" }).count());
+		assertEquals(3, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "2", "48", "5", "53" }).count());
+		assertEquals(0, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "4.895", "52.3", "5", "52.375" }).count());
+		// crosses antimeridian
+		assertEquals(1, col.streamObjects(oi, 1, "osm.place", -1, r, new Object[] { "170", "0", "-170", "20" }).count());
+
+		List<long[]> ranges = OpIndexColumn.getBBoxTileRanges(new Object[] { "4.8", "52.3", "5", "52.4" });
+		assertTrue(ranges.size() > 0 && ranges.size() <= 64);
+		long code = OpIndexColumn.getTileCode(52.37, 4.89);
+		boolean covered = false;
+		for (long[] rng : ranges) {
+			covered |= code >= rng[0] && code <= rng[1];
+		}
+		assertTrue(covered);
+	}
+
+	@Test
+	public void testSpatialIndexBBoxSearchInDbSuperblock() {
+		OpIndexColumn col = new OpIndexColumn("osm.place", "tile", -1,
+				new ColumnDef("obj_osm_place", "tile", "bigint", IndexType.SPATIAL));
+		col.setFieldsExpression(Arrays.asList("lat", "lon"));
+		double[][] points = { { 52.37, 4.89 }, { 52.38, 4.90 }, { 52.39, 4.99 } };
+		Map<CompoundKey, OpObject> objects = new LinkedHashMap<>();
+		for (int i = 0; i < points.length; i++) {
+			objects.put(new CompoundKey(0, Arrays.asList("" + i)), formatter.parseObject(
+					"{\"id\":[\"" + i + "\"],\"lat\":" + points[i][0] + ",\"lon\":" + points[i][1] + "}"));
+		}
+		BlockDbAccessInterface dbAccess = Mockito.mock(BlockDbAccessInterface.class);
+		// db returns all objects of covering tiles, they are larger than bbox
+		Mockito.when(dbAccess.streamObjects(Mockito.eq("osm.place"), Mockito.anyInt(), Mockito.anyBoolean(), Mockito.any()))
+				.thenAnswer(i -> objects.entrySet().stream());
+		// as db access objects without content have no fields
+		Mockito.when(dbAccess.getObjectById(Mockito.eq("osm.place"), Mockito.any(), Mockito.eq(false)))
+				.thenAnswer(i -> objects.containsKey(i.getArgument(1)) ? new OpObject(false) : null);
+		Mockito.when(dbAccess.getObjectById(Mockito.eq("osm.place"), Mockito.any(), Mockito.eq(true)))
+				.thenAnswer(i -> objects.get(i.getArgument(1)));
+		OpPrivateObjectInstancesById oi = new OpPrivateObjectInstancesById("osm.place", dbAccess);
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		r.searchType = SearchType.BBOX;
+		assertEquals(2, col.streamObjects(oi, 1000, "osm.place", -1, r, new Object[] { "4.8", "52.3", "4.95", "52.4" }).count());
+		r.requestOnlyKeys = true;
+		assertEquals(2, col.streamObjects(oi, 1000, "osm.place", -1, r, new Object[] { "4.8", "52.3", "4.95", "52.4" }).count());
+	}
+
+	@Test
+	public void testOpJsonSizeMatchesJsonLength() {
+		assertFalse(blc.getQueueOperations().isEmpty());
+		for (OpOperation o : blc.getQueueOperations()) {
+			assertEquals(formatter.opToJson(o).length(), formatter.getOpJsonSize(o));
+			// cached value for immutable operation
+			assertEquals(formatter.opToJson(o).length(), formatter.getOpJsonSize(o));
+		}
+	}
+
+	@Test
+	public void testAddOperationsWithDuplicatedOperationExpectError() {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		OpBlockChain opBlockChain = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		assertTrue(opBlockChain.addOperations(ops, null));
+
+		exceptionRule.expect(BlockchainValidationException.class);
+		opBlockChain.addOperations(Collections.singletonList(ops.get(ops.size() - 1)), null);
+	}
+
+	@Test
+	public void testAddOperationsWithSameOperationTwiceInListExpectError() {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		OpOperation last = ops.remove(ops.size() - 1);
+		OpBlockChain opBlockChain = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		assertTrue(opBlockChain.addOperations(ops, null));
+
+		// both copies are validated against the same state, so second one has to be added sequentially
+		exceptionRule.expect(BlockchainValidationException.class);
+		try {
+			opBlockChain.addOperations(Arrays.asList(last, last), null);
+		} finally {
+			assertEquals(ops.size() + 1, opBlockChain.getQueueOperations().size());
+		}
+	}
+
 	@Test
 	@Parameters(method = "parametersWithBlockchainAndBlock")
 	public void testRebaseOperations(OpBlockChain blcDB) {
@@ -245,6 +543,25 @@ public class OpBlockchainTest {
 		assertEquals(blcDB.getParent(), opBlockChain1);
 	}
 
+	@Test
+	@Parameters(method = "parametersWithBlockchainAndBlock")
+	public void testCreateRebasedCopy(OpBlockChain blcDB) {
+		OpBlockChain opBlockChain1 = new OpBlockChain(blcDB.getParent(), blcDB.getRules());
+
+		OpBlock opBlock = blcDB.getFullBlockByRawHash(blcDB.getBlockHeadersById(0).getRawHash());
+
+		assertNotNull(opBlockChain1.replicateBlock(opBlock));
+		OpBlockChain parent = blcDB.getParent();
+		OpBlockChain rebased = blcDB.createRebasedCopy(opBlockChain1);
+		assertNotNull(rebased);
+
+		assertEquals(opBlockChain1, rebased.getParent());
+		assertTrue(rebased.getQueueOperations().isEmpty());
+		// original version is not changed
+		assertEquals(parent, blcDB.getParent());
+		assertNotNull(blcDB.getBlockHeadersById(0));
+	}
+
 	@Test
 	public void testRebaseOperationsWithNotEmptyOperationQueue() throws FailedVerificationException {
 		OpOperation opOperation = blc.getQueueOperations().removeFirst();
@@ -277,6 +594,54 @@ public class OpBlockchainTest {
 		blc.changeToEqualParent(newOp);
 	}
 
+	@Test
+	public void testObjectsIndexOfChildDoesntChangeParent() throws FailedVerificationException {
+		List<OpOperation> ops = new ArrayList<>(blc.getQueueOperations());
+		int idx = -1;
+		for (int i = 1; i < ops.size(); i++) {
+			if (!ops.get(i).getCreated().isEmpty() && !ops.get(i).getCreated().get(0).getId().isEmpty()) {
+				idx = i;
+			}
+		}
+		assertTrue(idx > 0);
+		OpBlockChain parent = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		assertTrue(parent.addOperations(ops.subList(0, idx), null));
+		parent.createBlock(serverName, serverKeyPair);
+
+		OpBlockChain child = new OpBlockChain(parent, blc.getRules());
+		OpOperation op = ops.get(idx);
+		assertTrue(child.addOperation(op));
+		List<String> id = op.getCreated().get(0).getId();
+		assertNotNull(child.getObjectByName(op.getType(), id));
+		// maps of parent index are shared with child index until child changes them
+		assertNull(parent.getObjectByName(op.getType(), id));
+		for (OpOperation o : ops.subList(0, idx)) {
+			for (OpObject c : o.getCreated()) {
+				if (!c.getId().isEmpty()) {
+					assertEquals(parent.getObjectByName(o.getType(), c.getId()), child.getObjectByName(o.getType(), c.getId()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCreateCopyWithEqualParent() throws FailedVerificationException {
+		int queueSize = blc.getQueueOperations().size();
+		OpBlockChain copy = blc.createCopyWithEqualParent(blc.getParent());
+		assertNotNull(copy);
+		assertNotSame(blc, copy);
+		assertEquals(queueSize, copy.getQueueOperations().size());
+		assertEquals(OpBlockChain.UNLOCKED, copy.getStatus());
+
+		// unlocked copy doesn't share queue with original chain
+		copy.createBlock(serverName, serverKeyPair);
+		assertEquals(queueSize, blc.getQueueOperations().size());
+		assertEquals(0, blc.getSuperblockSize());
+
+		OpBlockChain notEqual = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		assertNull(notEqual.createCopyWithEqualParent(copy));
+	}
+
 	@Test
 	public void testChangeToNotEqualParent() throws FailedVerificationException {
 		blc.createBlock(serverName, serverKeyPair);
@@ -1,14 +1,21 @@
 package org.openplacereviews.opendb.service;
 
+import com.google.common.cache.Cache;
 import org.junit.*;
 import org.mockito.InjectMocks;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.openplacereviews.opendb.OpenDBServer;
+import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.psql.PostgreSQLServer;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
@@ -20,6 +27,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import java.sql.Connection;
 import java.util.*;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -208,6 +216,260 @@ public class DBConsensusManagerTest {
 		assertEquals(40, amount[0]);
 	}
 
+	@Test
+	public void testSaveSuperblockWithSpecialCharacters() throws FailedVerificationException {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+
+		// osm.place is defined by history-test operations
+		OpOperation op = new OpOperation();
+		op.setType("osm.place");
+		OpObject obj = new OpObject();
+		obj.setId("special\tid\\N");
+		obj.putStringValue("tab", "a\tb");
+		obj.putStringValue("newline", "line1\nline2\r\nline3");
+		obj.putStringValue("backslash", "c:\\path\\N \\t \\\\x00");
+		obj.putStringValue("quotes", "\"quoted\" 'single' {\"json\": [1]}");
+		obj.putStringValue("unicode", "ünïcødé ✓ 地点 \uD83D\uDE00");
+		op.addCreated(obj);
+		generateHashAndSignForOperation(op, opBlockChain, true, serverKeyPair);
+		op.makeImmutable();
+		opBlockChain.addOperation(op);
+		dbConsensusManager.insertOperation(op);
+		OpBlock block = opBlockChain.createBlock(serverName, serverKeyPair);
+		dbConsensusManager.insertBlock(block);
+		dbConsensusManager.saveMainBlockchain(opBlockChain);
+
+		// object is read from db table written by COPY
+		BlockDbAccessInterface dbAccess = dbConsensusManager.createDbAccess(opBlockChain.getSuperBlockHash(),
+				opBlockChain.getSuperblockHeaders());
+		OpObject loaded = dbAccess.getObjectById("osm.place",
+				new CompoundKey(0, Collections.singletonList(obj.getId().get(0))), true);
+		assertNotNull(loaded);
+		assertEquals(obj.getId(), loaded.getId());
+		for (String field : Arrays.asList("tab", "newline", "backslash", "quotes", "unicode")) {
+			assertEquals(field, obj.getStringValue(field), loaded.getStringValue(field));
+		}
+
+		// operations of superblock are updated in bulk
+		final long[] notUpdated = new long[1];
+		jdbcTemplate.query("SELECT COUNT(*) FROM " + OPERATIONS_TABLE + " WHERE superblock IS NULL", rs -> {
+			notUpdated[0] = rs.getLong(1);
+		});
+		assertEquals(0, notUpdated[0]);
+		final int[] sblock = new int[2];
+		jdbcTemplate.query("SELECT sblockid, sorder FROM " + OPERATIONS_TABLE + " WHERE hash = ?", rs -> {
+			sblock[0] = rs.getInt(1);
+			sblock[1] = rs.getInt(2);
+		}, (Object) SecUtils.getHashBytes(op.getRawHash()));
+		assertEquals(block.getBlockId(), sblock[0]);
+		assertEquals(block.getOperations().indexOf(op), sblock[1]);
+	}
+
+	@Test
+	public void testSuperblockKeysFilter() throws FailedVerificationException {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+		OpBlockChain saved = dbConsensusManager.saveMainBlockchain(opBlockChain);
+		long savedFilters = getAmountFromDbByTable(SUPERBLOCK_FILTERS_TABLE);
+		assertTrue(savedFilters > 0);
+
+		// existing object of saved superblock
+		List<String> typeAndKey = getSavedTypeAndKey(opBlockChain);
+		String type = typeAndKey.get(0);
+		CompoundKey existing = new CompoundKey(0, Collections.singletonList(typeAndKey.get(1)));
+
+		// filters are loaded from db
+		checkKeysFilter(dbConsensusManager.createDbAccess(opBlockChain.getSuperBlockHash(),
+				opBlockChain.getSuperblockHeaders()), type, existing);
+		assertEquals(savedFilters, getAmountFromDbByTable(SUPERBLOCK_FILTERS_TABLE));
+
+		// missing filters are neither built nor written on read
+		jdbcTemplate.update("DELETE FROM " + SUPERBLOCK_FILTERS_TABLE);
+		BlockDbAccessInterface noFilters = dbConsensusManager.createDbAccess(opBlockChain.getSuperBlockHash(),
+				opBlockChain.getSuperblockHeaders());
+		assertNotNull(noFilters.getObjectById(type, existing, true));
+		assertNull(noFilters.getObjectById(type, new CompoundKey(0, Collections.singletonList("missing-key")), true));
+		assertEquals(0, getAmountFromDbByTable(SUPERBLOCK_FILTERS_TABLE));
+
+		// missing filters are built and saved when blocks are loaded on startup
+		ReflectionTestUtils.invokeMethod(dbConsensusManager, "loadBlocks", new LinkedList<OpBlock>(), saved,
+				opBlockChain.getRules());
+		assertEquals(savedFilters, getAmountFromDbByTable(SUPERBLOCK_FILTERS_TABLE));
+		checkKeysFilter(dbConsensusManager.createDbAccess(opBlockChain.getSuperBlockHash(),
+				opBlockChain.getSuperblockHeaders()), type, existing);
+		assertEquals(savedFilters, getAmountFromDbByTable(SUPERBLOCK_FILTERS_TABLE));
+	}
+
+	@Test
+	public void testSuperblockStreamIsClosedOnError() throws Exception {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+		dbConsensusManager.saveMainBlockchain(opBlockChain);
+		String type = getSavedTypeAndKey(opBlockChain).get(0);
+		BlockDbAccessInterface dbAccess = dbConsensusManager.createDbAccess(opBlockChain.getSuperBlockHash(),
+				opBlockChain.getSuperblockHeaders());
+
+		// stream is not closed by caller, cursor is released when consumer fails
+		Stream<Map.Entry<CompoundKey, OpObject>> stream = dbAccess.streamObjects(type, -1, false);
+		try {
+			stream.forEach(e -> {
+				throw new IllegalStateException("stop");
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("stop", e.getMessage());
+		}
+		// test data source shares single connection, so opened cursor would leave transaction
+		assertTrue(jdbcTemplate.getDataSource().getConnection().getAutoCommit());
+	}
+
+	@Test
+	public void testSuperblockObjectsCacheEviction() throws FailedVerificationException {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		settingsManager.OPENDB_SUPERBLOCK_OBJECTS_CACHE_SIZE.set(1);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+		dbConsensusManager.saveMainBlockchain(opBlockChain);
+		String superblock = opBlockChain.getSuperBlockHash();
+		List<String> typeAndKey = getSavedTypeAndKey(opBlockChain);
+		String type = typeAndKey.get(0);
+		CompoundKey existing = new CompoundKey(0, Collections.singletonList(typeAndKey.get(1)));
+
+		BlockDbAccessInterface dbAccess = dbConsensusManager.createDbAccess(superblock,
+				opBlockChain.getSuperblockHeaders());
+		OpObject obj = dbAccess.getObjectById(type, existing, true);
+		assertNotNull(obj);
+		assertSame(obj, dbAccess.getObjectById(type, existing, true));
+
+		// 1 MB cache is filled with objects weighted 100 KB
+		PerformanceMetric evict = PerformanceMetrics.i().getMetric("db.superblock.cache.evict");
+		int evicted = evict.getInvocations(0);
+		String content = new String(new char[100 * 1024]);
+		int count = 30;
+		for (int i = 0; i < count; i++) {
+			ReflectionTestUtils.invokeMethod(dbConsensusManager, "cacheObject", superblock, type,
+					new CompoundKey(0, Collections.singletonList("cache-key-" + i)), new OpObject(), content);
+		}
+		Cache<?, ?> cache = (Cache<?, ?>) ReflectionTestUtils.getField(dbConsensusManager, "objectsCache");
+		assertNotNull(cache);
+		int evictedNow = evict.getInvocations(0) - evicted;
+		assertTrue(evictedNow > 0);
+		assertTrue(cache.size() <= 1024 / 100 + 1);
+		assertEquals(count + 1, cache.size() + evictedNow);
+		// last put object is not evicted
+		assertNotNull(getCachedObject(superblock, type, "cache-key-" + (count - 1)));
+
+		// objects missing in cache are loaded from db again
+		cache.invalidateAll();
+		OpObject reloaded = dbAccess.getObjectById(type, existing, true);
+		assertNotNull(reloaded);
+		assertNotSame(obj, reloaded);
+		assertEquals(obj.getParentHash(), reloaded.getParentHash());
+	}
+
+	@Test
+	public void testMarkAsStaleInvalidatesCachedObjects() throws FailedVerificationException {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+		dbConsensusManager.saveMainBlockchain(opBlockChain);
+		String superblock = opBlockChain.getSuperBlockHash();
+		List<String> typeAndKey = getSavedTypeAndKey(opBlockChain);
+		String type = typeAndKey.get(0);
+		CompoundKey existing = new CompoundKey(0, Collections.singletonList(typeAndKey.get(1)));
+
+		DBConsensusManager.SuperblockDbAccess dbAccess = (DBConsensusManager.SuperblockDbAccess) dbConsensusManager
+				.createDbAccess(superblock, opBlockChain.getSuperblockHeaders());
+		OpObject obj = dbAccess.getObjectById(type, existing, true);
+		assertNotNull(obj);
+		assertSame(obj, getCachedObject(superblock, type, typeAndKey.get(1)));
+		// objects of other superblocks are kept
+		OpObject other = new OpObject();
+		ReflectionTestUtils.invokeMethod(dbConsensusManager, "cacheObject", "other", type, existing, other, "{}");
+
+		dbAccess.markAsStale(true);
+		assertNull(getCachedObject(superblock, type, typeAndKey.get(1)));
+		assertSame(other, getCachedObject("other", type, typeAndKey.get(1)));
+
+		dbAccess.markAsStale(false);
+		OpObject reloaded = dbAccess.getObjectById(type, existing, true);
+		assertNotNull(reloaded);
+		assertNotSame(obj, reloaded);
+		assertEquals(obj.getParentHash(), reloaded.getParentHash());
+	}
+
+	@Test
+	public void testDisabledSuperblockObjectsCache() throws FailedVerificationException {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		settingsManager.OPENDB_SUPERBLOCK_OBJECTS_CACHE_SIZE.set(0);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+		dbConsensusManager.saveMainBlockchain(opBlockChain);
+		List<String> typeAndKey = getSavedTypeAndKey(opBlockChain);
+		String type = typeAndKey.get(0);
+		CompoundKey existing = new CompoundKey(0, Collections.singletonList(typeAndKey.get(1)));
+
+		PerformanceMetric hit = PerformanceMetrics.i().getMetric("db.superblock.cache.hit");
+		PerformanceMetric miss = PerformanceMetrics.i().getMetric("db.superblock.cache.miss");
+		int hits = hit.getInvocations(0);
+		int misses = miss.getInvocations(0);
+
+		BlockDbAccessInterface dbAccess = dbConsensusManager.createDbAccess(opBlockChain.getSuperBlockHash(),
+				opBlockChain.getSuperblockHeaders());
+		OpObject obj = dbAccess.getObjectById(type, existing, true);
+		assertNotNull(obj);
+		assertNotSame(obj, dbAccess.getObjectById(type, existing, true));
+		// cache is neither created nor consulted
+		assertNull(ReflectionTestUtils.getField(dbConsensusManager, "objectsCache"));
+		assertEquals(hits, hit.getInvocations(0));
+		assertEquals(misses, miss.getInvocations(0));
+	}
+
+	private OpObject getCachedObject(String superblock, String type, String key) {
+		return ReflectionTestUtils.invokeMethod(dbConsensusManager, "getCachedObject", superblock, type,
+				new CompoundKey(0, Collections.singletonList(key)));
+	}
+
+	// type and key of object stored in saved superblock
+	private List<String> getSavedTypeAndKey(OpBlockChain opBlockChain) {
+		byte[] sbhash = SecUtils.getHashBytes(opBlockChain.getSuperBlockHash());
+		List<String> typeAndKey = new ArrayList<>();
+		for (String table : dbSchemaManager.getObjectTables()) {
+			if (typeAndKey.isEmpty()) {
+				jdbcTemplate.query("SELECT type, p1 FROM " + table + " WHERE superblock = ? and p2 is null and content is not null LIMIT 1", rs -> {
+					typeAndKey.add(rs.getString(1));
+					typeAndKey.add(rs.getString(2));
+				}, sbhash);
+			}
+		}
+		assertFalse(typeAndKey.isEmpty());
+		return typeAndKey;
+	}
+
+	private void checkKeysFilter(BlockDbAccessInterface dbAccess, String type, CompoundKey existing) {
+		PerformanceMetric skip = PerformanceMetrics.i().getMetric("db.superblock.filter.skip");
+		PerformanceMetric falsePositive = PerformanceMetrics.i().getMetric("db.superblock.filter.falsepositive");
+		int skipped = skip.getInvocations(0);
+		int falsePositives = falsePositive.getInvocations(0);
+
+		OpObject obj = dbAccess.getObjectById(type, existing, true);
+		assertNotNull(obj);
+		assertEquals(skipped, skip.getInvocations(0));
+		assertEquals(falsePositives, falsePositive.getInvocations(0));
+
+		int missing = 100;
+		List<CompoundKey> keys = new ArrayList<>();
+		keys.add(existing);
+		for (int i = 0; i < missing; i++) {
+			keys.add(new CompoundKey(0, Collections.singletonList("missing-key-" + i)));
+		}
+		Map<CompoundKey, OpObject> res = dbAccess.getObjectsByIds(type, keys);
+		assertEquals(1, res.size());
+		assertTrue(res.containsKey(existing));
+		// every missing key is either skipped by filter or counted as false positive
+		int skippedNow = skip.getInvocations(0) - skipped;
+		assertEquals(missing, skippedNow + falsePositive.getInvocations(0) - falsePositives);
+		assertTrue(skippedNow > missing / 2);
+	}
+
 	@Test
 	public void testCompact() throws FailedVerificationException {
 		int i = 0;
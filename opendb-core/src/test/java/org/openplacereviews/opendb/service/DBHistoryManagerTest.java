@@ -27,6 +27,8 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.*;
 import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
@@ -108,6 +110,105 @@ public class DBHistoryManagerTest {
 
 	}
 
+	@Test
+	public void pagingHistoryForObjectFromDB() throws SQLException, FailedVerificationException {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		generateOperationsByList(formatter, opBlockChain, BLOCKCHAIN_LIST);
+
+		OpBlock opBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+
+		DataSourceTransactionManager txManager = new DataSourceTransactionManager();
+		txManager.setDataSource(jdbcTemplate.getDataSource());
+		TransactionTemplate txTemplate = new TransactionTemplate();
+		txTemplate.setTransactionManager(txManager);
+		settingsManager.OPENDB_STORE_HISTORY.set(true);
+		ReflectionTestUtils.setField(historyManager, "txTemplate", txTemplate);
+
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+
+		HistoryManager.HistoryObjectRequest full = new HistoryManager.HistoryObjectRequest(
+				HistoryManager.HISTORY_BY_OBJECT, Arrays.asList("12345662"), 20, HistoryManager.DESC_SORT);
+		historyManager.retrieveHistory(full);
+		assertEquals(2, full.historySearchResult.size());
+		assertNull(full.nextContinuation);
+
+		List<HistoryManager.HistoryEdit> paged = new ArrayList<>();
+		String continuation = null;
+		do {
+			HistoryManager.HistoryObjectRequest page = new HistoryManager.HistoryObjectRequest(
+					HistoryManager.HISTORY_BY_OBJECT, Arrays.asList("12345662"), 1, HistoryManager.DESC_SORT);
+			page.continuation = continuation;
+			historyManager.retrieveHistory(page);
+			assertTrue(page.historySearchResult.size() <= 1);
+			paged.addAll(page.historySearchResult);
+			continuation = page.nextContinuation;
+		} while (continuation != null);
+
+		assertEquals(full.historySearchResult.size(), paged.size());
+		for (int i = 0; i < paged.size(); i++) {
+			assertEquals(full.historySearchResult.get(i).getOpHash(), paged.get(i).getOpHash());
+			assertEquals(full.historySearchResult.get(i).getObjEdit(), paged.get(i).getObjEdit());
+		}
+	}
+
+	@Test
+	public void pagingHistoryOfAllObjectsFromDB() throws SQLException, FailedVerificationException {
+		saveBlockchainHistory();
+
+		HistoryManager.HistoryObjectRequest full = new HistoryManager.HistoryObjectRequest(
+				HistoryManager.HISTORY_ALL, null, 1000, HistoryManager.DESC_SORT);
+		historyManager.retrieveHistory(full);
+		assertTrue(full.historySearchResult.size() > 3);
+		assertNull(full.nextContinuation);
+
+		// pages after the first one reconstruct states of all their objects by batch
+		List<HistoryManager.HistoryEdit> paged = new ArrayList<>();
+		String continuation = null;
+		do {
+			HistoryManager.HistoryObjectRequest page = new HistoryManager.HistoryObjectRequest(
+					HistoryManager.HISTORY_ALL, null, 3, HistoryManager.DESC_SORT);
+			page.continuation = continuation;
+			historyManager.retrieveHistory(page);
+			assertTrue(page.historySearchResult.size() <= 3);
+			paged.addAll(page.historySearchResult);
+			continuation = page.nextContinuation;
+		} while (continuation != null);
+
+		assertEquals(full.historySearchResult.size(), paged.size());
+		for (int i = 0; i < paged.size(); i++) {
+			assertEquals(full.historySearchResult.get(i).getOpHash(), paged.get(i).getOpHash());
+			assertEquals(full.historySearchResult.get(i).getObjEdit(), paged.get(i).getObjEdit());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void historyWithZeroLimitIsRejected() throws SQLException, FailedVerificationException {
+		saveBlockchainHistory();
+
+		historyManager.retrieveHistory(new HistoryManager.HistoryObjectRequest(
+				HistoryManager.HISTORY_BY_OBJECT, Arrays.asList("12345662"), 0, HistoryManager.DESC_SORT));
+	}
+
+	private void saveBlockchainHistory() throws SQLException, FailedVerificationException {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		generateOperationsByList(formatter, opBlockChain, BLOCKCHAIN_LIST);
+
+		OpBlock opBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+
+		DataSourceTransactionManager txManager = new DataSourceTransactionManager();
+		txManager.setDataSource(jdbcTemplate.getDataSource());
+		TransactionTemplate txTemplate = new TransactionTemplate();
+		txTemplate.setTransactionManager(txManager);
+		settingsManager.OPENDB_STORE_HISTORY.set(true);
+		ReflectionTestUtils.setField(historyManager, "txTemplate", txTemplate);
+
+		historyManager.saveHistoryForBlockOperations(opBlock, null);
+	}
+
 	private void generateDBConnection() throws SQLException {
 		MockitoAnnotations.initMocks(this);
 
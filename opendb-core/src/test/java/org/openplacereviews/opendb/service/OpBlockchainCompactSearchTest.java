@@ -7,11 +7,13 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.openplacereviews.opendb.OpenDBServer;
+import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.ops.OpIndexColumn;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
 import org.openplacereviews.opendb.psql.PostgreSQLServer;
+import org.openplacereviews.opendb.service.bots.UpdateIndexesBot;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -23,6 +25,8 @@ import org.springframework.transaction.support.TransactionTemplate;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
@@ -237,6 +241,77 @@ public class OpBlockchainCompactSearchTest {
 		assertEquals(1, objectsSearchRequest.result.size());
 	}
 
+	@Test
+	public void testBackfillIndexFromCheckpoint() throws FailedVerificationException {
+		settingsManager.OPENDB_SUPERBLOCK_SIZE.set(6);
+		List<OpOperation> opOperationList = getOperations(formatter, blocksManager, BLOCKCHAIN_LIST);
+		for (int i = 0; i < opOperationList.size(); i++) {
+			assertTrue(blocksManager.addOperation(opOperationList.get(i)));
+			if (i > 2) {
+				assertNotNull(blocksManager.createBlock());
+			}
+		}
+		Map<String, String> expected = getIndexValues();
+		assertFalse(expected.isEmpty());
+		// superblock of some filled row is marked as processed
+		String checkpointed = expected.keySet().iterator().next().split(" ")[0];
+		String checkpointedHash = null;
+		OpBlockChain blc = blocksManager.getBlockchain();
+		while (!blc.isNullBlock()) {
+			if (blc.isDbAccessed() && SecUtils.hexify(SecUtils.getHashBytes(blc.getSuperBlockHash())).equals(checkpointed)) {
+				checkpointedHash = blc.getSuperBlockHash();
+			}
+			blc = blc.getParent();
+		}
+		assertNotNull(checkpointedHash);
+
+		jdbcTemplate.update("UPDATE " + table + " SET osmid = NULL");
+		Map<String, Object> checkpoint = new TreeMap<>();
+		checkpoint.put(table + ".osmid", Collections.singletonList(checkpointedHash));
+		settingsManager.OPENDB_INDEX_BACKFILL_CHECKPOINT.set(checkpoint);
+		backfillIndex("osmid");
+
+		// superblock from checkpoint is not processed again, others are filled by set based update
+		Map<String, String> actual = getIndexValues();
+		for (Map.Entry<String, String> e : expected.entrySet()) {
+			if (e.getKey().startsWith(checkpointed)) {
+				assertFalse(actual.containsKey(e.getKey()));
+			} else {
+				assertEquals(e.getValue(), actual.get(e.getKey()));
+			}
+		}
+		assertFalse(settingsManager.OPENDB_INDEX_BACKFILL_CHECKPOINT.get().containsKey(table + ".osmid"));
+
+		// checkpoint is removed after finish, so next backfill processes all superblocks
+		backfillIndex("osmid");
+		assertEquals(expected, getIndexValues());
+	}
+
+	private void backfillIndex(String colName) {
+		UpdateIndexesBot bot = new UpdateIndexesBot("update-indexes");
+		ReflectionTestUtils.setField(bot, "jdbcTemplate", jdbcTemplate);
+		ReflectionTestUtils.setField(bot, "settingsManager", settingsManager);
+		ReflectionTestUtils.setField(bot, "dbSchemaManager", dbSchemaManager);
+		ReflectionTestUtils.setField(bot, "blocksManager", blocksManager);
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+		ReflectionTestUtils.setField(bot, "service", pool);
+		try {
+			ReflectionTestUtils.invokeMethod(bot, "backfillIndex", table, colName,
+					Collections.singletonMap(opType, blocksManager.getIndex(opType, colName)));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Map<String, String> getIndexValues() {
+		Map<String, String> res = new TreeMap<>();
+		jdbcTemplate.query("SELECT superblock, p1, p2, ophash, osmid::text FROM " + table + " WHERE osmid IS NOT NULL", rs -> {
+			res.put(SecUtils.hexify(rs.getBytes(1)) + " " + rs.getString(2) + " " + rs.getString(3) + " "
+					+ SecUtils.hexify(rs.getBytes(4)), rs.getString(5));
+		});
+		return res;
+	}
+
 	@Test
 	public void testCompactWithCompactCoefficientEq1RuntimeBlock() throws FailedVerificationException {
 		List<OpOperation> opOperationList = getOperations(formatter, blocksManager, BLOCKCHAIN_LIST);
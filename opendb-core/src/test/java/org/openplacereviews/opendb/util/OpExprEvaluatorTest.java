@@ -224,6 +224,20 @@ public class OpExprEvaluatorTest {
 		assertEquals(0, OpExprEvaluator.parseExpression("auth:has_sig_roles(this, set:all('administrator', 'owner'))").evaluateObject(ectx));
 	}
 
+	@Test
+	public void testCompiledExpressionReuse() {
+		Gson gson = new Gson();
+		OpExprEvaluator expr = OpExprEvaluator.parseExpression("set:in(.a, set:all(m:plus(1, 1), 3))");
+		JsonElement obj1 = gson.fromJson("{'a':2}", JsonElement.class);
+		JsonElement obj2 = gson.fromJson("{'a':1}", JsonElement.class);
+		assertEquals(1, expr.evaluateObject(new OpExprEvaluator.EvaluationContext(null, obj1.getAsJsonObject(), null, null, null)));
+		assertEquals(0, expr.evaluateObject(new OpExprEvaluator.EvaluationContext(null, obj2.getAsJsonObject(), null, null, null)));
+		assertEquals(1, expr.evaluateObject(new OpExprEvaluator.EvaluationContext(null, obj1.getAsJsonObject(), null, null, null)));
+		// constant arguments with wrong type fail only on evaluation
+		OpExprEvaluator.parseExpression("m:plus('a', 1)");
+		evaluateExprForException("m:plus('a', 1)");
+	}
+
 	public Collection<String> getNameTags(Map<String, String> tags) {
 		Map<String, String> result = new LinkedHashMap<String, String>();
 		for (Map.Entry<String, String> e : tags.entrySet()) {